@@ -69,10 +69,10 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 @BenchmarkMode(Mode.AverageTime)
 public class BTraceBench {
 
-    private static class BTraceConfig {
+    static class BTraceConfig {
 
-        private final String agentJar;
-        private final String scriptPath;
+        final String agentJar;
+        final String scriptPath;
         private final Path tmpRoot;
 
         private static final FileVisitor<Path> DEL_TREE = new FileVisitor<Path>() {
@@ -332,7 +332,7 @@ public class BTraceBench {
         }
     }
 
-    private static BTraceConfig getConfig() throws IOException {
+    static BTraceConfig getConfig() throws IOException {
         FileSystem fs = FileSystems.getDefault();
 
         Path agentPath = null;
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace;
+
+import com.sun.btrace.BTraceRuntime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of the {@linkplain BTraceRuntime} reentrancy guard
+ * (an enter/leave pair executed on every probe hit) using the per-thread
+ * slots and using the thread local guards only
+ * ({@code com.sun.btrace.runtime.threadSlots=0}).
+ *
+ * @author Jaroslav Bachorik
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+public class ReentrancyGuardBenchmarks {
+    @Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Benchmark
+    public boolean testEnterLeave() {
+        boolean entered = BTraceRuntime.enter();
+        if (entered) {
+            BTraceRuntime.leave();
+        }
+        return entered;
+    }
+
+    @Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+    @Threads(4)
+    @Benchmark
+    public boolean testEnterLeaveMT() {
+        boolean entered = BTraceRuntime.enter();
+        if (entered) {
+            BTraceRuntime.leave();
+        }
+        return entered;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String slots : new String[]{"0", "1024"}) {
+            System.err.println("=== " + BTraceRuntime.THREAD_SLOTS_KEY + "=" + slots);
+            Options opt = new OptionsBuilder()
+                    .jvmArgsAppend("-D" + BTraceRuntime.THREAD_SLOTS_KEY + "=" + slots)
+                    .include(".*" + ReentrancyGuardBenchmarks.class.getSimpleName() + ".*test.*")
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+}
@@ -16,6 +16,8 @@ import com.sun.btrace.annotations.Sampled;
 
 @BTrace
 public class TraceScript {
+    private static long counterHits;
+
     @OnMethod(clazz="net.java.btrace.BTraceBench", method="testInstrumentedMethod")
     public static void onMethodEntryEmpty(@ProbeClassName String pcn, @ProbeMethodName String pmn) {
 
@@ -100,4 +102,9 @@ public class TraceScript {
         println(pmn);
         println(pmn);
     }
+
+    @OnMethod(clazz="net.java.btrace.HandlerInliningBenchmarks", method="testCounterHandler")
+    public static void onMethodEntryCounter() {
+        counterHits++;
+    }
 }
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded map used to hold the script state which would otherwise
+ * grow without limits (eg. caches keyed by threads or connections).
+ * <p>
+ * The map is split into independently locked segments, each of them holding
+ * its share of the maximum size. When a segment is full the least recently used
+ * entry ({@linkplain Policy#LRU}) or the least frequently used entry of a few
+ * sampled ones ({@linkplain Policy#LFU}) is evicted. Both operations are O(1).
+ * <p>
+ * The LFU sample is taken from the head of the segment. The sampled entries which
+ * survive the eviction get their hit counts halved and are moved to the tail so the
+ * sampling sweeps over all the entries and the stale hit counts decay.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BTraceBoundedMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V>, Cloneable {
+    enum Policy {
+        LRU, LFU;
+
+        static Policy parse(String policy) {
+            try {
+                return valueOf(policy.toUpperCase());
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("unknown eviction policy: " + policy);
+            }
+        }
+    }
+
+    // the number of the entries considered for the LFU eviction
+    private static final int LFU_SAMPLE_SIZE = 5;
+    // the size from which the map is split into multiple segments
+    private static final int SEGMENTED_SIZE = 256;
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * The value holder counting the value accesses
+     */
+    private static final class Counted {
+        private final Object value;
+        private int hits;
+
+        Counted(Object value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Segment<K,V> extends LinkedHashMap<K, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final Policy policy;
+        private final AtomicLong evictions;
+
+        Segment(int capacity, Policy policy, AtomicLong evictions) {
+            // access ordered for LRU, insertion ordered for LFU
+            super(16, 0.75f, policy == Policy.LRU);
+            this.capacity = capacity;
+            this.policy = policy;
+            this.evictions = evictions;
+        }
+
+        synchronized V getValue(Object key) {
+            return unwrap(get(key), true);
+        }
+
+        synchronized V putValue(K key, V value, boolean onlyIfAbsent) {
+            Object prev = get(key);
+            if (prev != null && onlyIfAbsent) {
+                return unwrap(prev, true);
+            }
+            put(key, wrap(value, prev));
+            if (size() > capacity) {
+                evict(key);
+            }
+            return unwrap(prev, false);
+        }
+
+        synchronized V removeValue(Object key) {
+            return unwrap(remove(key), false);
+        }
+
+        synchronized boolean removeValue(Object key, Object value) {
+            if (containsKey(key) && eq(unwrap(get(key), false), value)) {
+                remove(key);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean replaceValue(K key, V oldValue, V newValue) {
+            Object prev = get(key);
+            if (containsKey(key) && eq(unwrap(prev, false), oldValue)) {
+                put(key, wrap(newValue, prev));
+                return true;
+            }
+            return false;
+        }
+
+        synchronized V replaceValue(K key, V value) {
+            if (containsKey(key)) {
+                return unwrap(put(key, wrap(value, get(key))), false);
+            }
+            return null;
+        }
+
+        synchronized boolean hasKey(Object key) {
+            return containsKey(key);
+        }
+
+        synchronized boolean hasValue(Object value) {
+            for (Object v : values()) {
+                if (eq(unwrap(v, false), value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int count() {
+            return size();
+        }
+
+        synchronized void removeAll() {
+            clear();
+        }
+
+        synchronized void snapshot(List<Map.Entry<K,V>> entries) {
+            for (Map.Entry<K, Object> e : entrySet()) {
+                entries.add(new SimpleImmutableEntry<>(e.getKey(), unwrap(e.getValue(), false)));
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Object> eldest) {
+            // LRU evicts by the access order; LFU evicts explicitly
+            if (policy == Policy.LRU && size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void evict(K added) {
+            if (policy == Policy.LFU) {
+                Object[] sample = new Object[LFU_SAMPLE_SIZE];
+                int sampled = 0;
+                K victim = null;
+                int minHits = Integer.MAX_VALUE;
+                for (Map.Entry<K, Object> e : entrySet()) {
+                    if (e.getKey() == added) {
+                        // do not evict the entry just being added
+                        continue;
+                    }
+                    int hits = ((Counted)e.getValue()).hits;
+                    if (hits < minHits) {
+                        minHits = hits;
+                        victim = e.getKey();
+                    }
+                    sample[sampled] = e.getKey();
+                    if (++sampled == LFU_SAMPLE_SIZE) {
+                        break;
+                    }
+                }
+                remove(victim);
+                evictions.incrementAndGet();
+                // age the survivors and move them behind the not yet sampled entries
+                for (int i = 0; i < sampled; i++) {
+                    K key = (K)sample[i];
+                    if (key != victim) {
+                        Counted c = (Counted)remove(key);
+                        c.hits >>>= 1;
+                        put(key, c);
+                    }
+                }
+                // keep the added entry last so the ties evict the longest unsampled entries
+                put(added, remove(added));
+            }
+        }
+
+        /**
+         * Wraps the value for LFU; an updated entry keeps its hit count
+         */
+        private Object wrap(V value, Object prev) {
+            if (policy != Policy.LFU) {
+                return value;
+            }
+            Counted c = new Counted(value);
+            if (prev instanceof Counted) {
+                c.hits = ((Counted)prev).hits;
+            }
+            return c;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V unwrap(Object value, boolean hit) {
+            if (value instanceof Counted) {
+                Counted c = (Counted)value;
+                if (hit && c.hits < Integer.MAX_VALUE) {
+                    c.hits++;
+                }
+                return (V)c.value;
+            }
+            return (V)value;
+        }
+    }
+
+    private final int maxSize;
+    private final Policy policy;
+    private final Segment<K,V>[] segments;
+    private final AtomicLong evictions = new AtomicLong();
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    @SuppressWarnings("unchecked")
+    BTraceBoundedMap(int maxSize, Policy policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("invalid map size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.policy = policy;
+        int cnt = maxSize < SEGMENTED_SIZE ? 1 : MAX_SEGMENTS;
+        segments = (Segment<K,V>[])new Segment<?,?>[cnt];
+        for (int i = 0; i < cnt; i++) {
+            // distribute the remainder so the segment capacities add up to the max size
+            segments[i] = new Segment<>(maxSize / cnt + (i < maxSize % cnt ? 1 : 0), policy, evictions);
+        }
+    }
+
+    /**
+     * @return the number of entries evicted since the map was created
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K,V> s : segments) {
+            size += s.count();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return segmentFor(key).hasKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        for (Segment<K,V> s : segments) {
+            if (s.hasValue(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public V get(Object key) {
+        return segmentFor(key).getValue(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return segmentFor(key).putValue(key, value, false);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return segmentFor(key).removeValue(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K,V> s : segments) {
+            s.removeAll();
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return segmentFor(key).putValue(key, value, true);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return segmentFor(key).removeValue(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return segmentFor(key).replaceValue(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return segmentFor(key).replaceValue(key, value);
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K,V>>() {
+                @Override
+                public Iterator<Map.Entry<K,V>> iterator() {
+                    List<Map.Entry<K,V>> entries = new ArrayList<>();
+                    for (Segment<K,V> s : segments) {
+                        s.snapshot(entries);
+                    }
+                    final Iterator<Map.Entry<K,V>> iter = entries.iterator();
+                    return new Iterator<Map.Entry<K,V>>() {
+                        private Map.Entry<K,V> last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return iter.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K,V> next() {
+                            if (!iter.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            last = iter.next();
+                            return last;
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+                            BTraceBoundedMap.this.remove(last.getKey());
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return BTraceBoundedMap.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        return new BTraceBoundedMap<K,V>(maxSize, policy);
+    }
+
+    private Segment<K,V> segmentFor(Object key) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        int h = key != null ? key.hashCode() : 0;
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static boolean eq(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+}
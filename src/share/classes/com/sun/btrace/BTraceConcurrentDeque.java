@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import java.util.AbstractCollection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free deque holding at most the given number of elements.
+ * <p>
+ * Suitable for passing data between the probe handlers running in different
+ * threads (eg. from {@code @OnMethod} to {@code @OnTimer} handlers).
+ * When full, the {@code offer*} methods return {@code false} and the
+ * {@code add*} methods throw {@linkplain IllegalStateException}.
+ * {@code null} elements are not permitted.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BTraceConcurrentDeque<V> extends AbstractCollection<V> implements Deque<V>, BTraceCollection<V>, Cloneable {
+    private final ConcurrentLinkedDeque<V> delegate = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int capacity;
+
+    BTraceConcurrentDeque(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid deque capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offerFirst(V e) {
+        checkElement(e);
+        if (!reserve()) {
+            return false;
+        }
+        delegate.offerFirst(e);
+        return true;
+    }
+
+    @Override
+    public boolean offerLast(V e) {
+        checkElement(e);
+        if (!reserve()) {
+            return false;
+        }
+        delegate.offerLast(e);
+        return true;
+    }
+
+    @Override
+    public void addFirst(V e) {
+        if (!offerFirst(e)) {
+            throw new IllegalStateException("deque full");
+        }
+    }
+
+    @Override
+    public void addLast(V e) {
+        if (!offerLast(e)) {
+            throw new IllegalStateException("deque full");
+        }
+    }
+
+    @Override
+    public V pollFirst() {
+        return released(delegate.pollFirst());
+    }
+
+    @Override
+    public V pollLast() {
+        return released(delegate.pollLast());
+    }
+
+    @Override
+    public V removeFirst() {
+        V v = pollFirst();
+        if (v == null) {
+            throw new NoSuchElementException();
+        }
+        return v;
+    }
+
+    @Override
+    public V removeLast() {
+        V v = pollLast();
+        if (v == null) {
+            throw new NoSuchElementException();
+        }
+        return v;
+    }
+
+    @Override
+    public V getFirst() {
+        return delegate.getFirst();
+    }
+
+    @Override
+    public V getLast() {
+        return delegate.getLast();
+    }
+
+    @Override
+    public V peekFirst() {
+        return delegate.peekFirst();
+    }
+
+    @Override
+    public V peekLast() {
+        return delegate.peekLast();
+    }
+
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        if (delegate.removeFirstOccurrence(o)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        if (delegate.removeLastOccurrence(o)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean add(V e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(V e) {
+        return offerLast(e);
+    }
+
+    @Override
+    public V remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public V poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public V element() {
+        return getFirst();
+    }
+
+    @Override
+    public V peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(V e) {
+        addFirst(e);
+    }
+
+    @Override
+    public V pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return delegate.contains(o);
+    }
+
+    /**
+     * The size is maintained in a counter so, unlike
+     * {@linkplain ConcurrentLinkedDeque#size()}, this is O(1)
+     */
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        while (pollFirst() != null);
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return new CountingIterator(delegate.iterator(), false);
+    }
+
+    @Override
+    public Iterator<V> descendingIterator() {
+        return new CountingIterator(delegate.descendingIterator(), true);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        return new BTraceConcurrentDeque<V>(capacity);
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (c >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private V released(V v) {
+        if (v != null) {
+            count.decrementAndGet();
+        }
+        return v;
+    }
+
+    private static void checkElement(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    /**
+     * Keeps the element counter in sync on {@linkplain Iterator#remove()}.
+     * The removal goes through {@linkplain #removeFirstOccurrence(Object)} (or
+     * {@linkplain #removeLastOccurrence(Object)} when descending) so the counter
+     * is decremented only when an element was actually unlinked and not when
+     * a concurrent {@code poll} got it first.
+     * <p>
+     * The element is looked up by equality so when the deque holds several
+     * equal elements the first (last when descending) of them is removed,
+     * not necessarily the one returned by {@linkplain #next()}.
+     */
+    private final class CountingIterator implements Iterator<V> {
+        private final Iterator<V> iter;
+        private final boolean descending;
+        private V last;
+
+        CountingIterator(Iterator<V> iter, boolean descending) {
+            this.iter = iter;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iter.hasNext();
+        }
+
+        @Override
+        public V next() {
+            last = iter.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            V v = last;
+            last = null;
+            if (descending) {
+                removeLastOccurrence(v);
+            } else {
+                removeFirstOccurrence(v);
+            }
+        }
+    }
+}
@@ -25,122 +25,267 @@
 
 package com.sun.btrace;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-/** 
- * Instances of this class are used to store  aggregate 
- * tracing data in BTrace. 
+/**
+ * Instances of this class are used to store  aggregate
+ * tracing data in BTrace.
+ * <p>
+ * The map is backed by a {@linkplain ConcurrentHashMap} so the probes
+ * running in different threads do not contend on a single lock. Unlike
+ * {@linkplain ConcurrentHashMap} it accepts {@code null} keys and values.
+ * A weak map holds its keys by weak references and compares them
+ * by {@linkplain Object#equals(java.lang.Object)}, the same as {@linkplain java.util.WeakHashMap}.
  *
  * @author A. Sundararajan
  */
-final class BTraceMap<K,V> implements Map<K,V>, Cloneable {
-    //private int numItems;
-    private final Map<K,V> m;
-    private boolean isWeak;
-    BTraceMap(Map<K,V> m) {
-        if (m == null) {
-            throw new NullPointerException();
+final class BTraceMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V>, Cloneable {
+    // stands for the null keys and values
+    private static final Object NULL = new Object();
+
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int hash;
+
+        WeakKey(Object key, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            hash = key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (obj instanceof WeakKey) {
+                Object key = get();
+                return key != null && key.equals(((WeakKey)obj).get());
+            }
+            return false;
         }
-        this.m = m;
-        isWeak = (m instanceof WeakHashMap);
+    }
+
+    private final ConcurrentMap<Object, Object> m = new ConcurrentHashMap<>();
+    private final boolean isWeak;
+    private final ReferenceQueue<Object> queue;
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    BTraceMap(boolean weak) {
+        isWeak = weak;
+        queue = weak ? new ReferenceQueue<>() : null;
     }
 
     @Override
-    public synchronized int size() {
+    public int size() {
+        expunge();
         return m.size();
     }
 
     @Override
-    public synchronized boolean isEmpty(){
+    public boolean isEmpty() {
+        expunge();
         return m.isEmpty();
     }
 
     @Override
-    public synchronized boolean containsKey(Object key) {
-        return m.containsKey(key);
+    public boolean containsKey(Object key) {
+        return m.containsKey(lookupKey(key));
     }
 
     @Override
-    public synchronized boolean containsValue(Object value){
-        return m.containsValue(value);
+    public boolean containsValue(Object value) {
+        return m.containsValue(maskValue(value));
     }
 
     @Override
-    public synchronized V get(Object key) {
-        return m.get(key);
+    public V get(Object key) {
+        return unmaskValue(m.get(lookupKey(key)));
     }
 
     @Override
-    public synchronized V put(K key, V value) {
-        return m.put(key, value);
+    public V put(K key, V value) {
+        expunge();
+        return unmaskValue(m.put(storeKey(key), maskValue(value)));
     }
 
     @Override
-    public synchronized V remove(Object key) {
-        return m.remove(key);
+    public V remove(Object key) {
+        expunge();
+        return unmaskValue(m.remove(lookupKey(key)));
     }
 
     @Override
-    public synchronized void putAll(Map<? extends K, ? extends V> map) {
-        m.putAll(map);
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> e : map.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
     }
 
     @Override
-    public synchronized void clear() {
+    public void clear() {
         m.clear();
+        expunge();
     }
 
-    private transient Set<K> keySet = null;
-    private transient Set<Map.Entry<K,V>> entrySet = null;
-    private transient Collection<V> values = null;
+    @Override
+    public V putIfAbsent(K key, V value) {
+        expunge();
+        return unmaskValue(m.putIfAbsent(storeKey(key), maskValue(value)));
+    }
 
     @Override
-    public synchronized Set<K> keySet() {
-        if (keySet == null) {
-            keySet = m.keySet();
-        }
-        return keySet;
+    public boolean remove(Object key, Object value) {
+        expunge();
+        return m.remove(lookupKey(key), maskValue(value));
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return m.replace(lookupKey(key), maskValue(oldValue), maskValue(newValue));
     }
- 
+
+    @Override
+    public V replace(K key, V value) {
+        return unmaskValue(m.replace(lookupKey(key), maskValue(value)));
+    }
+
     @Override
-    public synchronized Set<Map.Entry<K,V>> entrySet() {
+    public Set<Map.Entry<K,V>> entrySet() {
         if (entrySet == null) {
-            entrySet = m.entrySet();
+            entrySet = new EntrySet();
         }
         return entrySet;
     }
 
     @Override
-    public synchronized Collection<V> values() {
-        if (values == null) {
-            values = m.values();
+    protected Object clone() throws CloneNotSupportedException {
+        return new BTraceMap<K,V>(isWeak);
+    }
+
+    private Object lookupKey(Object key) {
+        Object k = key != null ? key : NULL;
+        return isWeak ? new WeakKey(k, null) : k;
+    }
+
+    private Object storeKey(Object key) {
+        Object k = key != null ? key : NULL;
+        return isWeak ? new WeakKey(k, queue) : k;
+    }
+
+    /**
+     * @return the original key or {@linkplain #NULL} if the weak key has already been cleared
+     */
+    @SuppressWarnings("unchecked")
+    private K unmaskKey(Object key) {
+        Object k = isWeak ? ((WeakKey)key).get() : key;
+        if (k == null) {
+            return (K)NULL;
         }
-        return values;
+        return k != NULL ? (K)k : null;
     }
 
-    @Override
-    public synchronized boolean equals(Object o) {
-        return m.equals(o);
+    private static Object maskValue(Object value) {
+        return value != null ? value : NULL;
     }
 
-    @Override
-    public synchronized int hashCode() {
-        return m.hashCode();
+    @SuppressWarnings("unchecked")
+    private V unmaskValue(Object value) {
+        return value != NULL ? (V)value : null;
     }
 
-    @Override
-    public synchronized String toString() {
-        return m.toString();
+    /**
+     * Removes the entries whose weak keys have been cleared
+     */
+    private void expunge() {
+        if (queue != null) {
+            Reference<?> ref;
+            while ((ref = queue.poll()) != null) {
+                m.remove(ref);
+            }
+        }
     }
 
-    @Override
-    protected Object clone() throws CloneNotSupportedException {
-        return new BTraceMap(isWeak ? new WeakHashMap() : new HashMap());
+    private final class Entry extends AbstractMap.SimpleEntry<K,V> {
+        private static final long serialVersionUID = 1L;
+
+        private final Object storedKey;
+
+        Entry(Object storedKey, K key, V value) {
+            super(key, value);
+            this.storedKey = storedKey;
+        }
+
+        @Override
+        public V setValue(V value) {
+            m.put(storedKey, maskValue(value));
+            return super.setValue(value);
+        }
     }
 
+    private final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            final Iterator<Map.Entry<Object, Object>> iter = m.entrySet().iterator();
+            return new Iterator<Map.Entry<K,V>>() {
+                private Entry next = null;
+                private Entry last = null;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && iter.hasNext()) {
+                        Map.Entry<Object, Object> e = iter.next();
+                        K key = unmaskKey(e.getKey());
+                        if (key != NULL) {
+                            next = new Entry(e.getKey(), key, unmaskValue(e.getValue()));
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<K,V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next;
+                    next = null;
+                    return last;
+                }
 
-}
\ No newline at end of file
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    m.remove(last.storedKey);
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return BTraceMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            BTraceMap.this.clear();
+        }
+    }
+}
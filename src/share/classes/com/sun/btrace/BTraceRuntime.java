@@ -27,6 +27,7 @@ package com.sun.btrace;
 
 import java.lang.management.ManagementFactory;
 import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.nio.ByteBuffer;
@@ -38,9 +39,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import com.sun.management.HotSpotDiagnosticMXBean;
 import com.sun.btrace.aggregation.Aggregation;
 import com.sun.btrace.aggregation.AggregationKey;
+import com.sun.btrace.aggregation.StackId;
 import com.sun.btrace.aggregation.AggregationFunction;
 import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.ErrorCommand;
@@ -96,6 +99,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadFactory;
 import javax.management.ListenerNotFoundException;
 import javax.management.MBeanServer;
@@ -135,7 +139,24 @@ import sun.security.action.GetPropertyAction;
  */
 public final class BTraceRuntime  {
     private static final class RTWrapper {
-       private BTraceRuntime rt = null;
+        private final long tid;
+        private final WeakReference<Thread> owner;
+        private BTraceRuntime rt = null;
+
+        RTWrapper() {
+            Thread t = Thread.currentThread();
+            tid = t.getId();
+            owner = new WeakReference<>(t);
+        }
+
+        /**
+         * @return {@code true} if the owning thread is gone and the slot
+         *         occupied by this wrapper can be reused
+         */
+        boolean isStale() {
+            Thread t = owner.get();
+            return t == null || !t.isAlive();
+        }
 
         boolean set(BTraceRuntime other) {
             if (rt != null && other != null) {
@@ -204,8 +225,25 @@ public final class BTraceRuntime  {
     // the command FIFO queue upper limit
     private static int CMD_QUEUE_LIMIT;
 
+    // the per-thread command buffers related settings
+    public static final String CMD_BUFFER_SIZE_KEY = "com.sun.btrace.runtime.cmdBufferSize";
+    public static final String CMD_BUFFER_ORDERED_KEY = "com.sun.btrace.runtime.cmdBufferOrdered";
+
+    // the per-thread command buffer size; 0 if the per-thread buffers are not used
+    private static int CMD_BUFFER_SIZE;
+    // deliver the buffered commands globally ordered by their timestamp
+    private static boolean CMD_BUFFER_ORDERED;
+
+    // the reentrancy guard thread slots related settings
+    private static final int THREAD_SLOTS_DEFAULT = 1024;
+    public static final String THREAD_SLOTS_KEY = "com.sun.btrace.runtime.threadSlots";
+
+    // the per-thread reentrancy guards indexed by the thread id; 'null' if disabled
+    private static AtomicReferenceArray<RTWrapper> rtSlots;
+
     static {
         setupCmdQueueParams();
+        setupThreadSlots();
 
         try {
             Reflection.class.getMethod("getCallerClass");
@@ -227,6 +265,37 @@ public final class BTraceRuntime  {
         }
     };
 
+    /**
+     * Retrieves the reentrancy guard of the current thread.
+     * <p>
+     * The guard is first looked up in the slot indexed by the thread id, which
+     * is a plain array access. Only when the slot is not owned by the current
+     * thread (the first access or a thread id collision) the guard is retrieved
+     * from the {@linkplain ThreadLocal} and an attempt is made to claim the slot
+     * for it, if it is free or its owner has already terminated.
+     */
+    private static RTWrapper rtWrapper() {
+        AtomicReferenceArray<RTWrapper> slots = rtSlots;
+        if (slots != null) {
+            long tid = Thread.currentThread().getId();
+            int idx = (int)tid & (slots.length() - 1);
+            RTWrapper w = slots.get(idx);
+            if (w != null && w.tid == tid) {
+                return w;
+            }
+            return claimSlot(slots, idx, w);
+        }
+        return rt.get();
+    }
+
+    private static RTWrapper claimSlot(AtomicReferenceArray<RTWrapper> slots, int idx, RTWrapper occupant) {
+        RTWrapper w = rt.get();
+        if (occupant == null || occupant.isStale()) {
+            slots.compareAndSet(idx, occupant, w);
+        }
+        return w;
+    }
+
     // for testing purposes
     private static boolean uniqueClientClassNames = true;
 
@@ -268,6 +337,9 @@ public final class BTraceRuntime  {
 
     // Class object of the BTrace class [of this client]
     private final String className;
+    // the name prefix of the handlers copied to the instrumented classes;
+    // see com.sun.btrace.runtime.InstrumentUtils.getActionPrefix() (not available in the boot jar)
+    private final String handlerPrefix;
 
     // BTrace Class object corresponding to this client
     private Class clazz;
@@ -296,6 +368,8 @@ public final class BTraceRuntime  {
 
     // Command queue for the client
     private final MpscChunkedArrayQueue<Command> queue;
+    // Per-thread command buffers feeding the client; 'null' if not used
+    private final CommandBuffers buffers;
 
     private static class SpeculativeQueueManager {
         // maximum number of speculative buffers
@@ -382,8 +456,8 @@ public final class BTraceRuntime  {
             }
         }
     }
-    // per client speculative buffer manager
-    private final SpeculativeQueueManager specQueueManager;
+    // per client speculative buffer manager; created on the first speculation
+    private volatile SpeculativeQueueManager specQueueManager;
     // background thread that sends Commands to the handler
     private volatile Thread cmdThread;
     private final Instrumentation instrumentation;
@@ -418,8 +492,9 @@ public final class BTraceRuntime  {
         debug = new DebugSupport(null);
         args = null;
         queue = null;
-        specQueueManager = null;
+        buffers = null;
         className = null;
+        handlerPrefix = null;
         instrumentation = null;
     }
 
@@ -428,8 +503,9 @@ public final class BTraceRuntime  {
                          DebugSupport ds, Instrumentation inst) {
         this.args = args;
         this.queue = new MpscChunkedArrayQueue<>(CMD_QUEUE_LIMIT_DEFAULT);
-        this.specQueueManager = new SpeculativeQueueManager();
+        this.buffers = CMD_BUFFER_SIZE > 0 ? new CommandBuffers(CMD_BUFFER_SIZE, CMD_BUFFER_ORDERED) : null;
         this.className = className;
+        this.handlerPrefix = Constants.BTRACE_METHOD_PREFIX + className.replace('.', '$') + "$";
         this.instrumentation = inst;
         this.debug = ds != null ? ds : new DebugSupport(null);
 
@@ -439,14 +515,23 @@ public final class BTraceRuntime  {
             public void run() {
                 try {
                     BTraceRuntime.enter();
-                    queue.drain(
-                        new ConsumerWrapper(cmdListener, exitting),
-                        waitStrategy, exitCondition
-                    );
+                    if (buffers != null) {
+                        drainBuffered(new ConsumerWrapper(cmdListener, exitting));
+                    } else {
+                        queue.drain(
+                            new ConsumerWrapper(cmdListener, exitting),
+                            waitStrategy, exitCondition
+                        );
+                    }
                 } finally {
                     runtimes.remove(className);
                     queue.clear();
-                    specQueueManager.clear();
+                    if (buffers != null) {
+                        buffers.clear();
+                    }
+                    if (specQueueManager != null) {
+                        specQueueManager.clear();
+                    }
                     BTraceRuntime.leave();
                     disabled = true;
                 }
@@ -557,7 +642,7 @@ public final class BTraceRuntime  {
      */
     public static boolean enter(BTraceRuntime current) {
         if (current.disabled) return false;
-        return rt.get().set(current);
+        return rtWrapper().set(current);
     }
 
     public static boolean enter() {
@@ -570,7 +655,7 @@ public final class BTraceRuntime  {
      * method continues).
      */
     public static void leave() {
-        rt.get().set(null);
+        rtWrapper().set(null);
     }
 
     /**
@@ -609,7 +694,7 @@ public final class BTraceRuntime  {
 
             final Method eventHandler = eventHandlerMap.get(event);
             if (eventHandler != null) {
-                rt.get().escape(new Callable<Void>() {
+                rtWrapper().escape(new Callable<Void>() {
                     @Override
                     public Void call() throws Exception {
                         eventHandler.invoke(null, (Object[])null);
@@ -643,27 +728,94 @@ public final class BTraceRuntime  {
      */
     public static ThreadLocal newThreadLocal(
                 final Object initValue) {
+        if (initValue instanceof Cloneable) {
+            // look up the clone method only once, not per thread
+            final Method cloneMethod = getCloneMethod(initValue);
+            return new ThreadLocal() {
+                @Override
+                protected Object initialValue() {
+                    return cloneValue(initValue, cloneMethod);
+                }
+            };
+        }
         return new ThreadLocal() {
             @Override
             protected Object initialValue() {
-                if (initValue == null) return initValue;
-
-                if (initValue instanceof Cloneable) {
-                    try {
-                        Class clz = initValue.getClass();
-                        Method m = clz.getDeclaredMethod("clone");
-                        m.setAccessible(true);
-                        return m.invoke(initValue);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
                 return initValue;
             }
         };
     }
 
+    /**
+     * Utility to create a new per-thread holder for a primitive
+     * {@code boolean}, {@code byte}, {@code char}, {@code short} or {@code int}
+     * {@code @TLS} variable. Called by preprocessed BTrace class.
+     * @param initValue Initial value.
+     */
+    public static PrimitiveThreadLocal.OfInt newThreadLocal(int initValue) {
+        return new PrimitiveThreadLocal.OfInt(initValue);
+    }
+
+    /**
+     * Utility to create a new per-thread holder for a primitive {@code long}
+     * {@code @TLS} variable. Called by preprocessed BTrace class.
+     * @param initValue Initial value.
+     */
+    public static PrimitiveThreadLocal.OfLong newThreadLocal(long initValue) {
+        return new PrimitiveThreadLocal.OfLong(initValue);
+    }
+
+    /**
+     * Utility to create a new per-thread holder for a primitive {@code float}
+     * {@code @TLS} variable. Called by preprocessed BTrace class.
+     * @param initValue Initial value.
+     */
+    public static PrimitiveThreadLocal.OfFloat newThreadLocal(float initValue) {
+        return new PrimitiveThreadLocal.OfFloat(initValue);
+    }
+
+    /**
+     * Utility to create a new per-thread holder for a primitive {@code double}
+     * {@code @TLS} variable. Called by preprocessed BTrace class.
+     * @param initValue Initial value.
+     */
+    public static PrimitiveThreadLocal.OfDouble newThreadLocal(double initValue) {
+        return new PrimitiveThreadLocal.OfDouble(initValue);
+    }
+
+    private static Method getCloneMethod(Object value) {
+        if (value instanceof BTraceDeque || value instanceof BTraceMap || value instanceof BTraceBoundedMap) {
+            // cloned directly
+            return null;
+        }
+        try {
+            Method m = value.getClass().getDeclaredMethod("clone");
+            m.setAccessible(true);
+            return m;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Object cloneValue(Object value, Method cloneMethod) {
+        try {
+            if (value instanceof BTraceDeque) {
+                return ((BTraceDeque)value).clone();
+            }
+            if (value instanceof BTraceMap) {
+                return ((BTraceMap)value).clone();
+            }
+            if (value instanceof BTraceBoundedMap) {
+                return ((BTraceBoundedMap)value).clone();
+            }
+            return cloneMethod != null ? cloneMethod.invoke(value) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     // The following constants are copied from VM code
     // for jvmstat.
 
@@ -869,22 +1021,22 @@ public final class BTraceRuntime  {
 
     static int speculation() {
         BTraceRuntime current = getCurrent();
-        return current.specQueueManager.speculation();
+        return current.getSpecQueueManager().speculation();
     }
 
     static void speculate(int id) {
         BTraceRuntime current = getCurrent();
-        current.specQueueManager.speculate(id);
+        current.getSpecQueueManager().speculate(id);
     }
 
     static void discard(int id) {
         BTraceRuntime current = getCurrent();
-        current.specQueueManager.discard(id);
+        current.getSpecQueueManager().discard(id);
     }
 
     static void commit(int id) {
         BTraceRuntime current = getCurrent();
-        current.specQueueManager.commit(id, current.queue);
+        current.getSpecQueueManager().commit(id, current.queue);
     }
 
     /**
@@ -911,17 +1063,40 @@ public final class BTraceRuntime  {
 
     // BTrace map functions
     static <K, V> Map<K, V> newHashMap() {
-        return new BTraceMap(new HashMap<K, V>());
+        return new BTraceMap<>(false);
     }
 
     static <K, V> Map<K, V> newWeakMap() {
-        return new BTraceMap(new WeakHashMap<K, V>());
+        return new BTraceMap<>(true);
+    }
+
+    static <K, V> Map<K, V> newBoundedMap(int maxSize, String policy) {
+        return new BTraceBoundedMap<>(maxSize, BTraceBoundedMap.Policy.parse(policy));
+    }
+
+    static <K, V> long evictions(Map<K, V> map) {
+        if (map instanceof BTraceBoundedMap) {
+            return ((BTraceBoundedMap<K, V>)map).getEvictions();
+        }
+        return 0L;
+    }
+
+    private static boolean isBTraceMap(Map<?, ?> map) {
+        return map instanceof BTraceMap || map instanceof BTraceBoundedMap;
     }
 
     static <V> Deque<V> newDeque() {
         return new BTraceDeque<>(new ArrayDeque<V>());
     }
 
+    static <V> Deque<V> newConcurrentDeque(int capacity) {
+        return new BTraceConcurrentDeque<>(capacity);
+    }
+
+    static <V> Deque<V> newPerThreadDeque(int capacity) {
+        return new BTraceThreadDeque<>(capacity);
+    }
+
     static Appendable newStringBuilder(boolean threadSafe) {
     	return threadSafe ? new StringBuffer() : new StringBuilder();
     }
@@ -968,7 +1143,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> V get(Map<K, V> map, K key) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             return map.get(key);
         } else {
@@ -977,7 +1152,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> boolean containsKey(Map<K, V> map, K key) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             return map.containsKey(key);
         } else {
@@ -986,7 +1161,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> boolean containsValue(Map<K, V> map, V value) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             return map.containsValue(value);
         } else {
@@ -995,15 +1170,53 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> V put(Map<K, V> map, K key, V value) {
-        if (map instanceof BTraceMap) {
+        if (isBTraceMap(map)) {
             return map.put(key, value);
         } else {
             throw new IllegalArgumentException("not a btrace map");
         }
     }
 
+    static <K, V> V putIfAbsent(Map<K, V> map, K key, V value) {
+        if (isBTraceMap(map)) {
+            return ((ConcurrentMap<K, V>)map).putIfAbsent(key, value);
+        } else {
+            throw new IllegalArgumentException("not a btrace map");
+        }
+    }
+
+    static <K, V> boolean replace(Map<K, V> map, K key, V expected, V value) {
+        if (isBTraceMap(map)) {
+            return ((ConcurrentMap<K, V>)map).replace(key, expected, value);
+        } else {
+            throw new IllegalArgumentException("not a btrace map");
+        }
+    }
+
+    static <K> long addAndGet(Map<K, Long> map, K key, long delta) {
+        if (isBTraceMap(map)) {
+            ConcurrentMap<K, Long> bmap = (ConcurrentMap<K, Long>)map;
+            while (true) {
+                Long current = bmap.get(key);
+                if (current == null) {
+                    Long value = delta;
+                    if (bmap.putIfAbsent(key, value) == null) {
+                        return delta;
+                    }
+                } else {
+                    long result = current + delta;
+                    if (bmap.replace(key, current, result)) {
+                        return result;
+                    }
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("not a btrace map");
+        }
+    }
+
     static <K, V> V remove(Map<K, V> map, K key) {
-        if (map instanceof BTraceMap) {
+        if (isBTraceMap(map)) {
             return map.remove(key);
         } else {
             throw new IllegalArgumentException("not a btrace map");
@@ -1011,7 +1224,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> void clear(Map<K, V> map) {
-        if (map instanceof BTraceMap) {
+        if (isBTraceMap(map)) {
             map.clear();
         } else {
             throw new IllegalArgumentException("not a btrace map");
@@ -1019,7 +1232,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> int size(Map<K, V> map) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             return map.size();
         } else {
@@ -1028,7 +1241,7 @@ public final class BTraceRuntime  {
     }
 
     static <K, V> boolean isEmpty(Map<K, V> map) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             return map.isEmpty();
         } else {
@@ -1046,7 +1259,7 @@ public final class BTraceRuntime  {
     }
 
     static void printMap(Map map) {
-        if (map instanceof BTraceMap ||
+        if (isBTraceMap(map) ||
             map.getClass().getClassLoader() == null) {
             synchronized(map) {
                 Map<String, String> m = new HashMap<>();
@@ -1062,7 +1275,10 @@ public final class BTraceRuntime  {
     }
 
     public static <V> void push(Deque<V> queue, V value) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection) {
+            // the bounded BTrace deques drop the value when full
+            queue.offerFirst(value);
+        } else if (queue.getClass().getClassLoader() == null) {
             queue.push(value);
         } else {
             throw new IllegalArgumentException();
@@ -1070,7 +1286,9 @@ public final class BTraceRuntime  {
     }
 
     public static <V> void addLast(Deque<V> queue, V value) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection) {
+            queue.offerLast(value);
+        } else if (queue.getClass().getClassLoader() == null) {
             queue.addLast(value);
         } else {
             throw new IllegalArgumentException();
@@ -1078,7 +1296,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V peekFirst(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.peekFirst();
         } else {
             throw new IllegalArgumentException();
@@ -1086,7 +1304,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V peekLast(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.peekLast();
         } else {
             throw new IllegalArgumentException();
@@ -1094,7 +1312,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V removeLast(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.removeLast();
         } else {
             throw new IllegalArgumentException();
@@ -1102,7 +1320,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V removeFirst(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.removeFirst();
         } else {
             throw new IllegalArgumentException();
@@ -1110,7 +1328,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V poll(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.poll();
         } else {
             throw new IllegalArgumentException();
@@ -1118,7 +1336,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> V peek(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             return queue.peek();
         } else {
             throw new IllegalArgumentException();
@@ -1126,7 +1344,7 @@ public final class BTraceRuntime  {
     }
 
     public static <V> void clear(Deque<V> queue) {
-        if (queue instanceof BTraceDeque || queue.getClass().getClassLoader() == null) {
+        if (queue instanceof BTraceCollection || queue.getClass().getClassLoader() == null) {
             queue.clear();
         } else {
             throw new IllegalArgumentException();
@@ -1532,6 +1750,15 @@ public final class BTraceRuntime  {
         return buf.toString();
     }
 
+    static int stackId(int strip, int numFrames) {
+        return captureStack(strip + 1, numFrames).getId();
+    }
+
+    static String stackStr(int stackId) {
+        StackId sid = StackTable.get(stackId);
+        return sid != null ? sid.toString() : "";
+    }
+
     static void stackTrace(StackTraceElement[] st,
                            int strip, int numFrames) {
         stackTrace(null, st, strip, numFrames);
@@ -1555,6 +1782,11 @@ public final class BTraceRuntime  {
         getCurrent().send(LINE_SEPARATOR);
     }
 
+    static void printf(String format, Object[] args) {
+        getCurrent().send(new MessageCommand(messageTimestamp? System.nanoTime() : 0L,
+                                             format, args));
+    }
+
     static String property(String name) {
         return AccessController.doPrivileged(
             new GetPropertyAction(name));
@@ -1871,6 +2103,13 @@ public final class BTraceRuntime  {
         return new AggregationKey(elements);
     }
 
+    static AggregationKey newStackAggregationKey(int strip, int numFrames, Object... elements) {
+        Object[] key = new Object[elements.length + 1];
+        key[0] = captureStack(strip + 1, numFrames);
+        System.arraycopy(elements, 0, key, 1, elements.length);
+        return new AggregationKey(key);
+    }
+
     static void addToAggregation(Aggregation aggregation, long value) {
         aggregation.add(value);
     }
@@ -1926,7 +2165,7 @@ public final class BTraceRuntime  {
 
     			//Add the key to the from of the current aggregation Data
     			for (Object obj : aggKey.getElements()) {
-    				currAggregationData[aggDataIndex] = obj;
+    				currAggregationData[aggDataIndex] = Aggregation.render(obj);
     				aggDataIndex++;
     			}
 
@@ -2013,11 +2252,33 @@ public final class BTraceRuntime  {
      * if there is one.
      */
     private static BTraceRuntime getCurrent() {
-        BTraceRuntime current = rt.get().rt;
+        BTraceRuntime current = rtWrapper().rt;
         assert current != null : "BTraceRuntime is null!";
         return current;
     }
 
+    /**
+     * Captures the stack of the handler running in the current thread
+     */
+    private static StackId captureStack(int strip, int numFrames) {
+        BTraceRuntime current = rtWrapper().rt;
+        if (current != null && current.className != null) {
+            return StackTable.capture(strip + 1, numFrames, current.className, current.handlerPrefix);
+        }
+        return StackTable.capture(strip + 1, numFrames);
+    }
+
+    private SpeculativeQueueManager getSpecQueueManager() {
+        if (specQueueManager == null) {
+            synchronized (this) {
+                if (specQueueManager == null) {
+                    specQueueManager = new SpeculativeQueueManager();
+                }
+            }
+        }
+        return specQueueManager;
+    }
+
     private void initThreadPool() {
         if (threadPool == null) {
             synchronized (this) {
@@ -2272,13 +2533,50 @@ public final class BTraceRuntime  {
     }
 
     public void send(Command cmd) {
-        boolean speculated = specQueueManager.send(cmd);
+        SpeculativeQueueManager sqm = specQueueManager;
+        boolean speculated = sqm != null && sqm.send(cmd);
         if (! speculated) {
             enqueue(cmd);
         }
     }
 
+    /**
+     * Collects the commands from the per-thread buffers and the shared queue.
+     * The exit command is held back until all the commands sent before it
+     * have been delivered.
+     */
+    private void drainBuffered(final ConsumerWrapper consumer) {
+        final Command[] exitCmd = new Command[1];
+        MessagePassingQueue.Consumer<Command> exitDeferring = new MessagePassingQueue.Consumer<Command>() {
+            @Override
+            public void accept(Command cmd) {
+                if (cmd.getType() == Command.EXIT) {
+                    exitCmd[0] = cmd;
+                } else {
+                    consumer.accept(cmd);
+                }
+            }
+        };
+        int idleCntr = 0;
+        while (exitCondition.keepRunning()) {
+            int cnt = queue.drain(exitDeferring, CMD_QUEUE_LIMIT_DEFAULT) +
+                      buffers.drain(exitDeferring, exitCondition);
+            if (exitCmd[0] != null) {
+                // pick up the commands which were in flight when the exit command was sent
+                buffers.drain(exitDeferring, exitCondition);
+                queue.drain(exitDeferring, CMD_QUEUE_LIMIT_DEFAULT);
+                consumer.accept(exitCmd[0]);
+                return;
+            }
+            idleCntr = cnt > 0 ? 0 : waitStrategy.idle(idleCntr);
+        }
+    }
+
     private void enqueue(Command cmd) {
+        if (buffers != null && Thread.currentThread() != cmdThread) {
+            enqueueBuffered(cmd);
+            return;
+        }
         int backoffCntr = 0;
         while (!queue.relaxedOffer(cmd)) {
             try {
@@ -2294,6 +2592,26 @@ public final class BTraceRuntime  {
         }
     }
 
+    private void enqueueBuffered(Command cmd) {
+        int backoffCntr = 0;
+        // wait for the buffer to be drained in order to keep the per-thread command order
+        while (!buffers.offer(cmd)) {
+            if (exitting.get()) {
+                return;
+            }
+            try {
+                if (backoffCntr < 3000) {
+                    Thread.yield();
+                } else if (backoffCntr < 3100) {
+                    Thread.sleep(1);
+                } else {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {}
+            backoffCntr++;
+        }
+    }
+
     private void handleExceptionImpl(Throwable th) {
         if (currentException.get() != null) {
             return;
@@ -2624,6 +2942,9 @@ public final class BTraceRuntime  {
     }
 
     private static void setupCmdQueueParams() {
+        CMD_BUFFER_SIZE = Math.max(Integer.getInteger(CMD_BUFFER_SIZE_KEY, 0), 0);
+        CMD_BUFFER_ORDERED = Boolean.getBoolean(CMD_BUFFER_ORDERED_KEY);
+
         String maxQLen = System.getProperty(CMD_QUEUE_LIMIT_KEY, null);
         if (maxQLen == null) {
             CMD_QUEUE_LIMIT = CMD_QUEUE_LIMIT_DEFAULT;
@@ -2641,6 +2962,26 @@ public final class BTraceRuntime  {
         }
     }
 
+    private static void setupThreadSlots() {
+        int slots = THREAD_SLOTS_DEFAULT;
+        String slotsStr = System.getProperty(THREAD_SLOTS_KEY, null);
+        if (slotsStr != null) {
+            try {
+                slots = Integer.parseInt(slotsStr);
+            } catch (NumberFormatException e) {
+                warning("\"" + slotsStr + "\" is not a valid int number. " +
+                        "Using the default number of thread slots of " + THREAD_SLOTS_DEFAULT);
+            }
+        }
+        // non-positive number of slots falls back to the thread local guards only
+        rtSlots = slots > 0 ? new AtomicReferenceArray<RTWrapper>(powerOfTwo(slots)) : null;
+    }
+
+    private static int powerOfTwo(int n) {
+        int p = Integer.highestOneBit(n);
+        return p == n || p == (1 << 30) ? p : p << 1;
+    }
+
     private void debugPrint(String msg) {
         debug.debug(msg);
     }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * A deque with a separate, unsynchronized instance for each thread.
+ * <p>
+ * Meant for the single-thread push/pop usage like keeping the stack of
+ * entry timestamps for nested method calls. Such a deque can be stored
+ * in a plain static field - no {@code @TLS} is needed and no locking is done.
+ * All the operations, including {@linkplain #size()} and iteration, see
+ * the calling thread's elements only.
+ * <p>
+ * Each per-thread instance holds at most the given number of elements
+ * so unbalanced pushes can not exhaust the memory. When full, the
+ * {@code offer*} methods return {@code false} and the {@code add*} methods
+ * throw {@linkplain IllegalStateException}.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BTraceThreadDeque<V> extends AbstractCollection<V> implements Deque<V>, BTraceCollection<V>, Cloneable {
+    private final int capacity;
+    private final ThreadLocal<ArrayDeque<V>> local = new ThreadLocal<ArrayDeque<V>>() {
+        @Override
+        protected ArrayDeque<V> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    BTraceThreadDeque(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid deque capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offerFirst(V e) {
+        ArrayDeque<V> d = local.get();
+        return d.size() < capacity && d.offerFirst(e);
+    }
+
+    @Override
+    public boolean offerLast(V e) {
+        ArrayDeque<V> d = local.get();
+        return d.size() < capacity && d.offerLast(e);
+    }
+
+    @Override
+    public void addFirst(V e) {
+        if (!offerFirst(e)) {
+            throw new IllegalStateException("deque full");
+        }
+    }
+
+    @Override
+    public void addLast(V e) {
+        if (!offerLast(e)) {
+            throw new IllegalStateException("deque full");
+        }
+    }
+
+    @Override
+    public V pollFirst() {
+        return local.get().pollFirst();
+    }
+
+    @Override
+    public V pollLast() {
+        return local.get().pollLast();
+    }
+
+    @Override
+    public V removeFirst() {
+        return local.get().removeFirst();
+    }
+
+    @Override
+    public V removeLast() {
+        return local.get().removeLast();
+    }
+
+    @Override
+    public V getFirst() {
+        return local.get().getFirst();
+    }
+
+    @Override
+    public V getLast() {
+        return local.get().getLast();
+    }
+
+    @Override
+    public V peekFirst() {
+        return local.get().peekFirst();
+    }
+
+    @Override
+    public V peekLast() {
+        return local.get().peekLast();
+    }
+
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        return local.get().removeFirstOccurrence(o);
+    }
+
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        return local.get().removeLastOccurrence(o);
+    }
+
+    @Override
+    public boolean add(V e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(V e) {
+        return offerLast(e);
+    }
+
+    @Override
+    public V remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public V poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public V element() {
+        return getFirst();
+    }
+
+    @Override
+    public V peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(V e) {
+        addFirst(e);
+    }
+
+    @Override
+    public V pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return local.get().contains(o);
+    }
+
+    @Override
+    public int size() {
+        return local.get().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return local.get().isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        local.get().clear();
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return local.get().iterator();
+    }
+
+    @Override
+    public Iterator<V> descendingIterator() {
+        return local.get().descendingIterator();
+    }
+
+    @Override
+    public String toString() {
+        return local.get().toString();
+    }
+
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        return new BTraceThreadDeque<V>(capacity);
+    }
+}
@@ -45,6 +45,8 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
@@ -1242,6 +1244,82 @@ public class BTraceUtils {
         BTraceRuntime.println();
     }
 
+    /**
+     * Prints a formatted message. The format mimics
+     * {@linkplain String#format(java.lang.String, java.lang.Object[])} behaviour.
+     * <p>
+     * Unlike {@code print(strcat(...))} the message is not built by the probed thread.
+     * Only the argument references are captured and the formatting is performed
+     * later, when the message is processed by the BTrace runtime.
+     * Arguments which are not strings, boxed primitives or characters are converted
+     * to strings eagerly in order not to capture mutable objects.
+     *
+     * @param format the message format
+     * @param arg1 the format argument
+     * @since 1.3.11
+     */
+    public static void printf(String format, Object arg1) {
+        BTraceRuntime.printf(format, new Object[]{formatArg(arg1)});
+    }
+
+    /**
+     * Prints a formatted message.
+     *
+     * @param format the message format
+     * @param arg1 the first format argument
+     * @param arg2 the second format argument
+     * @see #printf(java.lang.String, java.lang.Object)
+     * @since 1.3.11
+     */
+    public static void printf(String format, Object arg1, Object arg2) {
+        BTraceRuntime.printf(format, new Object[]{formatArg(arg1), formatArg(arg2)});
+    }
+
+    /**
+     * Prints a formatted message.
+     *
+     * @param format the message format
+     * @param arg1 the first format argument
+     * @param arg2 the second format argument
+     * @param arg3 the third format argument
+     * @see #printf(java.lang.String, java.lang.Object)
+     * @since 1.3.11
+     */
+    public static void printf(String format, Object arg1, Object arg2, Object arg3) {
+        BTraceRuntime.printf(format, new Object[]{formatArg(arg1), formatArg(arg2), formatArg(arg3)});
+    }
+
+    /**
+     * Prints a formatted message.
+     *
+     * @param format the message format
+     * @param arg1 the first format argument
+     * @param arg2 the second format argument
+     * @param arg3 the third format argument
+     * @param arg4 the fourth format argument
+     * @see #printf(java.lang.String, java.lang.Object)
+     * @since 1.3.11
+     */
+    public static void printf(String format, Object arg1, Object arg2, Object arg3, Object arg4) {
+        BTraceRuntime.printf(format, new Object[]{formatArg(arg1), formatArg(arg2), formatArg(arg3), formatArg(arg4)});
+    }
+
+    /**
+     * Prints a formatted message.
+     *
+     * @param format the message format
+     * @param arg1 the first format argument
+     * @param arg2 the second format argument
+     * @param arg3 the third format argument
+     * @param arg4 the fourth format argument
+     * @param arg5 the fifth format argument
+     * @see #printf(java.lang.String, java.lang.Object)
+     * @since 1.3.11
+     */
+    public static void printf(String format, Object arg1, Object arg2, Object arg3, Object arg4, Object arg5) {
+        BTraceRuntime.printf(format, new Object[]{formatArg(arg1), formatArg(arg2), formatArg(arg3), formatArg(arg4), formatArg(arg5)});
+    }
+
     /**
      * Returns the start time of the Java virtual machine in milliseconds.
      * This method returns the approximate time when the Java virtual
@@ -1516,8 +1594,8 @@ public class BTraceUtils {
      * Pattern.compile(regex).matcher(input).matches()</pre></blockquote>
      *
      * <p>
-     * If a pattern is to be used multiple times, compiling it once and reusing
-     * it will be more efficient than invoking this method each time.
+     * The compiled patterns are cached. Literal patterns are compiled
+     * only once, when the BTrace class is loaded.
      *
      * @param  regex
      *         The expression to be compiled
@@ -3480,6 +3558,32 @@ public class BTraceUtils {
             return BTraceRuntime.stackTraceAllStr(numFrames);
         }
 
+        /**
+         * Returns the id of the current thread's stack trace.
+         * <p>
+         * The stack is interned so the same stack always gets the same id.
+         * The ids can be cheaply stored or counted (eg. in {@linkplain Collections#newIntLongMap()})
+         * and rendered only when needed by {@linkplain #stackStr(int)}.
+         *
+         * @param numFrames the number of the top frames to capture (at most 64)
+         * @return the stack id
+         * @since 1.3.11
+         */
+        public static int stackId(int numFrames) {
+            return BTraceRuntime.stackId(2, numFrames);
+        }
+
+        /**
+         * Returns the frames of an interned stack trace as a String.
+         *
+         * @param stackId the stack id obtained by {@linkplain #stackId(int)}
+         * @return the stack frames or an empty string for an unknown id
+         * @since 1.3.11
+         */
+        public static String stackStr(int stackId) {
+            return BTraceRuntime.stackStr(stackId);
+        }
+
         /**
          * Prints the stack trace of the given exception object.
          *
@@ -3757,7 +3861,7 @@ public class BTraceUtils {
          *          If the expression's syntax is invalid
          */
         public static Pattern regexp(String regex) {
-            return Pattern.compile(regex);
+            return RegexCache.pattern(regex);
         }
 
         /**
@@ -3790,7 +3894,7 @@ public class BTraceUtils {
          *          If the expression's syntax is invalid
          */
         public static Pattern regexp(String regex, int flags) {
-            return Pattern.compile(regex, flags);
+            return RegexCache.pattern(regex, flags);
         }
 
         /**
@@ -3825,8 +3929,8 @@ public class BTraceUtils {
          * Pattern.compile(regex).matcher(input).matches()</pre></blockquote>
          *
          * <p>
-         * If a pattern is to be used multiple times, compiling it once and reusing
-         * it will be more efficient than invoking this method each time.
+         * The compiled patterns are cached. Literal patterns are compiled
+         * only once, when the BTrace class is loaded.
          *
          * @param  regex
          *         The expression to be compiled
@@ -3838,7 +3942,23 @@ public class BTraceUtils {
          *          If the expression's syntax is invalid
          */
         public static boolean matches(String regex, String input) {
-            return Pattern.matches(regex, input);
+            return RegexCache.pattern(regex).matcher(input).matches();
+        }
+
+        /**
+         * @return the number of regular expressions found in the pattern cache
+         * @since 1.3.11
+         */
+        public static long regexpCacheHits() {
+            return RegexCache.getHits();
+        }
+
+        /**
+         * @return the number of regular expressions which needed to be compiled
+         * @since 1.3.11
+         */
+        public static long regexpCacheMisses() {
+            return RegexCache.getMisses();
         }
 
         /**
@@ -4624,7 +4744,7 @@ public class BTraceUtils {
          * @since 1.1
          */
         public static String timestamp(String format) {
-            return new SimpleDateFormat(format).format(Calendar.getInstance().getTime());
+            return TimestampCache.timestamp(format);
         }
 
         /**
@@ -4633,7 +4753,7 @@ public class BTraceUtils {
          * @since 1.1
          */
         public static String timestamp() {
-            return new SimpleDateFormat().format(Calendar.getInstance().getTime());
+            return TimestampCache.timestamp();
         }
     }
 
@@ -4651,10 +4771,81 @@ public class BTraceUtils {
             return BTraceRuntime.newWeakMap();
         }
 
+        /**
+         * Creates a new map holding at most {@code maxSize} entries.
+         * When full, the least recently used entry is evicted.
+         *
+         * @param maxSize the maximum number of entries
+         * @return a new bounded map
+         * @since 1.3.11
+         */
+        public static <K, V> Map<K, V> newBoundedMap(int maxSize) {
+            return BTraceRuntime.newBoundedMap(maxSize, "lru");
+        }
+
+        /**
+         * Creates a new map holding at most {@code maxSize} entries.
+         * When full, an entry is evicted according to the given policy
+         * <ul>
+         * <li>{@code "lru"} - the least recently used entry</li>
+         * <li>{@code "lfu"} - an approximately least frequently used entry;
+         * the victim is picked from a small sample of the oldest entries</li>
+         * </ul>
+         * The map is safe to be used from multiple threads.
+         *
+         * @param maxSize the maximum number of entries
+         * @param policy the eviction policy; either "lru" or "lfu"
+         * @return a new bounded map
+         * @since 1.3.11
+         */
+        public static <K, V> Map<K, V> newBoundedMap(int maxSize, String policy) {
+            return BTraceRuntime.newBoundedMap(maxSize, policy);
+        }
+
+        /**
+         * Returns the number of entries evicted from a bounded map so far.
+         *
+         * @param map the map created by {@linkplain #newBoundedMap(int, String)}
+         * @return the number of evicted entries; always 0 for unbounded maps
+         * @since 1.3.11
+         */
+        public static <K, V> long evictions(Map<K, V> map) {
+            return BTraceRuntime.evictions(map);
+        }
+
         public static <V> Deque<V> newDeque() {
             return BTraceRuntime.newDeque();
         }
 
+        /**
+         * Creates a new lock-free deque holding at most {@code capacity} elements.
+         * Use it to pass values between handlers running in different threads.
+         * {@linkplain #push(Deque, Object)} and {@linkplain #addLast(Deque, Object)}
+         * drop the value when the deque is full.
+         *
+         * @param capacity the maximum number of elements
+         * @return a new bounded deque
+         * @since 1.3.11
+         */
+        public static <V> Deque<V> newConcurrentDeque(int capacity) {
+            return BTraceRuntime.newConcurrentDeque(capacity);
+        }
+
+        /**
+         * Creates a new deque whose contents is private to each thread, eg. for
+         * keeping the entry timestamps of nested method calls. It can be used from
+         * a plain static field and requires no locking. Each thread can hold at most
+         * {@code capacity} elements; {@linkplain #push(Deque, Object)} and
+         * {@linkplain #addLast(Deque, Object)} drop the value when full.
+         *
+         * @param capacity the maximum number of elements per thread
+         * @return a new per-thread deque
+         * @since 1.3.11
+         */
+        public static <V> Deque<V> newPerThreadDeque(int capacity) {
+            return BTraceRuntime.newPerThreadDeque(capacity);
+        }
+
         public static <K,V> void putAll(Map<K, V> src, Map<K, V> dst) {
             BTraceRuntime.putAll(src, dst);
         }
@@ -4686,6 +4877,49 @@ public class BTraceUtils {
             return BTraceRuntime.put(map, key, value);
         }
 
+        /**
+         * Puts the value into the map unless the key is already mapped.
+         * This is an atomic operation.
+         *
+         * @param map the map created by {@linkplain #newHashMap()} or {@linkplain #newWeakMap()}
+         * @param key the key
+         * @param value the value to put
+         * @return the value previously associated with the key or {@code null}
+         * @since 1.3.11
+         */
+        public static <K, V> V putIfAbsent(Map<K, V> map, K key, V value) {
+            return BTraceRuntime.putIfAbsent(map, key, value);
+        }
+
+        /**
+         * Replaces the value associated with the key only if it equals to the expected one.
+         * This is an atomic operation.
+         *
+         * @param map the map created by {@linkplain #newHashMap()} or {@linkplain #newWeakMap()}
+         * @param key the key
+         * @param expected the expected current value
+         * @param value the new value
+         * @return {@code true} if the value was replaced
+         * @since 1.3.11
+         */
+        public static <K, V> boolean replace(Map<K, V> map, K key, V expected, V value) {
+            return BTraceRuntime.replace(map, key, expected, value);
+        }
+
+        /**
+         * Atomically adds the given value to the counter associated with the key.
+         * A missing counter is created with the given value.
+         *
+         * @param map the map created by {@linkplain #newHashMap()} or {@linkplain #newWeakMap()}
+         * @param key the counter key
+         * @param delta the value to add
+         * @return the updated counter value
+         * @since 1.3.11
+         */
+        public static <K> long addAndGet(Map<K, Long> map, K key, long delta) {
+            return BTraceRuntime.addAndGet(map, key, delta);
+        }
+
         // remove a particular item from a Map
         public static <K, V> V remove(Map<K, V> map, K key) {
             return BTraceRuntime.remove(map, key);
@@ -4705,6 +4939,265 @@ public class BTraceUtils {
             return BTraceRuntime.isEmpty(map);
         }
 
+        /**
+         * Creates a new concurrent map of {@code long} keys to {@code long} values.
+         * Neither the keys nor the values are boxed; use it for hot counters
+         * keyed eg. by thread ids or hash codes.
+         *
+         * @return a new primitive map
+         * @since 1.3.11
+         */
+        public static LongLongMap newLongLongMap() {
+            return new LongLongMap();
+        }
+
+        /**
+         * Creates a new concurrent map of {@code int} keys to {@code long} values.
+         * Neither the keys nor the values are boxed.
+         *
+         * @return a new primitive map
+         * @since 1.3.11
+         */
+        public static IntLongMap newIntLongMap() {
+            return new IntLongMap();
+        }
+
+        /**
+         * Creates a new concurrent map of {@linkplain String} keys to {@code long} values.
+         * The values are not boxed.
+         *
+         * @return a new primitive map
+         * @since 1.3.11
+         */
+        public static StringLongMap newStringLongMap() {
+            return new StringLongMap();
+        }
+
+        /**
+         * @return the value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long get(LongLongMap map, long key) {
+            return map.get(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static boolean containsKey(LongLongMap map, long key) {
+            return map.containsKey(key);
+        }
+
+        /**
+         * @return the previous value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long put(LongLongMap map, long key, long value) {
+            return map.put(key, value);
+        }
+
+        /**
+         * Atomically adds the given value to the one associated with the key.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long addAndGet(LongLongMap map, long key, long delta) {
+            return map.add(key, delta);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is greater.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long max(LongLongMap map, long key, long value) {
+            return map.max(key, value);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is lesser.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long min(LongLongMap map, long key, long value) {
+            return map.min(key, value);
+        }
+
+        /**
+         * @return the removed value or {@code 0}
+         * @since 1.3.11
+         */
+        public static long remove(LongLongMap map, long key) {
+            return map.remove(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static int size(LongLongMap map) {
+            return map.size();
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static void clear(LongLongMap map) {
+            map.clear();
+        }
+
+        /**
+         * @return the value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long get(IntLongMap map, int key) {
+            return map.get(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static boolean containsKey(IntLongMap map, int key) {
+            return map.containsKey(key);
+        }
+
+        /**
+         * @return the previous value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long put(IntLongMap map, int key, long value) {
+            return map.put(key, value);
+        }
+
+        /**
+         * Atomically adds the given value to the one associated with the key.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long addAndGet(IntLongMap map, int key, long delta) {
+            return map.add(key, delta);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is greater.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long max(IntLongMap map, int key, long value) {
+            return map.max(key, value);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is lesser.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long min(IntLongMap map, int key, long value) {
+            return map.min(key, value);
+        }
+
+        /**
+         * @return the removed value or {@code 0}
+         * @since 1.3.11
+         */
+        public static long remove(IntLongMap map, int key) {
+            return map.remove(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static int size(IntLongMap map) {
+            return map.size();
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static void clear(IntLongMap map) {
+            map.clear();
+        }
+
+        /**
+         * @return the value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long get(StringLongMap map, String key) {
+            return map.get(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static boolean containsKey(StringLongMap map, String key) {
+            return map.containsKey(key);
+        }
+
+        /**
+         * @return the previous value associated with the key or {@code 0}
+         * @since 1.3.11
+         */
+        public static long put(StringLongMap map, String key, long value) {
+            return map.put(key, value);
+        }
+
+        /**
+         * Atomically adds the given value to the one associated with the key.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long addAndGet(StringLongMap map, String key, long delta) {
+            return map.add(key, delta);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is greater.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long max(StringLongMap map, String key, long value) {
+            return map.max(key, value);
+        }
+
+        /**
+         * Atomically replaces the value associated with the key if the given one is lesser.
+         *
+         * @return the updated value
+         * @since 1.3.11
+         */
+        public static long min(StringLongMap map, String key, long value) {
+            return map.min(key, value);
+        }
+
+        /**
+         * @return the removed value or {@code 0}
+         * @since 1.3.11
+         */
+        public static long remove(StringLongMap map, String key) {
+            return map.remove(key);
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static int size(StringLongMap map) {
+            return map.size();
+        }
+
+        /**
+         * @since 1.3.11
+         */
+        public static void clear(StringLongMap map) {
+            map.clear();
+        }
+
         // operations on collections
         public static <E> int size(Collection<E> coll) {
            return BTraceRuntime.size(coll);
@@ -5120,6 +5613,32 @@ public class BTraceUtils {
             return BTraceRuntime.newAggregationKey(element1, element2, element3, element4);
         }
 
+        /**
+         * Creates a grouping aggregation key identifying the current stack trace.
+         * The stack is interned and only its id is used for aggregating; the stack frames
+         * are rendered when the aggregation is printed. Use it to find the callers
+         * of a hot code location.
+         *
+         * @param numFrames the number of the top frames to capture (at most 64)
+         * @since 1.3.11
+         */
+        public static AggregationKey newStackAggregationKey(int numFrames) {
+            return BTraceRuntime.newStackAggregationKey(2, numFrames);
+        }
+
+        /**
+         * Creates a composite grouping aggregation key of the current stack trace
+         * and the provided value. The value must be a String or Number type.
+         *
+         * @param numFrames the number of the top frames to capture (at most 64)
+         * @param element the second element of the composite aggregation key
+         * @see #newStackAggregationKey(int)
+         * @since 1.3.11
+         */
+        public static AggregationKey newStackAggregationKey(int numFrames, Object element) {
+            return BTraceRuntime.newStackAggregationKey(2, numFrames, element);
+        }
+
         /**
          * Adds a value to the aggregation with no grouping key. This method should be used when the aggregation
          * is to calculate only a single aggregated value.
@@ -6866,6 +7385,17 @@ public class BTraceUtils {
     }
 
     // Internals only below this point
+    private static Object formatArg(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Integer ||
+            arg instanceof Long || arg instanceof Double || arg instanceof Float ||
+            arg instanceof Short || arg instanceof Byte || arg instanceof Boolean ||
+            arg instanceof Character) {
+            // immutable values are safe to be formatted later
+            return arg;
+        }
+        return Strings.str(arg);
+    }
+
     private static void checkStatic(Field field) {
         if (! Modifier.isStatic(field.getModifiers())) {
             throw new IllegalArgumentException(field.getName() +
@@ -6873,8 +7403,35 @@ public class BTraceUtils {
         }
     }
 
+    /**
+     * The accessible fields resolved by name, per class.
+     * The fields are softly referenced so they do not prevent the classes
+     * from being unloaded.
+     */
+    private static final ClassValue<ConcurrentMap<String, Reference<Field>>> fieldCache =
+        new ClassValue<ConcurrentMap<String, Reference<Field>>>() {
+            @Override
+            protected ConcurrentMap<String, Reference<Field>> computeValue(Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
     private static Field getField(final Class clazz, final String name,
             final boolean throwError) {
+        ConcurrentMap<String, Reference<Field>> fields = fieldCache.get(clazz);
+        Reference<Field> ref = fields.get(name);
+        Field field = ref != null ? ref.get() : null;
+        if (field == null) {
+            field = lookupField(clazz, name, throwError);
+            if (field != null) {
+                fields.put(name, new SoftReference<>(field));
+            }
+        }
+        return field;
+    }
+
+    private static Field lookupField(final Class clazz, final String name,
+            final boolean throwError) {
         return AccessController.doPrivileged(new PrivilegedAction<Field>() {
             @Override
             public Field run() {
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.org.jctools.queues.MessagePassingQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread single-producer/single-consumer command ring buffers.
+ * <p>
+ * Each thread sending commands gets its own fixed-size ring buffer so the
+ * producers do not contend on a shared queue tail. The buffers are collected
+ * in round-robin fashion by a single consumer; the commands sent by one thread
+ * are always delivered in the order they were sent. Optionally, the commands are
+ * timestamped when sent and delivered globally ordered by the timestamp.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class CommandBuffers {
+    private static final class RingBuffer {
+        private final Command[] slots;
+        private final long[] stamps;
+        private final int mask;
+        private final WeakReference<Thread> owner;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        // producer local copy of the head index
+        private long headCache;
+
+        RingBuffer(int capacity, boolean stamped) {
+            slots = new Command[capacity];
+            stamps = stamped ? new long[capacity] : null;
+            mask = capacity - 1;
+            owner = new WeakReference<>(Thread.currentThread());
+        }
+
+        boolean offer(Command cmd) {
+            long t = tail.get();
+            if (t - headCache >= slots.length) {
+                headCache = head.get();
+                if (t - headCache >= slots.length) {
+                    return false;
+                }
+            }
+            int idx = (int)t & mask;
+            if (stamps != null) {
+                stamps[idx] = System.nanoTime();
+            }
+            slots[idx] = cmd;
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        boolean isEmpty() {
+            return head.get() >= tail.get();
+        }
+
+        /**
+         * @return the timestamp of the oldest command; the buffer must not be empty
+         */
+        long peekStamp() {
+            return stamps[(int)head.get() & mask];
+        }
+
+        Command poll() {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            int idx = (int)h & mask;
+            Command cmd = slots[idx];
+            slots[idx] = null;
+            head.lazySet(h + 1);
+            return cmd;
+        }
+
+        boolean isOrphaned() {
+            Thread t = owner.get();
+            return t == null || !t.isAlive();
+        }
+    }
+
+    private final int capacity;
+    private final boolean ordered;
+    private final CopyOnWriteArrayList<RingBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<RingBuffer> localBuffer = new ThreadLocal<RingBuffer>() {
+        @Override
+        protected RingBuffer initialValue() {
+            RingBuffer rb = new RingBuffer(capacity, ordered);
+            buffers.add(rb);
+            return rb;
+        }
+    };
+
+    /**
+     * @param capacity the per-thread buffer capacity; rounded up to the nearest power of two
+     * @param ordered {@code true} if the commands should be delivered globally ordered by
+     *                the time they were sent
+     */
+    CommandBuffers(int capacity, boolean ordered) {
+        int c = Integer.highestOneBit(Math.max(capacity, 2));
+        this.capacity = c == capacity ? c : c << 1;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Appends the command to the current thread's buffer.
+     * @param cmd the command
+     * @return {@code false} if the buffer is full
+     */
+    boolean offer(Command cmd) {
+        return localBuffer.get().offer(cmd);
+    }
+
+    /**
+     * Delivers the commands available in all the buffers.
+     * May be called only from the single consumer thread.
+     * @param consumer the command consumer
+     * @param exitCondition checked before each delivered command
+     * @return the number of delivered commands
+     */
+    int drain(MessagePassingQueue.Consumer<Command> consumer, MessagePassingQueue.ExitCondition exitCondition) {
+        return ordered ? drainOrdered(consumer, exitCondition) : drainRoundRobin(consumer, exitCondition);
+    }
+
+    void clear() {
+        buffers.clear();
+    }
+
+    private int drainRoundRobin(MessagePassingQueue.Consumer<Command> consumer, MessagePassingQueue.ExitCondition exitCondition) {
+        int cnt = 0;
+        for (RingBuffer rb : buffers) {
+            // limit the batch by the buffer capacity not to starve the other buffers
+            for (int i = 0; i < capacity && exitCondition.keepRunning(); i++) {
+                Command cmd = rb.poll();
+                if (cmd == null) {
+                    break;
+                }
+                consumer.accept(cmd);
+                cnt++;
+            }
+            releaseOrphaned(rb);
+        }
+        return cnt;
+    }
+
+    private int drainOrdered(MessagePassingQueue.Consumer<Command> consumer, MessagePassingQueue.ExitCondition exitCondition) {
+        int cnt = 0;
+        // limit the batch not to starve the other command sources
+        int limit = capacity * Math.max(buffers.size(), 1);
+        while (cnt < limit && exitCondition.keepRunning()) {
+            RingBuffer oldest = null;
+            long oldestStamp = 0;
+            for (RingBuffer rb : buffers) {
+                if (!rb.isEmpty()) {
+                    long stamp = rb.peekStamp();
+                    if (oldest == null || stamp - oldestStamp < 0) {
+                        oldest = rb;
+                        oldestStamp = stamp;
+                    }
+                } else {
+                    releaseOrphaned(rb);
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            consumer.accept(oldest.poll());
+            cnt++;
+        }
+        return cnt;
+    }
+
+    private void releaseOrphaned(RingBuffer rb) {
+        // a terminated thread will not produce any more commands
+        if (rb.isOrphaned() && rb.isEmpty()) {
+            buffers.remove(rb);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+/**
+ * A concurrent map of <b>int</b> keys to <b>long</b> values.
+ * Neither the keys nor the values are boxed. A missing key reads as {@code 0}.
+ *
+ * @author Jaroslav Bachorik
+ * @see LongLongMap
+ */
+public final class IntLongMap {
+    private final LongLongMap map = new LongLongMap();
+
+    IntLongMap() {}
+
+    public long get(int key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(int key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * @return the previous value or {@code 0}
+     */
+    public long put(int key, long value) {
+        return map.put(key, value);
+    }
+
+    /**
+     * @return the updated value
+     */
+    public long add(int key, long delta) {
+        return map.add(key, delta);
+    }
+
+    /**
+     * @return the greater of the current and the given value
+     */
+    public long max(int key, long value) {
+        return map.max(key, value);
+    }
+
+    /**
+     * @return the lesser of the current and the given value
+     */
+    public long min(int key, long value) {
+        return map.min(key, value);
+    }
+
+    /**
+     * @return the removed value or {@code 0}
+     */
+    public long remove(int key) {
+        return map.remove(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public String toString() {
+        return map.toString();
+    }
+
+    @Override
+    protected Object clone() {
+        return new IntLongMap();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+/**
+ * A concurrent map of <b>long</b> keys to <b>long</b> values.
+ * <p>
+ * Unlike the maps created by {@linkplain BTraceUtils.Collections#newHashMap()}
+ * neither the keys nor the values are boxed. The entries are kept in open
+ * addressing tables split into independently locked segments.
+ * A missing key reads as {@code 0}.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class LongLongMap {
+    static final int PUT = 0;
+    static final int ADD = 1;
+    static final int MAX = 2;
+    static final int MIN = 3;
+
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Segment {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private boolean[] used = new boolean[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized long get(long key, int h) {
+            int i = find(key, h);
+            return i >= 0 ? values[i] : 0L;
+        }
+
+        synchronized boolean containsKey(long key, int h) {
+            return find(key, h) >= 0;
+        }
+
+        synchronized long update(long key, int h, long value, int op) {
+            int i = find(key, h);
+            if (i >= 0) {
+                long prev = values[i];
+                values[i] = apply(op, prev, value);
+                return op == PUT ? prev : values[i];
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                rehash();
+                i = find(key, h);
+            }
+            i = ~i;
+            keys[i] = key;
+            values[i] = value;
+            used[i] = true;
+            size++;
+            return op == PUT ? 0L : value;
+        }
+
+        synchronized long remove(long key, int h) {
+            int i = find(key, h);
+            if (i < 0) {
+                return 0L;
+            }
+            long prev = values[i];
+            delete(i);
+            return prev;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            keys = new long[INITIAL_CAPACITY];
+            values = new long[INITIAL_CAPACITY];
+            used = new boolean[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        synchronized void append(StringBuilder sb) {
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    if (sb.length() > 1) {
+                        sb.append(", ");
+                    }
+                    sb.append(keys[i]).append('=').append(values[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the slot index of the key or the inverted index of
+         *         the free slot the key would be stored in
+         */
+        private int find(long key, int h) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (used[i]) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return ~i;
+        }
+
+        /**
+         * Removes the entry and shifts back the entries of the same
+         * probe sequence so no tombstones are needed
+         */
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (!used[j]) {
+                    break;
+                }
+                int k = hash(keys[j]) & mask;
+                if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                    // the entry is reachable from its home slot
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            used[i] = false;
+            size--;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int j = ~find(oldKeys[i], hash(oldKeys[i]));
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                    used[j] = true;
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    LongLongMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public long get(long key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    public boolean containsKey(long key) {
+        int h = hash(key);
+        return segmentFor(h).containsKey(key, h);
+    }
+
+    /**
+     * @return the previous value or {@code 0}
+     */
+    public long put(long key, long value) {
+        int h = hash(key);
+        return segmentFor(h).update(key, h, value, PUT);
+    }
+
+    /**
+     * @return the updated value
+     */
+    public long add(long key, long delta) {
+        int h = hash(key);
+        return segmentFor(h).update(key, h, delta, ADD);
+    }
+
+    /**
+     * @return the greater of the current and the given value
+     */
+    public long max(long key, long value) {
+        int h = hash(key);
+        return segmentFor(h).update(key, h, value, MAX);
+    }
+
+    /**
+     * @return the lesser of the current and the given value
+     */
+    public long min(long key, long value) {
+        int h = hash(key);
+        return segmentFor(h).update(key, h, value, MIN);
+    }
+
+    /**
+     * @return the removed value or {@code 0}
+     */
+    public long remove(long key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Segment s : segments) {
+            s.append(sb);
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    protected Object clone() {
+        return new LongLongMap();
+    }
+
+    static long apply(int op, long current, long value) {
+        switch (op) {
+            case ADD: return current + value;
+            case MAX: return Math.max(current, value);
+            case MIN: return Math.min(current, value);
+            default: return value;
+        }
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private Segment segmentFor(int h) {
+        // the high bits pick the segment, the low bits the slot
+        return segments[(h >>> 28) & (SEGMENTS - 1)];
+    }
+}
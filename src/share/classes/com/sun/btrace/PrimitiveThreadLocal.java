@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+/**
+ * Per-thread holders of primitive values backing the primitive {@code @TLS} fields.
+ * <p>
+ * Each thread gets its own mutable one-element array so reading and updating
+ * the value does not require boxing it.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class PrimitiveThreadLocal {
+    private PrimitiveThreadLocal() {}
+
+    /**
+     * Holds {@code int} values; also used for {@code boolean}, {@code byte},
+     * {@code char} and {@code short} fields
+     */
+    public static final class OfInt extends ThreadLocal<int[]> {
+        private final int initValue;
+
+        OfInt(int initValue) {
+            this.initValue = initValue;
+        }
+
+        @Override
+        protected int[] initialValue() {
+            return new int[]{initValue};
+        }
+
+        public int getValue() {
+            return get()[0];
+        }
+
+        public void setValue(int value) {
+            get()[0] = value;
+        }
+    }
+
+    public static final class OfLong extends ThreadLocal<long[]> {
+        private final long initValue;
+
+        OfLong(long initValue) {
+            this.initValue = initValue;
+        }
+
+        @Override
+        protected long[] initialValue() {
+            return new long[]{initValue};
+        }
+
+        public long getValue() {
+            return get()[0];
+        }
+
+        public void setValue(long value) {
+            get()[0] = value;
+        }
+    }
+
+    public static final class OfFloat extends ThreadLocal<float[]> {
+        private final float initValue;
+
+        OfFloat(float initValue) {
+            this.initValue = initValue;
+        }
+
+        @Override
+        protected float[] initialValue() {
+            return new float[]{initValue};
+        }
+
+        public float getValue() {
+            return get()[0];
+        }
+
+        public void setValue(float value) {
+            get()[0] = value;
+        }
+    }
+
+    public static final class OfDouble extends ThreadLocal<double[]> {
+        private final double initValue;
+
+        OfDouble(double initValue) {
+            this.initValue = initValue;
+        }
+
+        @Override
+        protected double[] initialValue() {
+            return new double[]{initValue};
+        }
+
+        public double getValue() {
+            return get()[0];
+        }
+
+        public void setValue(double value) {
+            get()[0] = value;
+        }
+    }
+}
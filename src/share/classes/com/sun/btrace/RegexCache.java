@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the compiled regular expressions used by {@linkplain BTraceUtils.Strings}.
+ * <p>
+ * The cache holds at most {@linkplain #MAX_PATTERNS} patterns; the least
+ * recently used ones are evicted. The patterns are immutable and can be
+ * safely shared by all the probe threads.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class RegexCache {
+    static final int MAX_PATTERNS = 256;
+
+    private static final Map<Key, Pattern> patterns =
+        new BTraceBoundedMap<>(MAX_PATTERNS, BTraceBoundedMap.Policy.LRU);
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private RegexCache() {}
+
+    static Pattern pattern(String regex) {
+        return pattern(regex, 0);
+    }
+
+    static Pattern pattern(String regex, int flags) {
+        Key key = new Key(regex, flags);
+        Pattern p = patterns.get(key);
+        if (p != null) {
+            hits.incrementAndGet();
+            return p;
+        }
+        misses.incrementAndGet();
+        // racing threads may compile the same pattern; the result is the same
+        p = Pattern.compile(regex, flags);
+        patterns.put(key, p);
+        return p;
+    }
+
+    static long getHits() {
+        return hits.get();
+    }
+
+    static long getMisses() {
+        return misses.get();
+    }
+
+    private static final class Key {
+        private final String regex;
+        private final int flags;
+
+        Key(String regex, int flags) {
+            this.regex = regex;
+            this.flags = flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * regex.hashCode() + flags;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return flags == other.flags && regex.equals(other.regex);
+        }
+    }
+}
@@ -37,26 +37,38 @@ final public class SharedSettings {
     public static final String UNSAFE_KEY = "unsafe";
     public static final String TRUSTED_KEY = "trusted";
     public static final String TRACK_RETRANSFORMS_KEY = "trackRetransforms";
+    public static final String INLINE_HANDLERS_KEY = "inlineHandlers";
     public static final String PROBE_DESC_PATH_KEY = "probeDescPath";
     public static final String STATSD_HOST_KEY = "statsdHost";
     public static final String STATSD_PORT_KEY = "statsdPort";
+    public static final String STATSD_FLUSH_INTERVAL_KEY = "statsdFlushInterval";
     public static final String FILEROLL_INTERVAL_KEY = "fileRollMilliseconds";
     public static final String FILEROLL_MAXROLLS_KEY = "fileRollMaxRolls";
+    public static final String FILEROLL_BYTES_KEY = "fileRollBytes";
+    public static final String FILEROLL_COMPRESS_KEY = "fileRollCompress";
+    public static final String FILEROLL_MAXBYTES_KEY = "fileRollMaxBytes";
     public static final String OUTPUT_FILE_KEY = "scriptOutputFile";
+    public static final String OUTPUT_BINARY_KEY = "scriptOutputBinary";
 
     public static final SharedSettings GLOBAL = new SharedSettings();
 
     private boolean debug = false;
     private boolean trusted = false;
     private boolean trackRetransforms = false;
+    private boolean inlineHandlers = false;
     private boolean retransformStartup = true;
     private String dumpDir = null;
     private String probeDescPath = ".";
     private String statsdHost = null;
     private int statsdPort = 8125; // default statsd port
+    private int statsdFlushInterval = 0; // aggregate metrics for the given ms; 0 (default) disables aggregation
     private int fileRollMilliseconds = Integer.MIN_VALUE;
     private int fileRollMaxRolls = 5; // default hold max 100 logs
+    private long fileRollBytes = 0; // roll when the file reaches the size; 0 disables
+    private boolean fileRollCompress = false; // gzip the rolled files
+    private long fileRollMaxBytes = 0; // max total size of the rolled files; 0 means unlimited
     private String outputFile;
+    private boolean outputBinary = false; // write the compact binary output format
     private String outputDir;
     private String clientName;
 
@@ -69,6 +81,10 @@ final public class SharedSettings {
         if (b != null) {
             trackRetransforms = b;
         }
+        b = (Boolean)params.get(INLINE_HANDLERS_KEY);
+        if (b != null) {
+            inlineHandlers = b;
+        }
         b = (Boolean)params.get(UNSAFE_KEY);
         if (b != null) {
             trusted = b;
@@ -93,6 +109,10 @@ final public class SharedSettings {
         if (i != null) {
             statsdPort = i;
         }
+        i = (Integer)params.get(STATSD_FLUSH_INTERVAL_KEY);
+        if (i != null) {
+            statsdFlushInterval = i;
+        }
         i = (Integer)params.get(FILEROLL_INTERVAL_KEY);
         if (i != null) {
             fileRollMilliseconds = i;
@@ -101,10 +121,26 @@ final public class SharedSettings {
         if (i != null) {
             fileRollMaxRolls = i;
         }
+        Number n = (Number)params.get(FILEROLL_BYTES_KEY);
+        if (n != null) {
+            fileRollBytes = n.longValue();
+        }
+        b = (Boolean)params.get(FILEROLL_COMPRESS_KEY);
+        if (b != null) {
+            fileRollCompress = b;
+        }
+        n = (Number)params.get(FILEROLL_MAXBYTES_KEY);
+        if (n != null) {
+            fileRollMaxBytes = n.longValue();
+        }
         s = (String)params.get(OUTPUT_FILE_KEY);
         if (s != null && !s.isEmpty()) {
             outputFile = s;
         }
+        b = (Boolean)params.get(OUTPUT_BINARY_KEY);
+        if (b != null) {
+            outputBinary = b;
+        }
     }
 
     public void from(SharedSettings other) {
@@ -113,12 +149,18 @@ final public class SharedSettings {
         dumpDir = other.dumpDir;
         fileRollMilliseconds = other.fileRollMilliseconds;
         fileRollMaxRolls = other.fileRollMaxRolls;
+        fileRollBytes = other.fileRollBytes;
+        fileRollCompress = other.fileRollCompress;
+        fileRollMaxBytes = other.fileRollMaxBytes;
+        inlineHandlers = other.inlineHandlers;
         outputFile = other.outputFile;
+        outputBinary = other.outputBinary;
         outputDir = other.outputDir;
         probeDescPath = other.probeDescPath;
         retransformStartup = other.retransformStartup;
         statsdHost = other.statsdHost;
         statsdPort = other.statsdPort;
+        statsdFlushInterval = other.statsdFlushInterval;
         trackRetransforms = other.trackRetransforms;
         trusted = other.trusted;
     }
@@ -151,6 +193,10 @@ final public class SharedSettings {
         return trackRetransforms;
     }
 
+    public boolean isInlineHandlers() {
+        return inlineHandlers;
+    }
+
     public String getProbeDescPath() {
         return probeDescPath;
     }
@@ -171,6 +217,10 @@ final public class SharedSettings {
         this.trackRetransforms = value;
     }
 
+    public void setInlineHandlers(boolean value) {
+        inlineHandlers = value;
+    }
+
     public void setProbeDescPath(String probeDescPath) {
         this.probeDescPath = probeDescPath;
     }
@@ -191,6 +241,14 @@ final public class SharedSettings {
         this.statsdPort = statsdPort;
     }
 
+    public int getStatsdFlushInterval() {
+        return statsdFlushInterval;
+    }
+
+    public void setStatsdFlushInterval(int statsdFlushInterval) {
+        this.statsdFlushInterval = statsdFlushInterval;
+    }
+
     public int getFileRollMilliseconds() {
         return fileRollMilliseconds;
     }
@@ -207,6 +265,49 @@ final public class SharedSettings {
         this.fileRollMaxRolls = fileRollMaxRolls;
     }
 
+    public long getFileRollBytes() {
+        return fileRollBytes;
+    }
+
+    public void setFileRollBytes(long fileRollBytes) {
+        this.fileRollBytes = fileRollBytes;
+    }
+
+    public boolean isFileRollCompress() {
+        return fileRollCompress;
+    }
+
+    public void setFileRollCompress(boolean fileRollCompress) {
+        this.fileRollCompress = fileRollCompress;
+    }
+
+    public long getFileRollMaxBytes() {
+        return fileRollMaxBytes;
+    }
+
+    public void setFileRollMaxBytes(long fileRollMaxBytes) {
+        this.fileRollMaxBytes = fileRollMaxBytes;
+    }
+
+    /**
+     * @return {@code true} if the output file is written in the compact binary
+     *         format readable by {@linkplain com.sun.btrace.comm.BinaryTraceReader}
+     */
+    public boolean isOutputBinary() {
+        return outputBinary;
+    }
+
+    public void setOutputBinary(boolean outputBinary) {
+        this.outputBinary = outputBinary;
+    }
+
+    /**
+     * @return {@code true} if the output file is to be rolled by time or size
+     */
+    public boolean isFileRolling() {
+        return fileRollMilliseconds > 0 || fileRollBytes > 0;
+    }
+
     public void setRetransformStartup(boolean val) {
         this.retransformStartup = val;
     }
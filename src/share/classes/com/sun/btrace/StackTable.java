@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import com.sun.btrace.aggregation.StackId;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import sun.misc.JavaLangAccess;
+import sun.misc.SharedSecrets;
+
+/**
+ * Interns the captured stack traces and assigns them a numeric id.
+ * <p>
+ * Only the requested number of top frames is materialized and kept.
+ * Counting by the stack id is cheap and the frames are rendered only
+ * when the results are printed.
+ * <p>
+ * The table holds at most {@linkplain #MAX_STACKS} distinct stacks. When full,
+ * all new stacks are reported as {@linkplain #OVERFLOW}.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StackTable {
+    static final int MAX_STACKS = 65536;
+    static final int MAX_DEPTH = 64;
+
+    static final StackId OVERFLOW = new StackId(0, new StackTraceElement[] {
+        new StackTraceElement("<stack table full>", "", null, -1)
+    });
+
+    private static final JavaLangAccess JLA = SharedSecrets.getJavaLangAccess();
+
+    private static final ConcurrentMap<Frames, StackId> stacks = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, StackId> ids = new ConcurrentHashMap<>();
+    private static final AtomicInteger lastId = new AtomicInteger();
+
+    static {
+        ids.put(OVERFLOW.getId(), OVERFLOW);
+    }
+
+    /**
+     * The interning key; compares the frames by value
+     */
+    private static final class Frames {
+        private final StackTraceElement[] frames;
+        private final int hash;
+
+        Frames(StackTraceElement[] frames) {
+            this.frames = frames;
+            this.hash = Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Frames && Arrays.equals(frames, ((Frames)obj).frames);
+        }
+    }
+
+    private StackTable() {}
+
+    /**
+     * Captures and interns the current thread's stack
+     * @param strip the number of the caller's frames to skip
+     * @param depth the maximum number of frames to keep; capped at {@linkplain #MAX_DEPTH}
+     * @return the interned stack
+     */
+    static StackId capture(int strip, int depth) {
+        // skip this method's frame too
+        return capture(new Throwable(), strip + 1, depth);
+    }
+
+    /**
+     * Captures and interns the current thread's stack
+     * @param strip the number of the caller's frames to skip, including the handler frame
+     * @param depth the maximum number of frames to keep; capped at {@linkplain #MAX_DEPTH}
+     * @param traceClass the trace class the running handler belongs to
+     * @param handlerPrefix the name prefix of the handler methods copied to the probed classes;
+     *                      when the last frame to skip is not a handler method the handler body
+     *                      was inlined in the probed method and the frame is kept
+     * @return the interned stack
+     */
+    static StackId capture(int strip, int depth, String traceClass, String handlerPrefix) {
+        Throwable t = new Throwable();
+        // skip this method's frame too
+        int from = strip + 1;
+        if (from > 1 && from <= JLA.getStackTraceDepth(t) &&
+            !isHandler(JLA.getStackTraceElement(t, from - 1), traceClass, handlerPrefix)) {
+            from--;
+        }
+        return capture(t, from, depth);
+    }
+
+    private static StackId capture(Throwable t, int from, int depth) {
+        int total = JLA.getStackTraceDepth(t);
+        from = Math.min(from, total);
+        int cnt = Math.min(total - from, depth > 0 && depth < MAX_DEPTH ? depth : MAX_DEPTH);
+        StackTraceElement[] frames = new StackTraceElement[cnt];
+        for (int i = 0; i < cnt; i++) {
+            frames[i] = JLA.getStackTraceElement(t, from + i);
+        }
+        return intern(frames);
+    }
+
+    private static boolean isHandler(StackTraceElement frame, String traceClass, String handlerPrefix) {
+        // either a handler copied to the probed class or one running in the trace class (eg. @OnTimer)
+        return frame.getMethodName().startsWith(handlerPrefix) || frame.getClassName().equals(traceClass);
+    }
+
+    static StackId intern(StackTraceElement[] frames) {
+        Frames key = new Frames(frames);
+        StackId sid = stacks.get(key);
+        if (sid == null) {
+            if (stacks.size() >= MAX_STACKS) {
+                return OVERFLOW;
+            }
+            StackId created = new StackId(lastId.incrementAndGet(), frames);
+            // the id must be resolvable as soon as the stack is published
+            ids.put(created.getId(), created);
+            sid = stacks.putIfAbsent(key, created);
+            if (sid == null) {
+                sid = created;
+            } else {
+                ids.remove(created.getId());
+            }
+        }
+        return sid;
+    }
+
+    /**
+     * @param id the stack id
+     * @return the interned stack or {@code null} if the id is unknown
+     */
+    static StackId get(int id) {
+        return ids.get(id);
+    }
+}
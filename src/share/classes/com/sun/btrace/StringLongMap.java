@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import static com.sun.btrace.LongLongMap.*;
+
+/**
+ * A concurrent map of {@linkplain String} keys to <b>long</b> values.
+ * <p>
+ * The values are not boxed. The entries are kept in open addressing tables
+ * split into independently locked segments. A missing key reads as {@code 0}.
+ * {@code null} is a valid key.
+ *
+ * @author Jaroslav Bachorik
+ * @see LongLongMap
+ */
+public final class StringLongMap {
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // masks the null key; empty slots are null
+    private static final Object NULL_KEY = new Object();
+
+    private static final class Segment {
+        private Object[] keys = new Object[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized long get(Object key, int h) {
+            int i = find(key, h);
+            return i >= 0 ? values[i] : 0L;
+        }
+
+        synchronized boolean containsKey(Object key, int h) {
+            return find(key, h) >= 0;
+        }
+
+        synchronized long update(Object key, int h, long value, int op) {
+            int i = find(key, h);
+            if (i >= 0) {
+                long prev = values[i];
+                values[i] = apply(op, prev, value);
+                return op == PUT ? prev : values[i];
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                rehash();
+                i = find(key, h);
+            }
+            i = ~i;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            return op == PUT ? 0L : value;
+        }
+
+        synchronized long remove(Object key, int h) {
+            int i = find(key, h);
+            if (i < 0) {
+                return 0L;
+            }
+            long prev = values[i];
+            delete(i);
+            return prev;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            keys = new Object[INITIAL_CAPACITY];
+            values = new long[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        synchronized void append(StringBuilder sb) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    if (sb.length() > 1) {
+                        sb.append(", ");
+                    }
+                    sb.append(keys[i] == NULL_KEY ? null : keys[i]).append('=').append(values[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the slot index of the key or the inverted index of
+         *         the free slot the key would be stored in
+         */
+        private int find(Object key, int h) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            Object k;
+            while ((k = keys[i]) != null) {
+                if (k == key || k.equals(key)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return ~i;
+        }
+
+        /**
+         * Removes the entry and shifts back the entries of the same
+         * probe sequence so no tombstones are needed
+         */
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    break;
+                }
+                int k = hash(keys[j]) & mask;
+                if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+                    // the entry is reachable from its home slot
+                    continue;
+                }
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = null;
+            size--;
+        }
+
+        private void rehash() {
+            Object[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new Object[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int j = ~find(oldKeys[i], hash(oldKeys[i]));
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    StringLongMap() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public long get(String key) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).get(k, h);
+    }
+
+    public boolean containsKey(String key) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).containsKey(k, h);
+    }
+
+    /**
+     * @return the previous value or {@code 0}
+     */
+    public long put(String key, long value) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).update(k, h, value, PUT);
+    }
+
+    /**
+     * @return the updated value
+     */
+    public long add(String key, long delta) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).update(k, h, delta, ADD);
+    }
+
+    /**
+     * @return the greater of the current and the given value
+     */
+    public long max(String key, long value) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).update(k, h, value, MAX);
+    }
+
+    /**
+     * @return the lesser of the current and the given value
+     */
+    public long min(String key, long value) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).update(k, h, value, MIN);
+    }
+
+    /**
+     * @return the removed value or {@code 0}
+     */
+    public long remove(String key) {
+        Object k = mask(key);
+        int h = hash(k);
+        return segmentFor(h).remove(k, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Segment s : segments) {
+            s.append(sb);
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    protected Object clone() {
+        return new StringLongMap();
+    }
+
+    private static Object mask(String key) {
+        return key != null ? key : NULL_KEY;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int h) {
+        // the high bits pick the segment, the low bits the slot
+        return segments[(h >>> 28) & (SEGMENTS - 1)];
+    }
+}
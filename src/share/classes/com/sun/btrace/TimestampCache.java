@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Formats the current date and time for {@linkplain BTraceUtils.Time#timestamp(String)}.
+ * <p>
+ * One formatter is kept for each format and the last formatted value is
+ * reused until the clock moves to the next second (or millisecond for the
+ * formats showing milliseconds). Timestamping the output of a hot probe
+ * thus mostly returns an already formatted string.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class TimestampCache {
+    // the number of cached formats; other formats are not cached
+    static final int MAX_FORMATS = 64;
+
+    private static final ConcurrentMap<String, TimestampCache> caches = new ConcurrentHashMap<>();
+    private static final TimestampCache defaultCache = new TimestampCache(new SimpleDateFormat(), 1000);
+
+    private static final class Stamp {
+        private final long tick;
+        private final String text;
+
+        Stamp(long tick, String text) {
+            this.tick = tick;
+            this.text = text;
+        }
+    }
+
+    private final SimpleDateFormat formatter;
+    private final long resolution;
+    private volatile Stamp stamp = new Stamp(Long.MIN_VALUE, null);
+
+    private TimestampCache(SimpleDateFormat formatter, long resolution) {
+        this.formatter = formatter;
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param format the {@linkplain SimpleDateFormat} pattern
+     * @return the current time in the given format
+     */
+    static String timestamp(String format) {
+        return timestamp(format, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the current time in the default format
+     */
+    static String timestamp() {
+        return defaultCache.format(System.currentTimeMillis());
+    }
+
+    static String timestamp(String format, long time) {
+        TimestampCache cache = caches.get(format);
+        if (cache == null) {
+            SimpleDateFormat formatter = new SimpleDateFormat(format);
+            if (caches.size() >= MAX_FORMATS) {
+                return formatter.format(new Date(time));
+            }
+            cache = new TimestampCache(formatter, hasMillis(format) ? 1 : 1000);
+            TimestampCache prev = caches.putIfAbsent(format, cache);
+            if (prev != null) {
+                cache = prev;
+            }
+        }
+        return cache.format(time);
+    }
+
+    private String format(long time) {
+        long tick = time / resolution;
+        Stamp s = stamp;
+        if (s.tick == tick) {
+            return s.text;
+        }
+        String text;
+        // SimpleDateFormat is not thread safe; it is used once per tick only
+        synchronized (formatter) {
+            text = formatter.format(new Date(time));
+        }
+        stamp = new Stamp(tick, text);
+        return text;
+    }
+
+    /**
+     * Checks for the millisecond pattern letter outside of the quoted text
+     */
+    static boolean hasMillis(String format) {
+        boolean quoted = false;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == 'S' && !quoted) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
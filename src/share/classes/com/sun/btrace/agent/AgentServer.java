@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.agent;
+
+import com.sun.btrace.BTraceRuntime;
+import com.sun.btrace.DebugSupport;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The agent server accepting the remote clients.
+ * <p>
+ * A single selector thread accepts the connections and watches the connected
+ * clients for incoming data. The handshakes and the reading of the incoming
+ * commands are run on a small pool of worker threads so a slow client does
+ * not hold off the others.
+ * <p>
+ * The client channels stay in the non-blocking mode all the time; the
+ * {@linkplain #inputStream(SocketChannel) input} and
+ * {@linkplain #outputStream(SocketChannel) output} streams emulate
+ * blocking I/O on top of them for the object stream based wire protocol.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class AgentServer {
+    /**
+     * A connected client
+     */
+    interface Connection {
+        /**
+         * Called on a worker thread when there is data available to read
+         * @return {@code false} if the connection is finished and should
+         *         not be watched any more
+         * @throws IOException
+         */
+        boolean onReadable() throws IOException;
+
+        /**
+         * Called when the connection is finished or has failed
+         */
+        void onClose();
+    }
+
+    /**
+     * Performs the handshake with a newly accepted client
+     */
+    interface Acceptor {
+        /**
+         * Called on a worker thread for each accepted channel
+         * @param ch the accepted channel in the non-blocking mode
+         * @return the connection or {@code null} if the client was rejected
+         * @throws IOException
+         */
+        Connection accept(SocketChannel ch) throws IOException;
+    }
+
+    static final int DEFAULT_WORKERS = 4;
+    /**
+     * The time to wait for the rest of a partially received command
+     */
+    static final int READ_TIMEOUT = 30000;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Acceptor acceptor;
+    private final DebugSupport debug;
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+    AgentServer(int port, int workers, Acceptor acceptor, DebugSupport debug) throws IOException {
+        this.acceptor = acceptor;
+        this.debug = debug;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), new ThreadFactory() {
+            private final AtomicInteger cnt = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        BTraceRuntime.enter();
+                        r.run();
+                    }
+                }, "BTrace Agent Server Worker " + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the selector loop until the server is closed
+     */
+    void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Registration r;
+                while ((r = pending.poll()) != null) {
+                    r.arm(selector);
+                }
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel ch = server.accept();
+                        if (ch != null) {
+                            ch.configureBlocking(false);
+                            workers.submit(new Handshake(ch));
+                        }
+                    } else if (key.isReadable()) {
+                        // not interested until the worker has read the data
+                        key.interestOps(0);
+                        workers.submit((Registration)key.attachment());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!selector.isOpen()) {
+                    break;
+                }
+                debug.debug(e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new clients; the already connected clients are not
+     * affected
+     */
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            debug.debug(e);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            debug.debug(e);
+        }
+        workers.shutdown();
+    }
+
+    private void watch(Registration r) {
+        pending.add(r);
+        selector.wakeup();
+    }
+
+    private final class Handshake implements Runnable {
+        private final SocketChannel ch;
+
+        Handshake(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                debug.debug("client accepted " + ch);
+                Connection c = acceptor.accept(ch);
+                if (c != null) {
+                    watch(new Registration(ch, c));
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                debug.debug(e);
+            }
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private final class Registration implements Runnable {
+        private final SocketChannel ch;
+        private final Connection conn;
+        private SelectionKey key;
+
+        Registration(SocketChannel ch, Connection conn) {
+            this.ch = ch;
+            this.conn = conn;
+        }
+
+        /**
+         * Starts watching the channel again; called from the selector thread
+         */
+        void arm(Selector selector) throws IOException {
+            if (!ch.isOpen()) {
+                return;
+            }
+            if (key == null) {
+                key = ch.register(selector, SelectionKey.OP_READ, this);
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean open = false;
+            try {
+                open = conn.onReadable();
+            } catch (IOException | RuntimeException e) {
+                debug.debug(e);
+            }
+            if (open && ch.isOpen()) {
+                watch(this);
+            } else {
+                if (key != null) {
+                    key.cancel();
+                }
+                conn.onClose();
+            }
+        }
+    }
+
+    /**
+     * @param ch a non-blocking channel
+     * @return an input stream blocking until some data is available or
+     *         {@linkplain #READ_TIMEOUT} expires
+     */
+    static InputStream inputStream(SocketChannel ch) {
+        return new ChannelInput(ch);
+    }
+
+    /**
+     * @param ch a non-blocking channel
+     * @return an output stream blocking until all the data is written
+     */
+    static OutputStream outputStream(SocketChannel ch) {
+        return new ChannelOutput(ch);
+    }
+
+    /**
+     * Waits for the channel to become ready for the given operation using
+     * a private selector
+     */
+    private static final class Waiter {
+        private final SocketChannel ch;
+        private final int op;
+        private Selector selector;
+
+        Waiter(SocketChannel ch, int op) {
+            this.ch = ch;
+            this.op = op;
+        }
+
+        boolean await(long timeout) throws IOException {
+            if (selector == null) {
+                selector = Selector.open();
+                ch.register(selector, op);
+            }
+            boolean ready = selector.select(timeout) > 0;
+            selector.selectedKeys().clear();
+            return ready;
+        }
+
+        void close() throws IOException {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    private static final class ChannelInput extends InputStream {
+        private final SocketChannel ch;
+        private final Waiter waiter;
+
+        ChannelInput(SocketChannel ch) {
+            this.ch = ch;
+            this.waiter = new Waiter(ch, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (true) {
+                int n = ch.read(buf);
+                if (n != 0) {
+                    return n;
+                }
+                if (!waiter.await(READ_TIMEOUT)) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            waiter.close();
+            ch.close();
+        }
+    }
+
+    private static final class ChannelOutput extends OutputStream {
+        private final SocketChannel ch;
+        private final Waiter waiter;
+
+        ChannelOutput(SocketChannel ch) {
+            this.ch = ch;
+            this.waiter = new Waiter(ch, SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                if (ch.write(buf) == 0) {
+                    // bounded wait; a closed channel fails the next write
+                    waiter.await(1000);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            waiter.close();
+            ch.close();
+        }
+    }
+}
@@ -38,17 +38,22 @@ import com.sun.btrace.org.objectweb.asm.ClassWriter;
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.BTraceUtils;
 import com.sun.btrace.CommandListener;
+import com.sun.btrace.comm.BinaryTraceWriter;
+import com.sun.btrace.comm.Command;
 import com.sun.btrace.comm.ErrorCommand;
 import com.sun.btrace.comm.ExitCommand;
 import com.sun.btrace.comm.InstrumentCommand;
 import com.sun.btrace.comm.OkayCommand;
+import com.sun.btrace.comm.PrintableCommand;
 import com.sun.btrace.comm.RenameCommand;
 import com.sun.btrace.PerfReader;
 import com.sun.btrace.comm.RetransformationStartNotification;
 import com.sun.btrace.runtime.*;
 import com.sun.btrace.util.templates.impl.MethodTrackingExpander;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.lang.annotation.Annotation;
 import java.lang.instrument.Instrumentation;
@@ -56,8 +61,11 @@ import java.lang.instrument.UnmodifiableClassException;
 import java.lang.management.ManagementFactory;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -74,8 +82,18 @@ import sun.reflect.annotation.AnnotationType;
  * @author A. Sundararajan
  * @author J. Bachorik (j.bachorik@btrace.io)
  */
-abstract class Client implements CommandListener {
+abstract class Client implements CommandListener, Retransformer.Target {
+    /**
+     * Write the file output asynchronously; on by default
+     */
+    static final String ASYNC_OUTPUT_KEY = "com.sun.btrace.FileClient.async";
+    /**
+     * Append the file output into memory mapped regions; takes precedence
+     * over {@linkplain #ASYNC_OUTPUT_KEY}
+     */
+    static final String MAPPED_OUTPUT_KEY = "com.sun.btrace.FileClient.mapped";
     private static final Map<String, PrintWriter> WRITER_MAP = new HashMap<>();
+    private static final Map<String, BinaryTraceWriter> BINARY_WRITER_MAP = new HashMap<>();
 
     protected final Instrumentation inst;
     private volatile BTraceRuntime runtime;
@@ -85,6 +103,7 @@ abstract class Client implements CommandListener {
 
     private Timer flusher;
     protected volatile PrintWriter out;
+    protected volatile BinaryTraceWriter binOut;
 
     protected final SharedSettings settings;
     protected final DebugSupport debug;
@@ -139,12 +158,41 @@ abstract class Client implements CommandListener {
             outputFile = templateOutputFileName(output);
             infoPrint("Redirecting output to " + outputFile);
         }
+        outputName = outputFile;
+        // the writers are shared by the clients writing to the same output; clients may be set up concurrently
+        synchronized (WRITER_MAP) {
+            openOutput(outputFile);
+        }
+    }
+
+    @SuppressWarnings("DefaultCharset")
+    private void openOutput(String outputFile) {
+        if (settings.isOutputBinary() && !outputFile.equals("::stdout")) {
+            // the binary output is neither rolled nor mapped; each file needs its own string table
+            binOut = BINARY_WRITER_MAP.get(outputFile);
+            if (binOut == null) {
+                try {
+                    binOut = new BinaryTraceWriter(new BufferedOutputStream(new FileOutputStream(outputFile)));
+                    BINARY_WRITER_MAP.put(outputFile, binOut);
+                    startFlusher();
+                    return;
+                } catch (IOException e) {
+                    DebugSupport.warning("Can not create the binary output " + outputFile + ", falling back to text: " + e);
+                }
+            } else {
+                return;
+            }
+        }
         out = WRITER_MAP.get(outputFile);
         if (out == null) {
             if (outputFile.equals("::stdout")) {
                 out = new PrintWriter(System.out);
             } else {
-                if (settings.getFileRollMilliseconds() > 0) {
+                if (Boolean.getBoolean(MAPPED_OUTPUT_KEY)) {
+                    out = new PrintWriter(TraceOutputWriter.mappedFileWriter(new File(outputFile), settings));
+                } else if (Boolean.parseBoolean(System.getProperty(ASYNC_OUTPUT_KEY, "true"))) {
+                    out = new PrintWriter(TraceOutputWriter.asyncFileWriter(new File(outputFile), settings));
+                } else if (settings.isFileRolling()) {
                     out = new PrintWriter(new BufferedWriter(
                         TraceOutputWriter.rollingFileWriter(new File(outputFile), settings)
                     ));
@@ -156,7 +204,40 @@ abstract class Client implements CommandListener {
             out.append("### BTrace Log: " + DateFormat.getInstance().format(new Date()) + "\n\n");
             startFlusher();
         }
-        outputName = outputFile;
+    }
+
+    /**
+     * @return {@code true} if there is an output for the printable commands
+     */
+    protected final boolean hasOutput() {
+        return out != null || binOut != null;
+    }
+
+    /**
+     * Writes a printable command to the text or binary output
+     * @param cmd the printable command
+     * @throws IOException
+     */
+    protected final void print(Command cmd) throws IOException {
+        BinaryTraceWriter bw = binOut;
+        if (bw != null) {
+            bw.write(cmd);
+        } else if (out != null) {
+            ((PrintableCommand)cmd).print(out);
+        }
+    }
+
+    private void flushOutput() {
+        if (out != null) {
+            out.flush();
+        }
+        if (binOut != null) {
+            try {
+                binOut.flush();
+            } catch (IOException e) {
+                debugPrint(e);
+            }
+        }
     }
 
     private void startFlusher() {
@@ -177,9 +258,7 @@ abstract class Client implements CommandListener {
             flusher.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
-                    if (out != null) {
-                        out.flush();
-                    }
+                    flushOutput();
                 }
             }, flushSec, flushSec);
         } else {
@@ -238,9 +317,7 @@ abstract class Client implements CommandListener {
 
     protected synchronized void onExit(int exitCode) {
         if (!shuttingDown) {
-            if (out != null) {
-                out.flush();
-            }
+            flushOutput();
 
             BTraceRuntime.leave();
             try {
@@ -274,12 +351,27 @@ abstract class Client implements CommandListener {
     }
 
     protected final Class loadClass(InstrumentCommand instr, boolean canLoadPack) throws IOException {
+        if (!prepare(instr, canLoadPack)) {
+            return null;
+        }
+        return activate(instr.getArguments());
+    }
+
+    /**
+     * Loads and verifies the probe without registering it.
+     * Different clients may be prepared concurrently.
+     * @param instr the instrument command
+     * @param canLoadPack allow loading the probe pack
+     * @return {@code true} if the probe was loaded and verified
+     * @throws IOException
+     */
+    protected final boolean prepare(InstrumentCommand instr, boolean canLoadPack) throws IOException {
         ArgsMap args = instr.getArguments();
         this.btraceCode = instr.getCode();
         try {
             probe = load(btraceCode, ArgsMap.merge(argsMap, args), canLoadPack);
             if (probe == null) {
-                return null;
+                return false;
             }
 
             if (!settings.isTrusted()) {
@@ -288,9 +380,19 @@ abstract class Client implements CommandListener {
         } catch (Throwable th) {
             debugPrint(th);
             errorExit(th);
-            return null;
+            return false;
         }
+        return true;
+    }
 
+    /**
+     * Creates the runtime for the prepared probe and registers the probe
+     * with the transformer
+     * @param args the probe arguments
+     * @return the BTrace class or {@code null}
+     * @throws IOException
+     */
+    protected final Class activate(ArgsMap args) throws IOException {
         if (probe.isClassRenamed()) {
             if (isDebug()) {
                 debugPrint("class renamed to " + probe.getClassName());
@@ -338,7 +440,13 @@ abstract class Client implements CommandListener {
         if (out != null) {
             out.close();
         }
-        WRITER_MAP.remove(outputName);
+        if (binOut != null) {
+            binOut.close();
+        }
+        synchronized (WRITER_MAP) {
+            WRITER_MAP.remove(outputName);
+            BINARY_WRITER_MAP.remove(outputName);
+        }
     }
 
     protected final void errorExit(Throwable th) throws IOException {
@@ -384,7 +492,8 @@ abstract class Client implements CommandListener {
         return probe != null ? probe.getClassName() : "<unknown>";
     }
 
-    final boolean isCandidate(Class c) {
+    @Override
+    public final boolean isCandidate(Class c) {
         String cname = c.getName().replace('.', '/');
         if (c.isInterface() || c.isPrimitive() || c.isArray()) {
             return false;
@@ -396,7 +505,8 @@ abstract class Client implements CommandListener {
         }
     }
 
-    final void startRetransformClasses(int numClasses) {
+    @Override
+    public final void startRetransformClasses(int numClasses) {
         try {
             onCommand(new RetransformationStartNotification(numClasses));
             if (isDebug()) {
@@ -450,43 +560,43 @@ abstract class Client implements CommandListener {
     }
 
     void retransformLoaded() throws UnmodifiableClassException {
-        if (runtime != null) {
-            if (probe.isTransforming() && settings.isRetransformStartup()) {
-                ArrayList<Class> list = new ArrayList<>();
-                debugPrint("retransforming loaded classes");
-                debugPrint("filtering loaded classes");
-                ClassCache cc = ClassCache.getInstance();
-                for (Class c : inst.getAllLoadedClasses()) {
-                    if (c != null) {
-                        cc.get(c);
-                        if (inst.isModifiableClass(c) &&  isCandidate(c)) {
-                            debugPrint("candidate " + c + " added");
-                            list.add(c);
-                        }
-                    }
-                }
-                list.trimToSize();
-                int size = list.size();
-                if (size > 0) {
-                    Class[] classes = new Class[size];
-                    list.toArray(classes);
-                    startRetransformClasses(size);
-                    if (isDebug()) {
-                        for(Class c : classes) {
-                            try {
-                                debugPrint("Attempting to retransform class: " + c.getName());
-                                inst.retransformClasses(c);
-                            } catch (VerifyError e) {
-                                debugPrint("verification error: " + c.getName());
-                            }
-                        }
-                    } else {
-                        inst.retransformClasses(classes);
-                    }
-                }
+        Exception e = retransformLoaded(inst, Collections.singletonList(this), debug).get(this);
+        if (e instanceof UnmodifiableClassException) {
+            throw (UnmodifiableClassException)e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+        }
+    }
+
+    /**
+     * Retransforms the loaded classes instrumented by any of the clients
+     * in a single pass.
+     * <p>
+     * Each client receives {@linkplain OkayCommand} once the retransformation
+     * is done unless the retransformation of its classes failed.
+     * @param inst the instrumentation
+     * @param clients the clients
+     * @param debug the debug support
+     * @return the retransformation failures by the failing clients
+     * @see Retransformer
+     */
+    static Map<Client, Exception> retransformLoaded(Instrumentation inst, Collection<? extends Client> clients, DebugSupport debug) {
+        List<Client> transforming = new ArrayList<>(clients.size());
+        for (Client c : clients) {
+            if (c.runtime != null && c.probe.isTransforming() && c.settings.isRetransformStartup()) {
+                transforming.add(c);
+            }
+        }
+        Map<Client, Exception> failed = transforming.isEmpty() ?
+                                            Collections.<Client, Exception>emptyMap() :
+                                            Retransformer.retransform(inst, transforming, debug);
+        for (Client c : clients) {
+            if (c.runtime != null && !failed.containsKey(c)) {
+                c.runtime.send(new OkayCommand());
             }
-            runtime.send(new OkayCommand());
         }
+        return failed;
     }
 
     private static String pid() {
@@ -56,21 +56,63 @@ class FileClient extends Client {
     private final AtomicBoolean noOutputNotified = new AtomicBoolean(false);
 
     private boolean canLoadPack = true;
+    private final File scriptFile;
+    private InstrumentCommand prepared;
 
     private boolean init(byte[] code) throws IOException {
         InstrumentCommand cmd = new InstrumentCommand(code, this.argsMap, debug);
-        boolean ret = loadClass(cmd, canLoadPack) != null;
-        if (ret) {
-            super.initialize();
+        if (prepare(cmd, canLoadPack)) {
+            prepared = cmd;
+            return true;
         }
-        return ret;
+        return false;
     }
 
     FileClient(ClientContext ctx, File scriptFile) throws IOException {
+        this(ctx, scriptFile, true);
+    }
+
+    /**
+     * @param ctx the client context
+     * @param scriptFile the script file
+     * @param activate {@code false} to only load and verify the script;
+     *                 {@linkplain #activate()} is to be called later
+     * @throws IOException
+     */
+    FileClient(ClientContext ctx, File scriptFile, boolean activate) throws IOException {
         super(ctx);
+        this.scriptFile = scriptFile;
         if (!init(readScript(scriptFile))) {
             debug.warning("Unable to load BTrace script " + scriptFile);
+        } else if (activate) {
+            activate();
+        }
+    }
+
+    /**
+     * @return {@code true} if the script was loaded and verified
+     */
+    boolean isPrepared() {
+        return prepared != null;
+    }
+
+    /**
+     * Registers the prepared script
+     * @return {@code true} if the script was registered
+     * @throws IOException
+     */
+    boolean activate() throws IOException {
+        if (prepared == null) {
+            return false;
+        }
+        InstrumentCommand cmd = prepared;
+        prepared = null;
+        if (activate(cmd.getArguments()) != null) {
+            super.initialize();
+            return true;
         }
+        debug.warning("Unable to load BTrace script " + scriptFile);
+        return false;
     }
 
     @Override
@@ -84,12 +126,12 @@ class FileClient extends Client {
                 break;
             default:
                 if (cmd instanceof PrintableCommand) {
-                    if (out == null) {
+                    if (!hasOutput()) {
                         if (noOutputNotified.compareAndSet(false, true)) {
                             DebugSupport.warning("No output stream. DataCommand output is ignored.");
                         }
                     } else {
-                        ((PrintableCommand) cmd).print(out);
+                        print(cmd);
                     }
                 }
                 break;
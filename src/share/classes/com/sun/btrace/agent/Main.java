@@ -26,15 +26,19 @@ package com.sun.btrace.agent;
 
 import com.sun.btrace.ArgsMap;
 import com.sun.btrace.runtime.BTraceTransformer;
+import com.sun.btrace.runtime.InstrumentedClassCache;
+import com.sun.btrace.runtime.TransformMetrics;
 import com.sun.btrace.DebugSupport;
 import com.sun.btrace.SharedSettings;
 import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
-import java.net.Socket;
-import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
@@ -47,6 +51,7 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -62,6 +67,7 @@ import java.util.regex.Pattern;
  */
 public final class Main {
     private static long ts = System.nanoTime();
+    private static final StartupProfile profile = new StartupProfile(ts);
 
     private static volatile ArgsMap argMap;
     private static volatile Instrumentation inst;
@@ -83,7 +89,10 @@ public final class Main {
         }
     };
 
-    private static final ExecutorService serializedExecutor = Executors.newSingleThreadExecutor(qProcessorThreadFactory);
+    // the executor is not needed until the first client is started
+    private static final class SerializedExecutor {
+        private static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(qProcessorThreadFactory);
+    }
 
     public static void premain(String args, Instrumentation inst) {
         main(args, inst);
@@ -101,13 +110,18 @@ public final class Main {
         }
 
         try {
+            profile.step("agent class init");
             loadArgs(args);
             // set the debug level based on cmdline config
             settings.setDebug(Boolean.parseBoolean(argMap.get("debug")));
             if (isDebug()) {
                 debugPrint("parsed command line arguments");
             }
+            profile.step("load arguments");
             parseArgs();
+            profile.step("parse arguments");
+            setupClassCache();
+            setupTransformMetrics();
 
             int startedScripts = startScripts();
 
@@ -142,9 +156,14 @@ public final class Main {
             } finally {
                 BTraceRuntime.leave();
             }
+            profile.step("start agent server");
         } finally {
             inst.addTransformer(transformer, true);
-            Main.debugPrint("Agent init took: " + (System.nanoTime() - ts) + "ns");
+            profile.step("install transformer");
+            Main.debugPrint("Agent init took: " + profile.total() + "ns");
+            if (argMap != null && Boolean.parseBoolean(argMap.get("startupProfile"))) {
+                profile.print();
+            }
         }
     }
 
@@ -223,9 +242,50 @@ public final class Main {
         }
     }
 
-    private static int startScripts() {
-        int scriptCount = 0;
+    private static void setupClassCache() {
+        String dir = argMap.get("cacheDir");
+        if (dir == null || dir.isEmpty()) {
+            return;
+        }
+        long maxBytes = InstrumentedClassCache.DEFAULT_MAX_BYTES;
+        String p = argMap.get("cacheMaxBytes");
+        if (p != null && !p.isEmpty()) {
+            try {
+                maxBytes = Long.parseLong(p);
+            } catch (NumberFormatException e) {
+                DebugSupport.warning("Invalid cacheMaxBytes value: " + p);
+            }
+        }
+        try {
+            transformer.setClassCache(new InstrumentedClassCache(new File(dir), maxBytes, Messages.get("btrace.version"), debug));
+            if (isDebug()) {
+                debugPrint("instrumented class cache is " + dir + " (max " + maxBytes + " bytes)");
+            }
+        } catch (IOException e) {
+            DebugSupport.warning("Instrumented class cache disabled: " + e.getMessage());
+        }
+        profile.step("open class cache");
+    }
+
+    private static void setupTransformMetrics() {
+        if (!Boolean.parseBoolean(argMap.get("transformMetrics"))) {
+            return;
+        }
+        TransformMetrics metrics = new TransformMetrics();
+        try {
+            metrics.register();
+        } catch (RuntimeException e) {
+            DebugSupport.warning("Unable to register the transform metrics MBean: " + e.getMessage());
+        }
+        metrics.printOnExit();
+        transformer.setMetrics(metrics);
+        if (isDebug()) {
+            debugPrint("transformMetrics is true");
+        }
+        profile.step("set up transform metrics");
+    }
 
+    private static int startScripts() {
         String p = argMap.get("stdout");
         boolean traceToStdOut = p != null && !"false".equals(p);
         if (isDebug()) {
@@ -235,15 +295,14 @@ public final class Main {
         String script = argMap.get("script");
         String scriptDir = argMap.get("scriptdir");
 
+        List<String> scripts = new ArrayList<>();
         if (script != null) {
             StringTokenizer tokenizer = new StringTokenizer(script, ":");
             if (isDebug()) {
                 debugPrint(((tokenizer.countTokens() == 1) ? "initial script is " : "initial scripts are ") + script);
             }
             while (tokenizer.hasMoreTokens()) {
-                if (loadBTraceScript(tokenizer.nextToken(), traceToStdOut)) {
-                    scriptCount++;
-                }
+                scripts.add(tokenizer.nextToken());
             }
         }
         if (scriptDir != null) {
@@ -255,14 +314,111 @@ public final class Main {
                 File[] files = dir.listFiles();
                 if (files != null) {
                     for (File file : files) {
-                        if (loadBTraceScript(file.getAbsolutePath(), traceToStdOut)) {
-                            scriptCount++;
-                        }
+                        scripts.add(file.getAbsolutePath());
                     }
                 }
             }
         }
-        return scriptCount;
+        if (scripts.isEmpty()) {
+            return 0;
+        }
+        return loadBTraceScripts(scripts, traceToStdOut).size();
+    }
+
+    /**
+     * Loads the startup scripts.
+     * <p>
+     * The scripts are loaded and verified in parallel. The prepared probes
+     * are then registered in the script order and all the loaded classes
+     * are retransformed in one go.
+     */
+    private static List<FileClient> loadBTraceScripts(List<String> scripts, final boolean traceToStdOut) {
+        List<FileClient> clients = new ArrayList<>(scripts.size());
+        long ts = System.nanoTime();
+        int threads = Math.min(scripts.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService loader = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        BTraceRuntime.enter();
+                        r.run();
+                    }
+                }, "BTrace Script Loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Future<FileClient>> prepared = new ArrayList<>(scripts.size());
+        try {
+            for (final String script : scripts) {
+                prepared.add(loader.submit(new Callable<FileClient>() {
+                    @Override
+                    public FileClient call() throws Exception {
+                        return prepareBTraceScript(script, traceToStdOut);
+                    }
+                }));
+            }
+            for (Future<FileClient> f : prepared) {
+                try {
+                    FileClient client = f.get();
+                    if (client != null) {
+                        clients.add(client);
+                    }
+                } catch (ExecutionException e) {
+                    if (isDebug()) {
+                        debugPrint(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return clients;
+        } finally {
+            loader.shutdown();
+        }
+        long tsLoaded = System.nanoTime();
+        profile.step("load and verify " + scripts.size() + " scripts");
+
+        Iterator<FileClient> iter = clients.iterator();
+        while (iter.hasNext()) {
+            FileClient client = iter.next();
+            boolean active = false;
+            try {
+                active = client.activate();
+            } catch (RuntimeException | IOException e) {
+                if (isDebug()) {
+                    debugPrint(e);
+                }
+            }
+            if (!active) {
+                iter.remove();
+            }
+        }
+        long tsRegistered = System.nanoTime();
+        profile.step("register " + clients.size() + " scripts");
+
+        if (!clients.isEmpty()) {
+            try {
+                retransformNewClients(clients).get();
+            } catch (ExecutionException e) {
+                if (isDebug()) {
+                    debugPrint(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        profile.step("retransform loaded classes");
+        if (isDebug()) {
+            long tsDone = System.nanoTime();
+            debugPrint("startup scripts: " + clients.size() + "/" + scripts.size() + " loaded; " +
+                "load+verify " + ((tsLoaded - ts) / 1000000) + "ms (" + threads + " threads), " +
+                "register " + ((tsRegistered - tsLoaded) / 1000000) + "ms, " +
+                "retransform " + ((tsDone - tsRegistered) / 1000000) + "ms");
+        }
+        return clients;
     }
 
     private static void usage() {
@@ -358,6 +514,15 @@ public final class Main {
                     }
                     break;
                 }
+                case "inlineHandlers": {
+                    if (!p.isEmpty()) {
+                        settings.setInlineHandlers(Boolean.parseBoolean(p));
+                        if (isDebug()) {
+                            debugPrint("inlineHandlers is " + settings.isInlineHandlers());
+                        }
+                    }
+                    break;
+                }
                 case "scriptOutputFile": {
                     if (!p.isEmpty()) {
                         settings.setOutputFile(p);
@@ -367,6 +532,15 @@ public final class Main {
                     }
                     break;
                 }
+                case "scriptOutputBinary": {
+                    if (!p.isEmpty()) {
+                        settings.setOutputBinary(Boolean.parseBoolean(p));
+                        if (isDebug()) {
+                            debugPrint("scriptOutputBinary is " + settings.isOutputBinary());
+                        }
+                    }
+                    break;
+                }
                 case "scriptOutputDir": {
                     if (!p.isEmpty()) {
                         settings.setOutputDir(p);
@@ -409,6 +583,41 @@ public final class Main {
                     }
                     break;
                 }
+                case "fileRollBytes": {
+                    if (!p.isEmpty()) {
+                        try {
+                            settings.setFileRollBytes(Long.parseLong(p));
+                            if (isDebug()) {
+                                debugPrint("fileRollBytes is " + settings.getFileRollBytes());
+                            }
+                        } catch (NumberFormatException nfe) {
+                            DebugSupport.warning("Invalid fileRollBytes value: " + p);
+                        }
+                    }
+                    break;
+                }
+                case "fileRollCompress": {
+                    if (!p.isEmpty()) {
+                        settings.setFileRollCompress(Boolean.parseBoolean(p));
+                        if (isDebug()) {
+                            debugPrint("fileRollCompress is " + settings.isFileRollCompress());
+                        }
+                    }
+                    break;
+                }
+                case "fileRollMaxBytes": {
+                    if (!p.isEmpty()) {
+                        try {
+                            settings.setFileRollMaxBytes(Long.parseLong(p));
+                            if (isDebug()) {
+                                debugPrint("fileRollMaxBytes is " + settings.getFileRollMaxBytes());
+                            }
+                        } catch (NumberFormatException nfe) {
+                            DebugSupport.warning("Invalid fileRollMaxBytes value: " + p);
+                        }
+                    }
+                    break;
+                }
                 case "unsafe": // fallthrough
                 case "trusted": {
                     if (!p.isEmpty()) {
@@ -436,6 +645,19 @@ public final class Main {
                     }
                     break;
                 }
+                case "statsdFlushInterval": {
+                    if (!p.isEmpty()) {
+                        try {
+                            settings.setStatsdFlushInterval(Integer.parseInt(p));
+                            if (isDebug()) {
+                                debugPrint("statsdFlushInterval is " + settings.getStatsdFlushInterval());
+                            }
+                        } catch (NumberFormatException ex) {
+                            DebugSupport.warning("Invalid statsd flush interval: " + p);
+                        }
+                    }
+                    break;
+                }
                 case "probeDescPath": {
                     if (!p.isEmpty()) {
                         settings.setProbeDescPath(!p.isEmpty() ? p : ".");
@@ -577,7 +799,10 @@ public final class Main {
         }
     }
 
-    private static boolean loadBTraceScript(String filePath, boolean traceToStdOut) {
+    /**
+     * Loads and verifies a startup script; the returned client is not activated yet
+     */
+    private static FileClient prepareBTraceScript(String filePath, boolean traceToStdOut) {
         try {
             String scriptName = "";
             String scriptParent = "";
@@ -593,7 +818,7 @@ public final class Main {
                 if (isDebug()) {
                     debugPrint("refusing " + filePath + " - script should be a pre-compiled class file");
                 }
-                return false;
+                return null;
             }
 
             SharedSettings clientSettings = new SharedSettings();
@@ -612,23 +837,20 @@ public final class Main {
                 }
             }
             ClientContext ctx = new ClientContext(inst, transformer, argMap, clientSettings);
-            Client client = new FileClient(ctx, traceScript);
-            if (client.isInitialized()) {
-                handleNewClient(client).get();
-                return true;
+            FileClient client = new FileClient(ctx, traceScript, false);
+            if (client.isPrepared()) {
+                return client;
             }
         } catch (NullPointerException e) {
             if (isDebug()) {
                 debugPrint("script " + filePath + " does not exist!");
             }
-        } catch (RuntimeException | IOException | ExecutionException re) {
+        } catch (RuntimeException | IOException re) {
             if (isDebug()) {
                 debugPrint(re);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         }
-        return false;
+        return null;
     }
 
     public static final int BTRACE_DEFAULT_PORT = 2020;
@@ -644,7 +866,16 @@ public final class Main {
                 error("invalid port assuming default..");
             }
         }
-        ServerSocket ss;
+        int workers = AgentServer.DEFAULT_WORKERS;
+        p = argMap.get("serverThreads");
+        if (p != null) {
+            try {
+                workers = Integer.parseInt(p);
+            } catch (NumberFormatException exp) {
+                error("invalid number of server threads assuming default..");
+            }
+        }
+        AgentServer server;
         try {
             if (isDebug()) {
                 debugPrint("starting server at " + port);
@@ -654,36 +885,29 @@ public final class Main {
             if (scriptOutputFile != null && scriptOutputFile.length() > 0) {
                 System.setProperty("btrace.output", scriptOutputFile);
             }
-            ss = new ServerSocket(port);
+            server = new AgentServer(port, workers, new AgentServer.Acceptor() {
+                @Override
+                public AgentServer.Connection accept(SocketChannel ch) throws IOException {
+                    ClientContext ctx = new ClientContext(inst, transformer, argMap, settings);
+                    RemoteClient client = new RemoteClient(ctx, ch);
+                    // the retransformation must not hold off the other clients
+                    handleNewClient(client);
+                    return client;
+                }
+            }, debug);
         } catch (IOException ioexp) {
             ioexp.printStackTrace();
             return;
         }
 
-        while (true) {
-            try {
-                if (isDebug()) {
-                    debugPrint("waiting for clients");
-                }
-                Socket sock = ss.accept();
-                if (isDebug()) {
-                    debugPrint("client accepted " + sock);
-                }
-                ClientContext ctx = new ClientContext(inst, transformer, argMap, settings);
-                Client client = new RemoteClient(ctx, sock);
-                handleNewClient(client).get();
-            } catch (RuntimeException | IOException | ExecutionException re) {
-                if (isDebug()) {
-                    debugPrint(re);
-                }
-            } catch (InterruptedException e) {
-                return;
-            }
+        if (isDebug()) {
+            debugPrint("waiting for clients");
         }
+        server.run();
     }
 
-    private static Future<?> handleNewClient(final Client client) {
-        return serializedExecutor.submit(new Runnable() {
+    private static void handleNewClient(final Client client) {
+        SerializedExecutor.INSTANCE.execute(new Runnable() {
 
             @Override
             public void run() {
@@ -691,11 +915,14 @@ public final class Main {
                 try {
                     client.debugPrint("new Client created " + client);
                     client.retransformLoaded();
-                } catch (UnmodifiableClassException uce) {
+                } catch (UnmodifiableClassException | RuntimeException e) {
+                    // nobody waits for the result; report the failure here
                     if (isDebug()) {
-                        debugPrint(uce);
+                        debugPrint(e);
+                    }
+                    if (client.getRuntime() != null) {
+                        client.getRuntime().send(new ErrorCommand(e));
                     }
-                    client.getRuntime().send(new ErrorCommand(uce));
                 } finally {
                     if (entered) {
                         BTraceRuntime.leave();
@@ -706,6 +933,29 @@ public final class Main {
 
     }
 
+    private static Future<?> retransformNewClients(final List<FileClient> clients) {
+        return SerializedExecutor.INSTANCE.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean entered = BTraceRuntime.enter();
+                try {
+                    Map<Client, Exception> failed = Client.retransformLoaded(inst, clients, debug);
+                    for (Map.Entry<Client, Exception> e : failed.entrySet()) {
+                        if (isDebug()) {
+                            debugPrint(e.getValue());
+                        }
+                        e.getKey().getRuntime().send(new ErrorCommand(e.getValue()));
+                    }
+                } finally {
+                    if (entered) {
+                        BTraceRuntime.leave();
+                    }
+                }
+            }
+        });
+    }
+
     private static void error(String msg) {
         System.err.println("btrace ERROR: " + msg);
     }
@@ -28,7 +28,7 @@ package com.sun.btrace.agent;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.BTraceUtils;
 import com.sun.btrace.comm.Command;
@@ -42,19 +42,22 @@ import java.net.SocketException;
 
 /**
  * Represents a remote client communicated by socket.
+ * <p>
+ * The incoming commands are read by the {@linkplain AgentServer} worker
+ * threads whenever there is data available.
  *
  * @author A. Sundararajan
  */
-class RemoteClient extends Client {
-    private volatile Socket sock;
+class RemoteClient extends Client implements AgentServer.Connection {
+    private volatile SocketChannel ch;
     private volatile ObjectInputStream ois;
     private volatile ObjectOutputStream oos;
 
-    RemoteClient(ClientContext ctx, Socket sock) throws IOException {
+    RemoteClient(ClientContext ctx, SocketChannel ch) throws IOException {
         super(ctx);
-        this.sock = sock;
-        this.ois = new ObjectInputStream(sock.getInputStream());
-        this.oos = new ObjectOutputStream(sock.getOutputStream());
+        this.ch = ch;
+        this.ois = new ObjectInputStream(AgentServer.inputStream(ch));
+        this.oos = new ObjectOutputStream(AgentServer.outputStream(ch));
         boolean hasInstrument = false;
         while (!hasInstrument) {
             Command cmd = WireIO.read(ois);
@@ -82,41 +85,42 @@ class RemoteClient extends Client {
         }
 
         BTraceRuntime.initUnsafe();
-        Thread cmdHandler = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                BTraceRuntime.enter();
-                while (true) {
-                    try {
-                        Command cmd = WireIO.read(ois);
-                        switch (cmd.getType()) {
-                            case Command.EXIT: {
-                                ExitCommand ecmd = (ExitCommand)cmd;
-                                debugPrint("received exit command");
-                                onCommand(ecmd);
+    }
 
-                                return;
-                            }
-                            case Command.EVENT: {
-                                getRuntime().handleEvent((EventCommand)cmd);
-                                break;
-                            }
-                            default:
-                                if (isDebug()) {
-                                    debugPrint("received " + cmd);
-                                }
-                                // ignore any other command
-                            }
-                    } catch (Exception exp) {
-                        debugPrint(exp);
-                        break;
-                    }
+    @Override
+    public boolean onReadable() throws IOException {
+        ObjectInputStream in = ois;
+        if (in == null) {
+            return false;
+        }
+        // process all the commands already received; the rest will be signalled by the server
+        do {
+            Command cmd = WireIO.read(in);
+            switch (cmd.getType()) {
+                case Command.EXIT: {
+                    ExitCommand ecmd = (ExitCommand)cmd;
+                    debugPrint("received exit command");
+                    onCommand(ecmd);
+
+                    return false;
                 }
+                case Command.EVENT: {
+                    getRuntime().handleEvent((EventCommand)cmd);
+                    break;
+                }
+                default:
+                    if (isDebug()) {
+                        debugPrint("received " + cmd);
+                    }
+                    // ignore any other command
             }
-        });
-        cmdHandler.setDaemon(true);
-        debugPrint("starting client command handler thread");
-        cmdHandler.start();
+        } while (in.available() > 0);
+        return true;
+    }
+
+    @Override
+    public void onClose() {
+        debugPrint("client connection closed");
     }
 
     @Override
@@ -142,9 +146,9 @@ class RemoteClient extends Client {
                 onExit(((ExitCommand)cmd).getExitCode());
                 break;
             default:
-                if (out != null) {
+                if (hasOutput()) {
                     if (cmd instanceof PrintableCommand) {
-                        ((PrintableCommand) cmd).print(out);
+                        print(cmd);
                         return;
                     }
                 }
@@ -166,9 +170,9 @@ class RemoteClient extends Client {
             ois.close();
             ois = null;
         }
-        if (sock != null) {
-            sock.close();
-            sock = null;
+        if (ch != null) {
+            ch.close();
+            ch = null;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.agent;
+
+import com.sun.btrace.DebugSupport;
+import com.sun.btrace.runtime.ClassCache;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Retransforms the loaded classes for several clients in a single pass.
+ * <p>
+ * Each target is notified about the number of its own classes. When the
+ * single pass fails the classes are retransformed target by target to find
+ * out which targets failed.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class Retransformer {
+    interface Target {
+        /**
+         * @param c a loaded class
+         * @return {@code true} if the target will instrument the class
+         */
+        boolean isCandidate(Class c);
+
+        /**
+         * Called before the retransformation starts
+         * @param numClasses the number of the target's classes to be retransformed
+         */
+        void startRetransformClasses(int numClasses);
+    }
+
+    private Retransformer() {}
+
+    /**
+     * @param inst the instrumentation
+     * @param targets the targets
+     * @param debug the debug support
+     * @return the retransformation failures by the failing targets
+     */
+    static <T extends Target> Map<T, Exception> retransform(Instrumentation inst, Collection<T> targets, DebugSupport debug) {
+        Map<T, List<Class>> candidates = new LinkedHashMap<>();
+        for (T t : targets) {
+            candidates.put(t, new ArrayList<Class>());
+        }
+        Set<Class> all = new LinkedHashSet<>();
+        debug.debug("retransforming loaded classes");
+        debug.debug("filtering loaded classes");
+        ClassCache cc = ClassCache.getInstance();
+        for (Class c : inst.getAllLoadedClasses()) {
+            if (c != null) {
+                cc.get(c);
+                if (inst.isModifiableClass(c)) {
+                    for (Map.Entry<T, List<Class>> e : candidates.entrySet()) {
+                        if (e.getKey().isCandidate(c)) {
+                            e.getValue().add(c);
+                            all.add(c);
+                        }
+                    }
+                    if (all.contains(c)) {
+                        debug.debug("candidate " + c + " added");
+                    }
+                }
+            }
+        }
+        Map<T, Exception> failed = new HashMap<>();
+        if (all.isEmpty()) {
+            return failed;
+        }
+        for (Map.Entry<T, List<Class>> e : candidates.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                e.getKey().startRetransformClasses(e.getValue().size());
+            }
+        }
+        try {
+            retransformClasses(inst, all, debug);
+        } catch (UnmodifiableClassException | RuntimeException ex) {
+            debug.debug(ex);
+            for (Map.Entry<T, List<Class>> e : candidates.entrySet()) {
+                if (e.getValue().isEmpty()) {
+                    continue;
+                }
+                if (candidates.size() == 1) {
+                    failed.put(e.getKey(), ex);
+                    break;
+                }
+                try {
+                    retransformClasses(inst, e.getValue(), debug);
+                } catch (UnmodifiableClassException | RuntimeException ex1) {
+                    failed.put(e.getKey(), ex1);
+                }
+            }
+        }
+        return failed;
+    }
+
+    private static void retransformClasses(Instrumentation inst, Collection<Class> classes, DebugSupport debug) throws UnmodifiableClassException {
+        if (debug.isDebug()) {
+            for(Class c : classes) {
+                try {
+                    debug.debug("Attempting to retransform class: " + c.getName());
+                    inst.retransformClasses(c);
+                } catch (VerifyError e) {
+                    debug.debug("verification error: " + c.getName());
+                }
+            }
+        } else {
+            inst.retransformClasses(classes.toArray(new Class[classes.size()]));
+        }
+    }
+}
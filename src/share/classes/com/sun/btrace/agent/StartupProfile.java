@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.agent;
+
+import com.sun.btrace.DebugSupport;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the time spent in the agent initialization steps.
+ * <p>
+ * Enabled by the {@code startupProfile=true} agent argument; the collected
+ * timings are printed once the agent is initialized.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StartupProfile {
+    private final long start;
+    private long last;
+    private final List<String> steps = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+
+    /**
+     * @param start the {@linkplain System#nanoTime()} the initialization started at
+     */
+    StartupProfile(long start) {
+        this.start = start;
+        this.last = start;
+    }
+
+    /**
+     * Marks the end of an initialization step
+     * @param name the step name
+     */
+    synchronized void step(String name) {
+        long now = System.nanoTime();
+        steps.add(name);
+        times.add(now - last);
+        last = now;
+    }
+
+    /**
+     * @return the time elapsed since the initialization started in nanoseconds
+     */
+    synchronized long total() {
+        return last - start;
+    }
+
+    synchronized String report() {
+        StringBuilder sb = new StringBuilder("agent startup took ");
+        appendMillis(sb, total()).append(" ms");
+        for (int i = 0; i < steps.size(); i++) {
+            sb.append("\n  ").append(steps.get(i)).append(": ");
+            appendMillis(sb, times.get(i)).append(" ms");
+        }
+        return sb.toString();
+    }
+
+    void print() {
+        DebugSupport.info(report());
+    }
+
+    private static StringBuilder appendMillis(StringBuilder sb, long nanos) {
+        long micros = nanos / 1000;
+        sb.append(micros / 1000).append('.');
+        long frac = (micros % 1000) / 10;
+        if (frac < 10) {
+            sb.append('0');
+        }
+        return sb.append(frac);
+    }
+}
@@ -25,14 +25,40 @@
 
 package com.sun.btrace.agent;
 
+import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.DebugSupport;
 import com.sun.btrace.SharedSettings;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class represents various strategies available for dumping BTrace
@@ -150,41 +176,749 @@ abstract class TraceOutputWriter extends Writer {
 
         private FileWriter getNextWriter() throws IOException {
         	currentFileWriter.close();
-        	File scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-        	File scriptOutputFile_renameTo = new File(path + File.separator + baseName + "." + (counter++));
+            counter = rollFile(path, baseName, counter, settings);
+            return new FileWriter(new File(path + File.separator + baseName));
+        }
 
-            if (scriptOutputFile_renameTo.exists()) {
-            	scriptOutputFile_renameTo.delete();
-            }
-            scriptOutputFile_renameFrom.renameTo(scriptOutputFile_renameTo);
-            scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-            if (counter > settings.getFileRollMaxRolls()) {
-                counter = 1;
-            }
-            return new FileWriter(scriptOutputFile_renameFrom);
+        /**
+         * @return the current size of the output file
+         */
+        protected final long size() {
+            return new File(path + File.separator + baseName).length();
         }
 
         abstract protected boolean needsRoll();
     }
 
-    static private class TimeBasedRollingFileWriter extends RollingFileWriter {
-        private long lastTimeStamp = System.currentTimeMillis();
-        private final TimeUnit unit = TimeUnit.MILLISECONDS;
+    static private class PolicyBasedRollingFileWriter extends RollingFileWriter {
+        private final RollPolicy policy;
 
-        public TimeBasedRollingFileWriter(File output, SharedSettings settings) throws IOException {
+        public PolicyBasedRollingFileWriter(File output, SharedSettings settings) throws IOException {
             super(output, settings);
+            policy = new RollPolicy(settings);
         }
 
         @Override
         protected boolean needsRoll() {
-            long currTime = System.currentTimeMillis();
-            long myInterval =  currTime - lastTimeStamp;
-            if (unit.convert(myInterval, TimeUnit.MILLISECONDS) >= settings.getFileRollMilliseconds()) {
-                lastTimeStamp = currTime;
+            return policy.needsRoll(policy.isSizeBased() ? size() : 0);
+        }
+    }
+
+    /**
+     * Decides when the output file is to be rolled - once the
+     * {@linkplain SharedSettings#getFileRollMilliseconds()} interval elapsed,
+     * once the file reached {@linkplain SharedSettings#getFileRollBytes()}
+     * or whichever comes first when both are set
+     */
+    static final class RollPolicy {
+        private final SharedSettings settings;
+        private long lastRoll = System.currentTimeMillis();
+
+        RollPolicy(SharedSettings settings) {
+            this.settings = settings;
+        }
+
+        boolean isSizeBased() {
+            return settings.getFileRollBytes() > 0;
+        }
+
+        /**
+         * @param size the current output file size
+         * @return {@code true} if the file is to be rolled now
+         */
+        boolean needsRoll(long size) {
+            long now = System.currentTimeMillis();
+            int interval = settings.getFileRollMilliseconds();
+            long maxSize = settings.getFileRollBytes();
+            if ((interval > 0 && now - lastRoll >= interval) || (maxSize > 0 && size >= maxSize)) {
+                lastRoll = now;
                 return true;
             }
             return false;
         }
+
+        /**
+         * @return the number of milliseconds till the next time based roll
+         *         or {@linkplain Long#MAX_VALUE} when not rolling by time
+         */
+        long untilNextRoll() {
+            int interval = settings.getFileRollMilliseconds();
+            return interval > 0 ? Math.max(lastRoll + interval - System.currentTimeMillis(), 1) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Compresses the rolled files and enforces the retention limit
+     * on a low priority background thread, off the output writing path
+     */
+    static final class Archiver {
+        static final String GZ_SUFFIX = ".gz";
+
+        private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BTrace Output Archiver");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+        private Archiver() {}
+
+        /**
+         * Schedules the archiving of a rolled file
+         * @param rolled the rolled file
+         * @param baseName the name of the output file
+         * @param compress gzip the rolled file
+         * @param maxBytes the maximum total size of the rolled files; 0 means unlimited
+         * @return the task future
+         */
+        static Future<?> submit(final File rolled, final String baseName, final boolean compress, final long maxBytes) {
+            return EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean entered = BTraceRuntime.enter();
+                    try {
+                        if (compress) {
+                            compress(rolled);
+                        }
+                        if (maxBytes > 0) {
+                            retain(rolled.getParentFile(), baseName, maxBytes);
+                        }
+                    } catch (IOException e) {
+                        DebugSupport.warning(e);
+                    } finally {
+                        if (entered) {
+                            BTraceRuntime.leave();
+                        }
+                    }
+                }
+            });
+        }
+
+        static void compress(File f) throws IOException {
+            if (!f.exists()) {
+                return;
+            }
+            File tmp = new File(f.getPath() + GZ_SUFFIX + ".tmp");
+            try (InputStream is = new FileInputStream(f);
+                 OutputStream os = new GZIPOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+                byte[] buf = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(buf)) > 0) {
+                    os.write(buf, 0, read);
+                }
+            }
+            File gz = new File(f.getPath() + GZ_SUFFIX);
+            gz.delete();
+            if (tmp.renameTo(gz)) {
+                gz.setLastModified(f.lastModified());
+                f.delete();
+            } else {
+                tmp.delete();
+            }
+        }
+
+        /**
+         * Deletes the oldest rolled files until their total size fits the limit
+         */
+        static void retain(File dir, String baseName, long maxBytes) {
+            final Pattern p = Pattern.compile(Pattern.quote(baseName) + "\\.\\d+(" + Pattern.quote(GZ_SUFFIX) + ")?");
+            File[] rolled = dir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isFile() && p.matcher(f.getName()).matches();
+                }
+            });
+            if (rolled == null) {
+                return;
+            }
+            Arrays.sort(rolled, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified(), m2 = f2.lastModified();
+                    return m1 > m2 ? -1 : (m1 < m2 ? 1 : 0);
+                }
+            });
+            long total = 0;
+            for (File f : rolled) {
+                total += f.length();
+                if (total > maxBytes) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the written characters directly into byte buffers supplied
+     * by the concrete output
+     */
+    @SuppressWarnings("DefaultCharset")
+    static abstract private class EncodingOutput extends TraceOutputWriter {
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // @GuardedBy lock
+        private CharBuffer pending;
+        // @GuardedBy lock
+        protected ByteBuffer current;
+        // @GuardedBy lock
+        protected boolean closed;
+
+        protected EncodingOutput(SharedSettings settings) {
+            super(settings);
+        }
+
+        @Override
+        final public void write(int c) throws IOException {
+            write(CharBuffer.wrap(new char[]{(char)c}));
+        }
+
+        @Override
+        final public void write(char[] cbuf, int off, int len) throws IOException {
+            write(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        @Override
+        final public void write(String str, int off, int len) throws IOException {
+            write(CharBuffer.wrap(str, off, off + len));
+        }
+
+        /**
+         * Replaces the {@linkplain #current} buffer once it is full
+         * @throws IOException
+         */
+        // @GuardedBy lock
+        abstract protected void nextBuffer() throws IOException;
+
+        protected void checkState() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        /**
+         * Encodes any characters left over from the previous writes
+         * @throws IOException
+         */
+        // @GuardedBy lock
+        protected final void finishEncoding() throws IOException {
+            if (pending != null) {
+                encode(pending, true);
+                pending = null;
+            }
+        }
+
+        private void write(CharBuffer cb) throws IOException {
+            synchronized (lock) {
+                checkState();
+                if (pending != null) {
+                    // a high surrogate left over from the previous write
+                    CharBuffer joined = CharBuffer.allocate(pending.remaining() + cb.remaining());
+                    joined.put(pending).put(cb).flip();
+                    pending = null;
+                    cb = joined;
+                }
+                encode(cb, false);
+                if (cb.hasRemaining()) {
+                    pending = CharBuffer.allocate(cb.remaining()).put(cb);
+                    pending.flip();
+                }
+            }
+        }
+
+        // @GuardedBy lock
+        private void encode(CharBuffer cb, boolean endOfInput) throws IOException {
+            while (encoder.encode(cb, current, endOfInput).isOverflow()) {
+                nextBuffer();
+            }
+            if (endOfInput) {
+                while (encoder.flush(current).isOverflow()) {
+                    nextBuffer();
+                }
+                encoder.reset();
+            }
+        }
+    }
+
+    /**
+     * Encodes the output into large reusable byte buffers which are written
+     * to the file by a dedicated I/O thread via a {@linkplain FileChannel}.
+     * <p>
+     * The writing thread only blocks when all the buffers are waiting to be
+     * written. {@linkplain #flush()} hands the pending output over to the
+     * I/O thread without waiting for it to be written. The files are rolled
+     * by the I/O thread according to the {@linkplain RollPolicy}.
+     */
+    static final class AsyncFileOutput extends EncodingOutput {
+        static final String BUFFER_SIZE_KEY = "com.sun.btrace.FileClient.bufferSize";
+        static final String BUFFERS_KEY = "com.sun.btrace.FileClient.buffers";
+        /**
+         * The fsync interval in milliseconds; negative value disables
+         * fsync, 0 syncs after each written buffer
+         */
+        static final String FSYNC_KEY = "com.sun.btrace.FileClient.fsync";
+
+        private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+        private final File output;
+        private final SharedSettings settings;
+        private final BlockingQueue<ByteBuffer> free;
+        private final BlockingQueue<ByteBuffer> full;
+        private final long fsyncInterval;
+        private final Thread ioThread;
+
+        // accessed by the I/O thread only
+        private FileChannel channel;
+        private final RollPolicy rollPolicy;
+        private int counter = 1;
+        private long fileBytes;
+        private long lastSync = System.currentTimeMillis();
+        private boolean unsynced;
+
+        private volatile IOException failure;
+
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong writeNanos = new AtomicLong();
+        private final AtomicLong fsyncs = new AtomicLong();
+        private volatile long maxWriteNanos;
+
+        AsyncFileOutput(File output, SharedSettings settings) throws IOException {
+            this(output, settings, Integer.getInteger(BUFFER_SIZE_KEY, 256 * 1024),
+                 Integer.getInteger(BUFFERS_KEY, 4), Long.getLong(FSYNC_KEY, -1));
+        }
+
+        AsyncFileOutput(File output, SharedSettings settings, int bufferSize, int buffers, long fsyncInterval) throws IOException {
+            super(settings);
+            this.output = output;
+            this.settings = settings;
+            this.fsyncInterval = fsyncInterval;
+            this.rollPolicy = new RollPolicy(settings);
+            buffers = Math.max(buffers, 2);
+            bufferSize = Math.max(bufferSize, 16);
+            this.free = new ArrayBlockingQueue<>(buffers);
+            this.full = new ArrayBlockingQueue<>(buffers + 1);
+            for (int i = 1; i < buffers; i++) {
+                free.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+            current = ByteBuffer.allocateDirect(bufferSize);
+            try {
+                File parent = output.getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                channel = open(output);
+            } catch (IOException e) {
+                debug.debug(e);
+                throw e;
+            }
+            ioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // the agent's own writes, rolls and renames must not be traced
+                    boolean entered = BTraceRuntime.enter();
+                    try {
+                        drain();
+                    } finally {
+                        if (entered) {
+                            BTraceRuntime.leave();
+                        }
+                    }
+                }
+            }, "BTrace Output Writer [" + output.getName() + "]");
+            ioThread.setDaemon(true);
+            ioThread.start();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                checkState();
+                if (current.position() > 0) {
+                    nextBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                finishEncoding();
+                if (current.position() > 0) {
+                    full.add(current);
+                }
+                full.add(EOF);
+            }
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (debug.isDebug()) {
+                debug.debug("output writer for " + output + " closed; written " + getBytesWritten() +
+                            " bytes in " + getWrites() + " writes, avg. write " + (getWrites() > 0 ? getWriteNanos() / getWrites() : 0) +
+                            "ns, max. write " + getMaxWriteNanos() + "ns, " + getFsyncs() + " fsyncs");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * @return the number of bytes written to the output so far
+         */
+        long getBytesWritten() {
+            return bytesWritten.get();
+        }
+
+        /**
+         * @return the number of buffers written to the output so far
+         */
+        long getWrites() {
+            return writes.get();
+        }
+
+        /**
+         * @return the cumulative time spent writing the buffers in nanoseconds
+         */
+        long getWriteNanos() {
+            return writeNanos.get();
+        }
+
+        /**
+         * @return the longest time spent writing a single buffer in nanoseconds
+         */
+        long getMaxWriteNanos() {
+            return maxWriteNanos;
+        }
+
+        /**
+         * @return the number of performed fsyncs
+         */
+        long getFsyncs() {
+            return fsyncs.get();
+        }
+
+        @Override
+        protected void nextBuffer() throws IOException {
+            full.add(current);
+            try {
+                ByteBuffer next;
+                while ((next = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    if (!ioThread.isAlive()) {
+                        throw failure != null ? failure : new IOException("Output writer terminated");
+                    }
+                }
+                current = next;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        protected void checkState() throws IOException {
+            super.checkState();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    ByteBuffer buf = full.poll(pollInterval(), TimeUnit.MILLISECONDS);
+                    if (buf == EOF) {
+                        break;
+                    }
+                    if (buf != null) {
+                        if (failure == null) {
+                            writeBuffer(buf);
+                        }
+                        buf.clear();
+                        free.add(buf);
+                    }
+                    if (failure == null) {
+                        housekeeping();
+                    }
+                }
+                if (failure == null && unsynced && fsyncInterval >= 0) {
+                    fsync();
+                }
+            } catch (IOException e) {
+                debug.debug(e);
+                failure = e;
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException();
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    debug.debug(e);
+                }
+            }
+        }
+
+        private void writeBuffer(ByteBuffer buf) {
+            try {
+                buf.flip();
+                long start = System.nanoTime();
+                int len = buf.remaining();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                long dur = System.nanoTime() - start;
+                bytesWritten.addAndGet(len);
+                fileBytes += len;
+                writes.incrementAndGet();
+                writeNanos.addAndGet(dur);
+                if (dur > maxWriteNanos) {
+                    maxWriteNanos = dur;
+                }
+                unsynced = true;
+            } catch (IOException e) {
+                debug.debug(e);
+                failure = e;
+            }
+        }
+
+        private void housekeeping() throws IOException {
+            long now = System.currentTimeMillis();
+            if (unsynced && fsyncInterval >= 0 && now - lastSync >= fsyncInterval) {
+                fsync();
+                lastSync = now;
+            }
+            if (rollPolicy.needsRoll(fileBytes)) {
+                if (unsynced && fsyncInterval >= 0) {
+                    fsync();
+                }
+                channel.close();
+                String path = output.getAbsoluteFile().getParentFile().getAbsolutePath();
+                counter = rollFile(path, output.getName(), counter, settings);
+                channel = open(output);
+                fileBytes = 0;
+            }
+        }
+
+        private void fsync() throws IOException {
+            channel.force(false);
+            fsyncs.incrementAndGet();
+            unsynced = false;
+        }
+
+        private long pollInterval() {
+            long interval = Long.MAX_VALUE;
+            if (fsyncInterval > 0) {
+                interval = fsyncInterval;
+            }
+            return Math.min(interval, rollPolicy.untilNextRoll());
+        }
+
+        private static FileChannel open(File f) throws IOException {
+            return FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * Appends the output into a memory mapped region of the file, mapping
+     * the following region once the current one is full.
+     * <p>
+     * Apart from the remapping no system calls are involved in writing.
+     * The file is pre-sized to the end of the current region and its not yet
+     * written part is filled with zeros, so an external reader can tail the file
+     * up to the first zero byte. The file is truncated to the written length
+     * when closed or rolled.
+     */
+    static final class MappedFileOutput extends EncodingOutput {
+        static final String CHUNK_SIZE_KEY = "com.sun.btrace.FileClient.mapChunkSize";
+
+        private final File output;
+        private final SharedSettings settings;
+        private final int chunkSize;
+        private final boolean sync;
+
+        // @GuardedBy lock
+        private FileChannel channel;
+        // @GuardedBy lock
+        private long regionStart;
+        // @GuardedBy lock
+        private final RollPolicy rollPolicy;
+        // @GuardedBy lock
+        private int counter = 1;
+        // @GuardedBy lock
+        private long remaps;
+
+        MappedFileOutput(File output, SharedSettings settings) throws IOException {
+            this(output, settings, Integer.getInteger(CHUNK_SIZE_KEY, 64 * 1024 * 1024),
+                 Long.getLong(AsyncFileOutput.FSYNC_KEY, -1) >= 0);
+        }
+
+        MappedFileOutput(File output, SharedSettings settings, int chunkSize, boolean sync) throws IOException {
+            super(settings);
+            this.output = output;
+            this.settings = settings;
+            this.chunkSize = Math.max(chunkSize, 16);
+            this.sync = sync;
+            this.rollPolicy = new RollPolicy(settings);
+            try {
+                File parent = output.getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                open();
+            } catch (IOException e) {
+                debug.debug(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                checkState();
+                if (sync) {
+                    ((MappedByteBuffer)current).force();
+                }
+                if (rollPolicy.needsRoll(regionStart + current.position())) {
+                    try {
+                        finish();
+                        String path = output.getAbsoluteFile().getParentFile().getAbsolutePath();
+                        counter = rollFile(path, output.getName(), counter, settings);
+                        open();
+                    } catch (IOException e) {
+                        closed = true;
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    finishEncoding();
+                } finally {
+                    finish();
+                }
+                if (debug.isDebug()) {
+                    debug.debug("output writer for " + output + " closed; " + remaps + " regions mapped");
+                }
+            }
+        }
+
+        /**
+         * @return the number of bytes written to the current file
+         */
+        long getBytesWritten() {
+            synchronized (lock) {
+                return current != null ? regionStart + current.position() : 0;
+            }
+        }
+
+        /**
+         * @return the number of mapped regions
+         */
+        long getRemaps() {
+            synchronized (lock) {
+                return remaps;
+            }
+        }
+
+        @Override
+        protected void nextBuffer() throws IOException {
+            ByteBuffer old = current;
+            long start = regionStart + old.position();
+            current = map(start);
+            regionStart = start;
+            unmap(old);
+        }
+
+        // @GuardedBy lock
+        private void open() throws IOException {
+            channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            regionStart = 0;
+            try {
+                current = map(0);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // @GuardedBy lock
+        private ByteBuffer map(long start) throws IOException {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, start, chunkSize);
+            remaps++;
+            return buf;
+        }
+
+        // @GuardedBy lock
+        private void finish() throws IOException {
+            ByteBuffer buf = current;
+            current = null;
+            try {
+                long size = regionStart + buf.position();
+                if (sync) {
+                    ((MappedByteBuffer)buf).force();
+                }
+                unmap(buf);
+                channel.truncate(size);
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Releases the mapping eagerly so the file can be truncated.
+         * The buffer must not be accessed any more.
+         */
+        private static void unmap(ByteBuffer buf) {
+            try {
+                sun.misc.Cleaner cleaner = ((sun.nio.ch.DirectBuffer)buf).cleaner();
+                if (cleaner != null) {
+                    cleaner.clean();
+                }
+            } catch (Throwable t) {
+                // not accessible; the mapping will be released once the buffer is collected
+            }
+        }
+    }
+
+    /**
+     * Rotates the output file to the next numbered file and schedules
+     * its compression and the retention check, if configured
+     * @return the next file number
+     */
+    private static int rollFile(String path, String baseName, int counter, SharedSettings settings) {
+        File scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
+        File scriptOutputFile_renameTo = new File(path + File.separator + baseName + "." + (counter++));
+
+        if (scriptOutputFile_renameTo.exists()) {
+            scriptOutputFile_renameTo.delete();
+        }
+        new File(scriptOutputFile_renameTo.getPath() + Archiver.GZ_SUFFIX).delete();
+        scriptOutputFile_renameFrom.renameTo(scriptOutputFile_renameTo);
+        if (counter > settings.getFileRollMaxRolls()) {
+            counter = 1;
+        }
+        if (settings.isFileRollCompress() || settings.getFileRollMaxBytes() > 0) {
+            Archiver.submit(scriptOutputFile_renameTo, baseName, settings.isFileRollCompress(), settings.getFileRollMaxBytes());
+        }
+        return counter;
     }
 
     /**
@@ -204,7 +938,8 @@ abstract class TraceOutputWriter extends Writer {
     }
 
     /**
-     * Time based rolling file writer. Defaults to 100 allowed output chunks.
+     * Rolling file writer - rolls the file by time, size or both according
+     * to the {@linkplain RollPolicy}. Defaults to 100 allowed output chunks.
      * @param output The file to put the output to
      * @param settings The shared settings
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
@@ -212,7 +947,43 @@ abstract class TraceOutputWriter extends Writer {
     public static TraceOutputWriter rollingFileWriter(File output, SharedSettings settings) {
         TraceOutputWriter instance = null;
         try {
-            instance = new TimeBasedRollingFileWriter(output, settings);
+            instance = new PolicyBasedRollingFileWriter(output, settings);
+        } catch (IOException e) {
+            // ignore
+        }
+        return instance;
+    }
+
+    /**
+     * Asynchronous file writer - the output is encoded into large buffers and
+     * written to the file by a dedicated thread; rolls the file according
+     * to the {@linkplain RollPolicy}
+     * @param output The file to put the output to
+     * @param settings The shared settings
+     * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
+     */
+    public static TraceOutputWriter asyncFileWriter(File output, SharedSettings settings) {
+        TraceOutputWriter instance = null;
+        try {
+            instance = new AsyncFileOutput(output, settings);
+        } catch (IOException e) {
+            // ignore
+        }
+        return instance;
+    }
+
+    /**
+     * Memory mapped file writer - the output is appended into memory mapped
+     * regions of the file; rolls the file according
+     * to the {@linkplain RollPolicy}
+     * @param output The file to put the output to
+     * @param settings The shared settings
+     * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
+     */
+    public static TraceOutputWriter mappedFileWriter(File output, SharedSettings settings) {
+        TraceOutputWriter instance = null;
+        try {
+            instance = new MappedFileOutput(output, settings);
         } catch (IOException e) {
             // ignore
         }
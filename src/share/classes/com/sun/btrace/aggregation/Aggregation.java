@@ -146,7 +146,9 @@ public class Aggregation implements Cloneable {
             int rowSize = keyElements.length + 1;
 
             Object[] row = new Object[rowSize];
-            System.arraycopy(keyElements, 0, row, 0, keyElements.length);
+            for (int i = 0; i < keyElements.length; i++) {
+                row[i] = render(keyElements[i]);
+            }
             row[rowSize - 1] = item.getValue().getData();
             result.add(row);
         }
@@ -182,6 +184,15 @@ public class Aggregation implements Cloneable {
     		return 0L;
     	}
     }
+    /**
+     * Converts the key element to a value which can be sent to the client
+     * @param element the aggregation key element
+     * @return the stack frames for a {@linkplain StackId}, the element itself otherwise
+     */
+    public static Object render(Object element) {
+        return element instanceof StackId ? element.toString() : element;
+    }
+
     /**
      * @return a list of key/value pairs contained in this aggregation by sorted by ascending value.
      */
@@ -30,7 +30,8 @@ import java.util.Set;
 
 /**
  * A key identifying an element of data in an aggregation. This represents a tuple of object values contained in an
- * Object[] array. Elements in the tuple may be null or of type {@link String} or {@link Number}.
+ * Object[] array. Elements in the tuple may be null or of type {@link String}, {@link Number}
+ * or {@link StackId}.
  * <p>
  *
  * @author Christian Glencross
@@ -47,6 +48,7 @@ public final class AggregationKey {
         validKeyElementTypes.add(Short.class);
         validKeyElementTypes.add(Integer.class);
         validKeyElementTypes.add(Long.class);
+        validKeyElementTypes.add(StackId.class);
     }
     private final Object[] elements;
 
@@ -59,7 +61,7 @@ public final class AggregationKey {
         // anything unusual.
         for (int i = 0; i < elements.length; i++) {
             Object element = elements[i];
-            if (element != null && (element.getClass() != String.class) && (element.getClass() != Boolean.class) && (element.getClass() != Byte.class) && (element.getClass() != Character.class) && (element.getClass() != Short.class) && (element.getClass() != Integer.class) && (element.getClass() != Long.class)) {
+            if (element != null && (element.getClass() != String.class) && (element.getClass() != Boolean.class) && (element.getClass() != Byte.class) && (element.getClass() != Character.class) && (element.getClass() != Short.class) && (element.getClass() != Integer.class) && (element.getClass() != Long.class) && (element.getClass() != StackId.class)) {
                 throw new IllegalArgumentException("Aggregation key element type '" + element.getClass().getName() + "' is not supported");
             }
         }
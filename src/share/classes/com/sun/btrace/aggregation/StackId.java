@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.aggregation;
+
+/**
+ * An interned stack trace usable as an {@linkplain AggregationKey} element.
+ * <p>
+ * Only the numeric id is used for the aggregation; the frames are rendered
+ * when the aggregation data are retrieved for printing.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class StackId {
+    private final int id;
+    private final StackTraceElement[] frames;
+    private volatile String rendered;
+
+    public StackId(int id, StackTraceElement[] frames) {
+        this.id = id;
+        this.frames = frames;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public StackTraceElement[] getFrames() {
+        return frames.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof StackId && ((StackId)obj).id == id;
+    }
+
+    /**
+     * @return the stack frames, one per line
+     */
+    @Override
+    public String toString() {
+        String s = rendered;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder();
+            for (StackTraceElement f : frames) {
+                sb.append(f).append('\n');
+            }
+            rendered = s = sb.toString();
+        }
+        return s;
+    }
+}
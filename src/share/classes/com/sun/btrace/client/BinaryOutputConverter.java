@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.client;
+
+import com.sun.btrace.aggregation.HistogramData;
+import com.sun.btrace.comm.BinaryTraceReader;
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.GridDataCommand;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.comm.NumberDataCommand;
+import com.sun.btrace.comm.NumberMapDataCommand;
+import com.sun.btrace.comm.PrintableCommand;
+import com.sun.btrace.comm.StringMapDataCommand;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Converts the binary probe output to text or CSV offline.
+ * <p>
+ * The text output is the same as the agent would have written in the text
+ * mode. The CSV output contains one line per value, the first column being
+ * the record kind:
+ * <ul>
+ * <li>{@code message,<time>,<message>}</li>
+ * <li>{@code number,<name>,<value>}</li>
+ * <li>{@code map,<name>,<key>,<value>}</li>
+ * <li>{@code grid,<name>,<cell>...}; histograms are written as space
+ * separated {@code <value>:<count>} pairs</li>
+ * </ul>
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class BinaryOutputConverter {
+    private BinaryOutputConverter() {}
+
+    /**
+     * Converts the binary output
+     * @param in the binary output
+     * @param out the writer to write the converted output to
+     * @param csv {@code true} for CSV, {@code false} for text
+     * @return the number of converted records
+     * @throws IOException
+     */
+    public static int convert(InputStream in, PrintWriter out, boolean csv) throws IOException {
+        BinaryTraceReader reader = new BinaryTraceReader(in);
+        int cnt = 0;
+        Command cmd;
+        while ((cmd = reader.read()) != null) {
+            if (csv) {
+                printCsv(cmd, out);
+            } else {
+                ((PrintableCommand)cmd).print(out);
+            }
+            cnt++;
+        }
+        out.flush();
+        return cnt;
+    }
+
+    private static void printCsv(Command cmd, PrintWriter out) {
+        switch (cmd.getType()) {
+            case Command.MESSAGE: {
+                MessageCommand mc = (MessageCommand)cmd;
+                row(out, "message", String.valueOf(mc.getTime()), mc.getMessage());
+                break;
+            }
+            case Command.NUMBER: {
+                NumberDataCommand nc = (NumberDataCommand)cmd;
+                row(out, "number", nc.getName(), String.valueOf(nc.getValue()));
+                break;
+            }
+            case Command.NUMBER_MAP: {
+                NumberMapDataCommand nmc = (NumberMapDataCommand)cmd;
+                for (Map.Entry<String, ? extends Number> e : nmc.getData().entrySet()) {
+                    row(out, "map", nmc.getName(), e.getKey(), String.valueOf(e.getValue()));
+                }
+                break;
+            }
+            case Command.STRING_MAP: {
+                StringMapDataCommand smc = (StringMapDataCommand)cmd;
+                for (Map.Entry<String, String> e : smc.getData().entrySet()) {
+                    row(out, "map", smc.getName(), e.getKey(), e.getValue());
+                }
+                break;
+            }
+            case Command.GRID_DATA: {
+                GridDataCommand gdc = (GridDataCommand)cmd;
+                for (Object[] cells : gdc.getData()) {
+                    String[] fields = new String[cells.length + 2];
+                    fields[0] = "grid";
+                    fields[1] = gdc.getName();
+                    for (int i = 0; i < cells.length; i++) {
+                        fields[i + 2] = cell(cells[i]);
+                    }
+                    row(out, fields);
+                }
+                break;
+            }
+        }
+    }
+
+    private static String cell(Object o) {
+        if (o instanceof HistogramData) {
+            HistogramData hd = (HistogramData)o;
+            long[] values = hd.getValues();
+            long[] counts = hd.getCounts();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(values[i]).append(':').append(counts[i]);
+            }
+            return sb.toString();
+        }
+        return o != null ? o.toString() : null;
+    }
+
+    private static void row(PrintWriter out, String ... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.print(',');
+            }
+            out.print(escape(fields[i]));
+        }
+        out.print('\n');
+    }
+
+    static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1 && s.indexOf('\r') == -1) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
@@ -25,9 +25,14 @@
 
 package com.sun.btrace.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.Console;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -108,6 +113,11 @@ public final class Main {
             }
         }
 
+        if (args.length > 0 && args[0].startsWith("--convert")) {
+            convert(args);
+            return;
+        }
+
         if (args.length < 2) {
             usage();
         }
@@ -289,6 +299,30 @@ public final class Main {
             });
     }
 
+    @SuppressWarnings("DefaultCharset")
+    private static void convert(String[] args) {
+        if (!args[0].equals("--convert") && !args[0].equals("--convert=csv") && !args[0].equals("--convert=text")) {
+            usage();
+        }
+        if (args.length < 2 || args.length > 3) {
+            usage();
+        }
+        boolean csv = args[0].equals("--convert=csv");
+        try (InputStream is = new BufferedInputStream(new FileInputStream(args[1]))) {
+            int cnt;
+            if (args.length == 3) {
+                try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(args[2])))) {
+                    cnt = BinaryOutputConverter.convert(is, pw, csv);
+                }
+            } else {
+                cnt = BinaryOutputConverter.convert(is, out, csv);
+            }
+            if (isDebug()) debugPrint("converted " + cnt + " records");
+        } catch (IOException e) {
+            errorExit(e.getMessage(), 1);
+        }
+    }
+
     private static void usage() {
         System.err.println(Messages.get("btrace.usage"));
         System.exit(1);
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.comm;
+
+/**
+ * The constants of the compact binary trace output format.
+ * <p>
+ * The output starts with the {@linkplain #MAGIC} bytes followed by the
+ * format {@linkplain #VERSION}; a sequence of records follows. Each record
+ * starts with a one byte tag.
+ * <ul>
+ * <li>{@linkplain #REC_STRING} - appends an UTF-8 string to the string table;
+ * strings are referred to by their index in the table (see below)</li>
+ * <li>{@linkplain #REC_RESET} - clears the string table</li>
+ * <li>{@linkplain #REC_MESSAGE} - time, inline message</li>
+ * <li>{@linkplain #REC_NUMBER} - name, value</li>
+ * <li>{@linkplain #REC_NUMBER_MAP} - name, entry count, (key, value)*</li>
+ * <li>{@linkplain #REC_STRING_MAP} - name, entry count, (key, value)*</li>
+ * <li>{@linkplain #REC_GRID} - name, format, row count, (cell count, value*)*</li>
+ * <li>{@linkplain #REC_TEXT} - inline text printed by any other command</li>
+ * </ul>
+ * The integral numbers are written as unsigned LEB128 varints, the signed
+ * ones zig-zag encoded first. A string reference is a varint holding
+ * 0 for {@code null} or the string table index + 1. An inline string is
+ * a varint length followed by the UTF-8 bytes. A value starts with one of
+ * the {@code VAL_} type tags followed by the type specific encoding.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class BinaryTraceFormat {
+    static final byte[] MAGIC = {'B', 'T', 'R', 'B'};
+    static final byte VERSION = 1;
+
+    static final byte REC_STRING = 1;
+    static final byte REC_RESET = 2;
+    static final byte REC_MESSAGE = 16;
+    static final byte REC_NUMBER = 17;
+    static final byte REC_NUMBER_MAP = 18;
+    static final byte REC_STRING_MAP = 19;
+    static final byte REC_GRID = 20;
+    static final byte REC_TEXT = 21;
+
+    static final byte VAL_NULL = 0;
+    static final byte VAL_INT = 1;
+    static final byte VAL_LONG = 2;
+    static final byte VAL_FLOAT = 3;
+    static final byte VAL_DOUBLE = 4;
+    static final byte VAL_STRING = 5;
+    static final byte VAL_HISTOGRAM = 6;
+    static final byte VAL_BIGINTEGER = 7;
+    static final byte VAL_BIGDECIMAL = 8;
+    static final byte VAL_OTHER = 9;
+
+    private BinaryTraceFormat() {}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sun.btrace.comm.BinaryTraceFormat.*;
+
+/**
+ * Reads the commands written by {@linkplain BinaryTraceWriter}.
+ * <p>
+ * The records without a dedicated command type are returned as
+ * {@linkplain MessageCommand} instances carrying the printed text.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class BinaryTraceReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final List<String> strings = new ArrayList<>();
+
+    public BinaryTraceReader(InputStream in) throws IOException {
+        this.in = in;
+        byte[] magic = new byte[MAGIC.length];
+        readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary BTrace output");
+        }
+        int version = readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary BTrace output version: " + version);
+        }
+    }
+
+    /**
+     * Reads the next command
+     * @return the next command or {@code null} at the end of the stream
+     * @throws IOException
+     */
+    public Command read() throws IOException {
+        while (true) {
+            int tag = in.read();
+            switch (tag) {
+                case -1: {
+                    return null;
+                }
+                case REC_STRING: {
+                    strings.add(readInline());
+                    break;
+                }
+                case REC_RESET: {
+                    strings.clear();
+                    break;
+                }
+                case REC_MESSAGE: {
+                    long time = readVarLong();
+                    return new MessageCommand(time, readInline());
+                }
+                case REC_NUMBER: {
+                    String name = readRef();
+                    return new NumberDataCommand(name, (Number)readValue());
+                }
+                case REC_NUMBER_MAP: {
+                    String name = readRef();
+                    int cnt = readCount();
+                    Map<String, Number> data = new LinkedHashMap<>();
+                    for (int i = 0; i < cnt; i++) {
+                        String key = readRef();
+                        data.put(key, (Number)readValue());
+                    }
+                    return new NumberMapDataCommand(name, data);
+                }
+                case REC_STRING_MAP: {
+                    String name = readRef();
+                    int cnt = readCount();
+                    Map<String, String> data = new LinkedHashMap<>();
+                    for (int i = 0; i < cnt; i++) {
+                        String key = readRef();
+                        data.put(key, readRef());
+                    }
+                    return new StringMapDataCommand(name, data);
+                }
+                case REC_GRID: {
+                    String name = readRef();
+                    String format = readRef();
+                    int rows = readCount();
+                    List<Object[]> data = new ArrayList<>(rows);
+                    for (int i = 0; i < rows; i++) {
+                        Object[] row = new Object[readCount()];
+                        for (int j = 0; j < row.length; j++) {
+                            row[j] = readValue();
+                        }
+                        data.add(row);
+                    }
+                    return new GridDataCommand(name, data, format);
+                }
+                case REC_TEXT: {
+                    return new MessageCommand(readInline());
+                }
+                default: {
+                    throw new IOException("Unknown record type: " + tag);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private Object readValue() throws IOException {
+        int type = readByte();
+        switch (type) {
+            case VAL_NULL: {
+                return null;
+            }
+            case VAL_INT: {
+                return (int)unZigZag(readVarLong());
+            }
+            case VAL_LONG: {
+                return unZigZag(readVarLong());
+            }
+            case VAL_FLOAT: {
+                return Float.intBitsToFloat(readInt());
+            }
+            case VAL_DOUBLE: {
+                long hi = readInt() & 0xffffffffL;
+                long lo = readInt() & 0xffffffffL;
+                return Double.longBitsToDouble((hi << 32) | lo);
+            }
+            case VAL_STRING: {
+                return readRef();
+            }
+            case VAL_HISTOGRAM: {
+                int cnt = readCount();
+                long[] values = new long[cnt];
+                long[] counts = new long[cnt];
+                for (int i = 0; i < cnt; i++) {
+                    values[i] = unZigZag(readVarLong());
+                    counts[i] = readVarLong();
+                }
+                return new HistogramData(values, counts);
+            }
+            case VAL_BIGINTEGER: {
+                return new BigInteger(readInline());
+            }
+            case VAL_BIGDECIMAL: {
+                return new BigDecimal(readInline());
+            }
+            case VAL_OTHER: {
+                return readInline();
+            }
+            default: {
+                throw new IOException("Unknown value type: " + type);
+            }
+        }
+    }
+
+    private String readRef() throws IOException {
+        long ref = readVarLong();
+        if (ref == 0) {
+            return null;
+        }
+        if (ref > strings.size()) {
+            throw new IOException("Undefined string reference: " + ref);
+        }
+        return strings.get((int)(ref - 1));
+    }
+
+    private String readInline() throws IOException {
+        byte[] bytes = new byte[readCount()];
+        readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private int readCount() throws IOException {
+        long cnt = readVarLong();
+        if (cnt > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length: " + cnt);
+        }
+        return (int)cnt;
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readInt() throws IOException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | readByte();
+        }
+        return v;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int ptr = 0;
+        while (ptr < bytes.length) {
+            int cnt = in.read(bytes, ptr, bytes.length - ptr);
+            if (cnt == -1) {
+                throw new EOFException();
+            }
+            ptr += cnt;
+        }
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
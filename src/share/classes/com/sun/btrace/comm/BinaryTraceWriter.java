@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sun.btrace.comm.BinaryTraceFormat.*;
+
+/**
+ * Writes the printable commands in the compact binary trace format
+ * described in {@linkplain BinaryTraceFormat}.
+ * <p>
+ * The names, keys and string values are interned in a string table so each
+ * of them is written only once. Nothing is formatted into text except for
+ * the commands without a dedicated record type.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class BinaryTraceWriter {
+    /**
+     * The string table is reset once it reaches this size
+     */
+    static final int MAX_STRINGS = 65536;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Buffer defs = new Buffer();
+    private final Buffer rec = new Buffer();
+
+    public BinaryTraceWriter(OutputStream out) throws IOException {
+        this.out = out;
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * Writes a printable command
+     * @param cmd the command
+     * @throws IOException
+     */
+    public synchronized void write(Command cmd) throws IOException {
+        if (strings.size() >= MAX_STRINGS) {
+            strings.clear();
+            defs.put(REC_RESET);
+        }
+        switch (cmd.getType()) {
+            case Command.MESSAGE: {
+                MessageCommand mc = (MessageCommand)cmd;
+                rec.put(REC_MESSAGE);
+                rec.putVarLong(mc.getTime());
+                putInline(mc.getMessage());
+                break;
+            }
+            case Command.NUMBER: {
+                NumberDataCommand nc = (NumberDataCommand)cmd;
+                rec.put(REC_NUMBER);
+                putRef(nc.getName());
+                putValue(nc.getValue());
+                break;
+            }
+            case Command.NUMBER_MAP: {
+                NumberMapDataCommand nmc = (NumberMapDataCommand)cmd;
+                rec.put(REC_NUMBER_MAP);
+                putRef(nmc.getName());
+                Map<String, ? extends Number> data = nmc.getData();
+                rec.putVarLong(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Map.Entry<String, ? extends Number> e : data.entrySet()) {
+                        putRef(e.getKey());
+                        putValue(e.getValue());
+                    }
+                }
+                break;
+            }
+            case Command.STRING_MAP: {
+                StringMapDataCommand smc = (StringMapDataCommand)cmd;
+                rec.put(REC_STRING_MAP);
+                putRef(smc.getName());
+                Map<String, String> data = smc.getData();
+                rec.putVarLong(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Map.Entry<String, String> e : data.entrySet()) {
+                        putRef(e.getKey());
+                        putRef(e.getValue());
+                    }
+                }
+                break;
+            }
+            case Command.GRID_DATA: {
+                GridDataCommand gdc = (GridDataCommand)cmd;
+                rec.put(REC_GRID);
+                putRef(gdc.getName());
+                putRef(gdc.getFormat());
+                List<Object[]> data = gdc.getData();
+                rec.putVarLong(data != null ? data.size() : 0);
+                if (data != null) {
+                    for (Object[] row : data) {
+                        rec.putVarLong(row.length);
+                        for (Object cell : row) {
+                            putValue(cell);
+                        }
+                    }
+                }
+                break;
+            }
+            default: {
+                if (!(cmd instanceof PrintableCommand)) {
+                    return;
+                }
+                StringWriter sw = new StringWriter();
+                PrintWriter pw = new PrintWriter(sw);
+                ((PrintableCommand)cmd).print(pw);
+                pw.flush();
+                rec.put(REC_TEXT);
+                putInline(sw.toString());
+            }
+        }
+        defs.writeTo(out);
+        rec.writeTo(out);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void putValue(Object v) {
+        if (v == null) {
+            rec.put(VAL_NULL);
+        } else if (v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            rec.put(VAL_INT);
+            rec.putVarLong(zigZag(((Number)v).longValue()));
+        } else if (v instanceof Long) {
+            rec.put(VAL_LONG);
+            rec.putVarLong(zigZag((Long)v));
+        } else if (v instanceof Double) {
+            rec.put(VAL_DOUBLE);
+            rec.putLong(Double.doubleToRawLongBits((Double)v));
+        } else if (v instanceof Float) {
+            rec.put(VAL_FLOAT);
+            rec.putInt(Float.floatToRawIntBits((Float)v));
+        } else if (v instanceof String) {
+            rec.put(VAL_STRING);
+            putRef((String)v);
+        } else if (v instanceof HistogramData) {
+            HistogramData hd = (HistogramData)v;
+            long[] values = hd.getValues();
+            long[] counts = hd.getCounts();
+            rec.put(VAL_HISTOGRAM);
+            rec.putVarLong(values.length);
+            for (int i = 0; i < values.length; i++) {
+                rec.putVarLong(zigZag(values[i]));
+                rec.putVarLong(counts[i]);
+            }
+        } else if (v instanceof BigInteger) {
+            rec.put(VAL_BIGINTEGER);
+            putInline(v.toString());
+        } else if (v instanceof BigDecimal) {
+            rec.put(VAL_BIGDECIMAL);
+            putInline(v.toString());
+        } else if (v instanceof AtomicInteger) {
+            rec.put(VAL_INT);
+            rec.putVarLong(zigZag(((Number)v).longValue()));
+        } else if (v instanceof AtomicLong) {
+            rec.put(VAL_LONG);
+            rec.putVarLong(zigZag(((Number)v).longValue()));
+        } else if (v instanceof Number) {
+            // the number readers expect a Number; keep the exact value if possible
+            String str = v.toString();
+            try {
+                new BigDecimal(str);
+                rec.put(VAL_BIGDECIMAL);
+                putInline(str);
+            } catch (NumberFormatException e) {
+                rec.put(VAL_DOUBLE);
+                rec.putLong(Double.doubleToRawLongBits(((Number)v).doubleValue()));
+            }
+        } else {
+            rec.put(VAL_OTHER);
+            putInline(v.toString());
+        }
+    }
+
+    private void putRef(String s) {
+        if (s == null) {
+            rec.putVarLong(0);
+            return;
+        }
+        Integer id = strings.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.put(s, id);
+            byte[] bytes = s.getBytes(UTF8);
+            defs.put(REC_STRING);
+            defs.putVarLong(bytes.length);
+            defs.put(bytes);
+        }
+        rec.putVarLong(id + 1);
+    }
+
+    private void putInline(String s) {
+        byte[] bytes = s != null ? s.getBytes(UTF8) : new byte[0];
+        rec.putVarLong(bytes.length);
+        rec.put(bytes);
+    }
+
+    static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     * A growable byte buffer reused for all the records
+     */
+    private static final class Buffer {
+        private byte[] buf = new byte[1024];
+        private int len;
+
+        void put(byte b) {
+            ensure(1);
+            buf[len++] = b;
+        }
+
+        void put(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[len++] = (byte)((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            buf[len++] = (byte)(v >>> 24);
+            buf[len++] = (byte)(v >>> 16);
+            buf[len++] = (byte)(v >>> 8);
+            buf[len++] = (byte)v;
+        }
+
+        void putLong(long v) {
+            putInt((int)(v >>> 32));
+            putInt((int)v);
+        }
+
+        void writeTo(OutputStream os) throws IOException {
+            if (len > 0) {
+                os.write(buf, 0, len);
+                len = 0;
+            }
+        }
+
+        private void ensure(int cnt) {
+            if (len + cnt > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + cnt));
+            }
+        }
+    }
+}
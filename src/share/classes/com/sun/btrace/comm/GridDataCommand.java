@@ -91,6 +91,10 @@ public class GridDataCommand extends DataCommand {
         return data;
     }
 
+    public String getFormat() {
+        return format;
+    }
+
     /**
      * Calculates the necessary field width of each column
      * @param objects a list of objects
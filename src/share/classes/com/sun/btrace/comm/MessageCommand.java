@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.IllegalFormatException;
 
 public class MessageCommand extends DataCommand {
     private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
@@ -42,6 +43,9 @@ public class MessageCommand extends DataCommand {
 
     private long time;
     private String msg;
+    // the deferred message format and its arguments; applied on the first message access
+    private String format;
+    private Object[] args;
 
     public MessageCommand(long time, String msg) {
         super(MESSAGE, null);
@@ -49,6 +53,20 @@ public class MessageCommand extends DataCommand {
         this.msg = msg;
     }
 
+    /**
+     * Creates a message which will be formatted only when it is retrieved,
+     * written or printed - ie. by the thread processing the command and not
+     * by the one creating it.
+     * @param time the message timestamp or 0
+     * @param format the {@linkplain String#format(java.lang.String, java.lang.Object[])} format
+     * @param args the format arguments; must not be modified after the message is created
+     */
+    public MessageCommand(long time, String format, Object[] args) {
+        this(time, null);
+        this.format = format;
+        this.args = args;
+    }
+
     public MessageCommand(String msg) {
         this(0L, msg);
     }
@@ -60,7 +78,8 @@ public class MessageCommand extends DataCommand {
     @Override
     protected void write(ObjectOutput out) throws IOException {
         out.writeLong(time);
-        byte[] bytes = msg != null ? msg.getBytes("utf-8") : new byte[0];
+        String m = getMessage();
+        byte[] bytes = m != null ? m.getBytes("utf-8") : new byte[0];
         out.writeInt(bytes.length);
         if (bytes.length > 0) {
             out.write(bytes);
@@ -87,6 +106,15 @@ public class MessageCommand extends DataCommand {
     }
 
     public String getMessage() {
+        if (format != null) {
+            try {
+                msg = String.format(format, args);
+            } catch (IllegalFormatException e) {
+                msg = format + " [" + e + "]";
+            }
+            format = null;
+            args = null;
+        }
         return msg;
     }
 
@@ -96,8 +124,9 @@ public class MessageCommand extends DataCommand {
             out.print(DATE_FORMAT.get().format(new Date(time)));
             out.print(" : ");
         }
-        if (msg != null) {
-            out.print(msg);
+        String m = getMessage();
+        if (m != null) {
+            out.print(m);
         }
     }
 }
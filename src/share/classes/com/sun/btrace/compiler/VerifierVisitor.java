@@ -137,7 +137,14 @@ public class VerifierVisitor extends TreeScanner<Boolean, Void> {
     }
 
     private boolean isBTraceClass(String typeName) {
-        return typeName.equals("com.sun.btrace.BTraceUtils") || typeName.startsWith("com.sun.btrace.BTraceUtils.");
+        return typeName.equals("com.sun.btrace.BTraceUtils") || typeName.startsWith("com.sun.btrace.BTraceUtils.") ||
+               isPrimitiveMap(typeName);
+    }
+
+    private boolean isPrimitiveMap(String typeName) {
+        return typeName.equals("com.sun.btrace.LongLongMap") ||
+               typeName.equals("com.sun.btrace.IntLongMap") ||
+               typeName.equals("com.sun.btrace.StringLongMap");
     }
 
     @Override
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.AnnotationVisitor;
+import com.sun.btrace.org.objectweb.asm.ClassVisitor;
+import com.sun.btrace.org.objectweb.asm.Handle;
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.org.objectweb.asm.tree.AbstractInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.ClassNode;
+import com.sun.btrace.org.objectweb.asm.tree.IincInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.IntInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
+import com.sun.btrace.org.objectweb.asm.tree.VarInsnNode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sun.btrace.runtime.Constants.*;
+
+/**
+ * Replaces the {@code AnyType[]} handler argument by separate {@code Object}
+ * arguments when the handler only reads the array elements at constant indices.
+ * <p>
+ * The probe site then pushes the boxed values directly instead of allocating
+ * and populating a new array on each invocation. {@linkplain #analyze(ClassNode, Iterable)}
+ * decides which handlers qualify; the visitor itself rewrites the handler body
+ * while it is being copied into the instrumented class.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class AnytypeArgsUnpacker extends MethodVisitor {
+    /**
+     * Handlers reading beyond this index keep receiving an array
+     */
+    static final int MAX_UNPACKED_ARGS = 16;
+
+    private static final String ANYTYPE_ARRAY_DESC = "[" + ANYTYPE_DESC;
+
+    private final int argIndex;
+    private final int argSlot;
+    private final int unpacked;
+
+    private boolean loaded = false;
+    private int constIndex = -1;
+
+    private AnytypeArgsUnpacker(MethodVisitor mv, int[] arg, int unpacked) {
+        super(Opcodes.ASM5, mv);
+        this.argIndex = arg[0];
+        this.argSlot = arg[1];
+        this.unpacked = unpacked;
+    }
+
+    /**
+     * Computes the number of unpacked arguments for all the given handlers
+     * @param cn the BTrace class
+     * @param onMethods the handlers defined in the BTrace class
+     */
+    static void analyze(ClassNode cn, Iterable<OnMethod> onMethods) {
+        Map<String, Integer> results = new HashMap<>();
+        for (OnMethod om : onMethods) {
+            String mid = CallGraph.methodId(om.getTargetName(), om.getTargetDescriptor());
+            Integer cnt = results.get(mid);
+            if (cnt == null) {
+                cnt = -1;
+                for (MethodNode mn : (List<MethodNode>)cn.methods) {
+                    if (mn.name.equals(om.getTargetName()) && mn.desc.equals(om.getTargetDescriptor())) {
+                        cnt = unpackedArgs(cn, mn);
+                        break;
+                    }
+                }
+                results.put(mid, cnt);
+            }
+            om.setUnpackedArgs(cnt);
+        }
+    }
+
+    /**
+     * The descriptor to invoke the copied handler with
+     * @param om the handler
+     * @return the handler descriptor as used in the instrumented class
+     */
+    static String actionDescriptor(OnMethod om) {
+        String desc = om.getTargetDescriptor();
+        int cnt = om.getUnpackedArgs();
+        if (cnt > -1) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < cnt; i++) {
+                sb.append(OBJECT_DESC);
+            }
+            desc = desc.replace(ANYTYPE_ARRAY_DESC, sb.toString());
+        }
+        return desc.replace(ANYTYPE_DESC, OBJECT_DESC);
+    }
+
+    /**
+     * Wraps the visitor receiving the copied handlers such that the handlers
+     * with unpacked arguments get rewritten on the fly
+     * @param cv the copying visitor
+     * @param prefix the action method prefix
+     * @param onMethods the handlers defined in the BTrace class
+     * @return the wrapped visitor
+     */
+    static ClassVisitor forHandlers(ClassVisitor cv, String prefix, Iterable<OnMethod> onMethods) {
+        final Map<String, OnMethod> unpackedHandlers = new HashMap<>();
+        for (OnMethod om : onMethods) {
+            if (om.getUnpackedArgs() > -1) {
+                unpackedHandlers.put(
+                    CallGraph.methodId(
+                        prefix + om.getTargetName(),
+                        om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC)
+                    ), om
+                );
+            }
+        }
+        if (unpackedHandlers.isEmpty()) {
+            return cv;
+        }
+        return new ClassVisitor(Opcodes.ASM5, cv) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String sig, String[] exceptions) {
+                OnMethod om = unpackedHandlers.get(CallGraph.methodId(name, desc));
+                if (om == null) {
+                    return super.visitMethod(access, name, desc, sig, exceptions);
+                }
+                MethodVisitor mv = super.visitMethod(access, name, actionDescriptor(om), null, exceptions);
+                return mv != null ? wrap(mv, om) : null;
+            }
+        };
+    }
+
+    /**
+     * Applies the argument rewrite to a single handler, if applicable
+     * @param mv the visitor receiving the handler code
+     * @param om the handler
+     * @return the wrapping visitor or the original one if there is nothing to rewrite
+     */
+    static MethodVisitor wrap(MethodVisitor mv, OnMethod om) {
+        return om.getUnpackedArgs() > -1 ? new AnytypeArgsUnpacker(mv, anytypeArg(om.getTargetDescriptor()), om.getUnpackedArgs()) : mv;
+    }
+
+    private static int unpackedArgs(ClassNode cn, MethodNode mn) {
+        if ((mn.access & Opcodes.ACC_STATIC) == 0) {
+            return -1;
+        }
+        int[] arg = anytypeArg(mn.desc);
+        if (arg == null) {
+            return -1;
+        }
+        int slot = arg[1];
+        for (MethodNode m : (List<MethodNode>)cn.methods) {
+            for (AbstractInsnNode n = m.instructions.getFirst(); n != null; n = n.getNext()) {
+                if (n.getType() == AbstractInsnNode.METHOD_INSN) {
+                    MethodInsnNode min = (MethodInsnNode)n;
+                    if (min.name.equals(mn.name) && min.desc.equals(mn.desc)) {
+                        // the handler is also invoked directly; keep the array
+                        return -1;
+                    }
+                }
+            }
+        }
+        int maxIndex = -1;
+        for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+            if (n.getType() == AbstractInsnNode.IINC_INSN) {
+                if (((IincInsnNode)n).var == slot) {
+                    return -1;
+                }
+            } else if (n.getType() == AbstractInsnNode.VAR_INSN) {
+                VarInsnNode vin = (VarInsnNode)n;
+                if (vin.var != slot) {
+                    continue;
+                }
+                if (vin.getOpcode() != Opcodes.ALOAD) {
+                    return -1;
+                }
+                AbstractInsnNode idxNode = vin.getNext();
+                int idx = idxNode != null ? constIndex(idxNode.getOpcode(), idxNode) : -1;
+                if (idx < 0 || idx >= MAX_UNPACKED_ARGS) {
+                    return -1;
+                }
+                AbstractInsnNode loadNode = idxNode.getNext();
+                if (loadNode == null || loadNode.getOpcode() != Opcodes.AALOAD) {
+                    return -1;
+                }
+                maxIndex = Math.max(maxIndex, idx);
+                n = loadNode;
+            }
+        }
+        return maxIndex + 1;
+    }
+
+    /**
+     * Locates the {@code AnyType[]} argument of a static method
+     * @param desc the method descriptor
+     * @return the argument position and its local variable slot or {@code null}
+     */
+    private static int[] anytypeArg(String desc) {
+        int slot = 0;
+        int[] found = null;
+        Type[] argTypes = Type.getArgumentTypes(desc);
+        for (int i = 0; i < argTypes.length; i++) {
+            if (argTypes[i].getDescriptor().equals(ANYTYPE_ARRAY_DESC)) {
+                if (found != null) {
+                    // more than one AnyType[] argument is not supported
+                    return null;
+                }
+                found = new int[]{i, slot};
+            }
+            slot += argTypes[i].getSize();
+        }
+        return found;
+    }
+
+    private static int constIndex(int opcode, AbstractInsnNode n) {
+        switch (opcode) {
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+                return opcode - Opcodes.ICONST_0;
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+                return n != null ? ((IntInsnNode)n).operand : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private int mapVar(int var) {
+        return var > argSlot ? var + unpacked - 1 : var;
+    }
+
+    private void checkPending() {
+        if (loaded) {
+            throw new IllegalStateException("Unexpected access to the unpacked AnyType[] argument");
+        }
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        checkPending();
+        if (var == argSlot) {
+            loaded = true;
+            return;
+        }
+        super.visitVarInsn(opcode, mapVar(var));
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (loaded) {
+            if (constIndex == -1) {
+                constIndex = constIndex(opcode, null);
+                if (constIndex != -1) {
+                    return;
+                }
+            } else if (opcode == Opcodes.AALOAD) {
+                super.visitVarInsn(Opcodes.ALOAD, argSlot + constIndex);
+                loaded = false;
+                constIndex = -1;
+                return;
+            }
+        }
+        checkPending();
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        if (loaded && constIndex == -1 && (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH)) {
+            constIndex = operand;
+            return;
+        }
+        checkPending();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        checkPending();
+        super.visitIincInsn(mapVar(var), increment);
+    }
+
+    @Override
+    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+        if (parameter == argIndex) {
+            return null;
+        }
+        return super.visitParameterAnnotation(parameter > argIndex ? parameter + unpacked - 1 : parameter, desc, visible);
+    }
+
+    @Override
+    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+        if (index != argSlot) {
+            super.visitLocalVariable(name, desc, signature, start, end, mapVar(index));
+        }
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        checkPending();
+        if (type == Opcodes.F_NEW || type == Opcodes.F_FULL) {
+            List<Object> newLocals = new ArrayList<>(nLocal + unpacked);
+            int slot = 0;
+            for (int i = 0; i < nLocal; i++) {
+                Object l = local[i];
+                if (slot == argSlot) {
+                    Object replacement = l == Opcodes.TOP ? Opcodes.TOP : OBJECT_INTERNAL;
+                    for (int j = 0; j < unpacked; j++) {
+                        newLocals.add(replacement);
+                    }
+                } else {
+                    newLocals.add(l);
+                }
+                slot += (l == Opcodes.LONG || l == Opcodes.DOUBLE) ? 2 : 1;
+            }
+            super.visitFrame(type, newLocals.size(), newLocals.toArray(), nStack, stack);
+        } else {
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        checkPending();
+        super.visitMaxs(maxStack, maxLocals + unpacked - 1);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        checkPending();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        checkPending();
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        checkPending();
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        checkPending();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        checkPending();
+        super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        checkPending();
+        super.visitLabel(label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        checkPending();
+        super.visitLdcInsn(cst);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        checkPending();
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        checkPending();
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        checkPending();
+        super.visitMultiANewArrayInsn(desc, dims);
+    }
+}
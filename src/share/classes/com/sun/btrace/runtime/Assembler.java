@@ -31,6 +31,7 @@ import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import static com.sun.btrace.runtime.Constants.*;
 
 import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
 import com.sun.btrace.util.Interval;
 
 /**
@@ -166,6 +167,16 @@ final public class Assembler {
         return this;
     }
 
+    /**
+     * Emits a trivial handler body instead of invoking the handler
+     * @param body the handler body as extracted by {@linkplain HandlerInliner}
+     * @return this assembler
+     */
+    public Assembler inline(MethodNode body) {
+        HandlerInliner.emit(body, mv, mHelper);
+        return this;
+    }
+
     public Assembler loadNull() {
         mv.visitInsn(ACONST_NULL);
         return this;
@@ -43,6 +43,7 @@ final class BTraceClassWriter extends ClassWriter {
     private final ClassLoader targetCL;
     private final BTraceClassReader cr;
     private InstrumentingClassVisitor iClassVisitor = null;
+    private TransformMetrics metrics = null;
 
     BTraceClassWriter(ClassLoader cl, int flags) {
         super(flags);
@@ -73,6 +74,10 @@ final class BTraceClassWriter extends ClassWriter {
         }
     }
 
+    void setMetrics(TransformMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public byte[] instrument() {
         boolean hit = false;
         synchronized(instrumentors) {
@@ -89,6 +94,18 @@ final class BTraceClassWriter extends ClassWriter {
 
     @Override
     protected String getCommonSuperClass(String type1, String type2) {
+        if (metrics == null) {
+            return resolveCommonSuperClass(type1, type2);
+        }
+        long start = System.nanoTime();
+        try {
+            return resolveCommonSuperClass(type1, type2);
+        } finally {
+            metrics.commonSuperClass(start);
+        }
+    }
+
+    private String resolveCommonSuperClass(String type1, String type2) {
         // Using type closures resolved via the associate classloader
         LinkedHashSet<String> type1Closure = new LinkedHashSet<>();
         LinkedHashSet<String> type2Closure = new LinkedHashSet<>();
@@ -314,8 +314,11 @@ public final class BTraceProbeNode extends ClassNode implements BTraceProbe {
                 copyNodes.add(copy(c));
             }
         }
+        ClassVisitor cv = AnytypeArgsUnpacker.forHandlers(
+            copyingVisitor, InstrumentUtils.getActionPrefix(getClassName(true)), onmethods()
+        );
         for(MethodNode mn : copyNodes) {
-            mn.accept(copyingVisitor);
+            mn.accept(cv);
         }
     }
 
@@ -406,6 +409,10 @@ public final class BTraceProbeNode extends ClassNode implements BTraceProbe {
                 debug.debug("... preprocessed");
             }
             mapOnProbes();
+            AnytypeArgsUnpacker.analyze(this, onmethods());
+            if (factory.getSettings().isInlineHandlers()) {
+                HandlerInliner.analyze(this, onmethods());
+            }
         } catch (VerifierException e) {
             verifierException = e;
         } finally {
@@ -30,6 +30,7 @@ import com.sun.btrace.annotations.Sampled;
 import com.sun.btrace.annotations.Where;
 import com.sun.btrace.comm.RetransformClassNotification;
 import com.sun.btrace.org.objectweb.asm.*;
+import com.sun.btrace.org.objectweb.asm.tree.ClassNode;
 
 import static com.sun.btrace.org.objectweb.asm.Opcodes.*;
 import static com.sun.btrace.runtime.Constants.*;
@@ -149,6 +150,7 @@ public class BTraceProbePersisted implements BTraceProbe {
         readCallees(dis);
         readDataHolderClass(dis);
         readFullData(dis);
+        analyzeHandlers();
     }
 
     public void write(DataOutputStream dos) {
@@ -259,6 +261,15 @@ public class BTraceProbePersisted implements BTraceProbe {
         }
     }
 
+    private void analyzeHandlers() {
+        ClassNode cn = new ClassNode(Opcodes.ASM5);
+        new ClassReader(fullData).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        AnytypeArgsUnpacker.analyze(cn, onmethods());
+        if (factory.getSettings().isInlineHandlers()) {
+            HandlerInliner.analyze(cn, onmethods());
+        }
+    }
+
     private void writeServices(DataOutputStream dos) throws IOException {
         Map<String, String> svcFields = delegate.serviceFields();
         dos.writeInt(svcFields.size());
@@ -489,12 +500,15 @@ public class BTraceProbePersisted implements BTraceProbe {
                 }
             }
         }
+        final ClassVisitor handlerVisitor = AnytypeArgsUnpacker.forHandlers(
+            copyingVisitor, InstrumentUtils.getActionPrefix(getClassName(true)), onmethods()
+        );
         cr.accept(new ClassVisitor(Opcodes.ASM5) {
             @Override
             public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
                 String mid = CallGraph.methodId(name, desc);
                 if (copiedMethods.contains(mid)) {
-                    return copyingVisitor.visitMethod(
+                    return handlerVisitor.visitMethod(
                             Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC,
                             InstrumentUtils.getActionPrefix(getClassName(true)) + name,
                             desc.replace(ANYTYPE_DESC, OBJECT_DESC),
@@ -694,6 +708,10 @@ public class BTraceProbePersisted implements BTraceProbe {
                                     // allow string concatenation via StringBuilder
                                 } else if (owner.equals(THREAD_LOCAL_INTERNAL)) {
                                     // allow ThreadLocal methods
+                                } else if (owner.startsWith(PRIMITIVE_TLS_INTERNAL + "$")) {
+                                    // allow primitive @TLS holder methods
+                                } else if (MethodVerifier.isPrimitiveMap(owner)) {
+                                    // allow primitive map methods
                                 } else {
                                     if (!delegate.isServiceType(owner)) {
                                         Verifier.reportError("no.method.calls", owner + "." + name + desc);
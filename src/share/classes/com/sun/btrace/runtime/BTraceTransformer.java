@@ -26,6 +26,7 @@ package com.sun.btrace.runtime;
 
 import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.DebugSupport;
+import com.sun.btrace.util.MethodID;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
@@ -134,6 +135,10 @@ public final class BTraceTransformer implements ClassFileTransformer {
     private final ReentrantReadWriteLock setupLock = new ReentrantReadWriteLock();
     private final Collection<BTraceProbe> probes = new ArrayList<>(3);
     private final Filter filter = new Filter();
+    private volatile InstrumentedClassCache classCache;
+    // identifies the registered probes in the class cache keys
+    private volatile byte[] probesDigest;
+    private volatile TransformMetrics metrics;
 
     public BTraceTransformer(DebugSupport d) {
         debug = d;
@@ -146,6 +151,7 @@ public final class BTraceTransformer implements ClassFileTransformer {
             for(OnMethod om : p.onmethods()) {
                 filter.add(om);
             }
+            updateProbesDigest();
         } finally {
             setupLock.writeLock().unlock();
         }
@@ -158,6 +164,7 @@ public final class BTraceTransformer implements ClassFileTransformer {
             for(OnMethod om : p.onmethods()) {
                 filter.remove(om);
             }
+            updateProbesDigest();
         } finally {
             setupLock.writeLock().unlock();
         }
@@ -167,8 +174,38 @@ public final class BTraceTransformer implements ClassFileTransformer {
         return filter;
     }
 
+    /**
+     * Enables reusing the instrumented class bytes across JVM runs
+     * @param cache the class cache or {@code null} to disable caching
+     */
+    public final void setClassCache(InstrumentedClassCache cache) {
+        try {
+            setupLock.writeLock().lock();
+            classCache = cache;
+            updateProbesDigest();
+        } finally {
+            setupLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Enables collecting the class transformation metrics
+     * @param metrics the metrics or {@code null} to stop collecting them
+     */
+    public final void setMetrics(TransformMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void updateProbesDigest() {
+        probesDigest = classCache != null ? InstrumentedClassCache.digest(probes) : null;
+    }
+
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        TransformMetrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0L;
+        TransformMetrics.Outcome outcome = TransformMetrics.Outcome.FILTERED;
+        byte[] result = null;
         try {
             setupLock.readLock().lock();
             if (probes.isEmpty()) return null;
@@ -182,25 +219,55 @@ public final class BTraceTransformer implements ClassFileTransformer {
                 return null;
             }
 
-            if (filter.matchClass(className) == Filter.Result.FALSE) return null;
+            Filter.Result match = filter.matchClass(className);
+            if (match == Filter.Result.FALSE) return null;
 
+            outcome = TransformMetrics.Outcome.FAILED;
             boolean entered = BTraceRuntime.enter();
             try {
                 if (isDebug()) {
                     debug.dumpClass(className.replace('.', '/') + "_orig", classfileBuffer);
                 }
+                InstrumentedClassCache cache = classCache;
+                String cacheKey = null;
+                // the subtype matching depends on the class hierarchy seen by the loader
+                if (cache != null && match == Filter.Result.TRUE) {
+                    cacheKey = cache.key(classfileBuffer, probesDigest);
+                    byte[] cached = cache.get(cacheKey);
+                    if (cached != null) {
+                        for(BTraceProbe p : probes) {
+                            p.notifyTransform(className);
+                        }
+                        if (isDebug()) {
+                            debugPrint("using cached class " + className);
+                        }
+                        outcome = TransformMetrics.Outcome.CACHED;
+                        result = cached.length > 0 ? cached : classfileBuffer;
+                        return result;
+                    }
+                }
+                long idsEmbedded = MethodID.getEmbedded();
                 BTraceClassReader cr = InstrumentUtils.newClassReader(loader, classfileBuffer);
                 BTraceClassWriter cw = InstrumentUtils.newClassWriter(cr);
+                if (m != null) {
+                    m.parsed();
+                    cw.setMetrics(m);
+                }
                 for(BTraceProbe p : probes) {
                     p.notifyTransform(className);
                     cw.addInstrumentor(p, loader);
                 }
                 byte[] transformed = cw.instrument();
+                // the code embedding method ids is valid for this JVM run only
+                if (cacheKey != null && MethodID.getEmbedded() == idsEmbedded) {
+                    cache.put(cacheKey, transformed);
+                }
                 if (transformed == null) {
                     // no instrumentation necessary
                     if (isDebug()) {
                         debugPrint("skipping class " + cr.getJavaClassName());
                     }
+                    outcome = TransformMetrics.Outcome.UNCHANGED;
                     return classfileBuffer;
                 } else {
                     if (isDebug()) {
@@ -210,6 +277,8 @@ public final class BTraceTransformer implements ClassFileTransformer {
                         debug.dumpClass(className.replace('.', '/'), transformed);
                     }
                 }
+                outcome = TransformMetrics.Outcome.INSTRUMENTED;
+                result = transformed;
                 return transformed;
             } catch (Throwable th) {
                 debugPrint(th);
@@ -221,6 +290,10 @@ public final class BTraceTransformer implements ClassFileTransformer {
             }
         } finally {
             setupLock.readLock().unlock();
+            if (m != null) {
+                m.record(outcome, className, start, classfileBuffer.length,
+                         result != null && result != classfileBuffer ? result.length : 0);
+            }
         }
     }
 
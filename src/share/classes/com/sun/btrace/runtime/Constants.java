@@ -90,6 +90,11 @@ public abstract class Constants {
     public static final String THREAD_LOCAL_INTERNAL = "java/lang/ThreadLocal";
     public static final String THREAD_LOCAL_DESC = "L" + THREAD_LOCAL_INTERNAL + ";";
     public static final Type THREAD_LOCAL_TYPE = Type.getType(ThreadLocal.class);
+    public static final String PRIMITIVE_TLS_INTERNAL = "com/sun/btrace/PrimitiveThreadLocal";
+
+    public static final String LONG_LONG_MAP_INTERNAL = "com/sun/btrace/LongLongMap";
+    public static final String INT_LONG_MAP_INTERNAL = "com/sun/btrace/IntLongMap";
+    public static final String STRING_LONG_MAP_INTERNAL = "com/sun/btrace/StringLongMap";
 
     // BTrace specific stuff
     public static final String BTRACE_UTILS =
@@ -222,4 +227,5 @@ public abstract class Constants {
     public static final String EMBEDDED_BTRACE_SECTION_HEADER = "META-INF/btrace/";
 
     public static final String BTRACE_LEVEL_FLD = "$btrace$$level";
+    public static final String BTRACE_REGEX_FLD_PREFIX = "$btrace$$regex$";
 }
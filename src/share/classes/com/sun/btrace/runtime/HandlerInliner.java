@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.Label;
+import com.sun.btrace.org.objectweb.asm.MethodVisitor;
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.Type;
+import com.sun.btrace.org.objectweb.asm.tree.AbstractInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.ClassNode;
+import com.sun.btrace.org.objectweb.asm.tree.FieldInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.IincInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.LdcInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
+import com.sun.btrace.org.objectweb.asm.tree.VarInsnNode;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.sun.btrace.runtime.Constants.*;
+
+/**
+ * Inlines trivial handler bodies directly into the instrumented methods.
+ * <p>
+ * A handler is trivial when its body (without the {@linkplain com.sun.btrace.BTraceRuntime}
+ * enter/leave guard added by the {@linkplain Preprocessor}) is short, straight-line
+ * code which neither calls any method nor can throw - eg. updating a static
+ * counter. Such a body can not fail so the exception handler is dropped together
+ * with the handler invocation. The enter/leave guard is kept; the body does not
+ * run on the BTrace threads nor once the runtime is disabled.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class HandlerInliner {
+    /**
+     * The maximum number of instructions of an inlined handler body
+     */
+    static final int MAX_INLINED_INSNS = 24;
+
+    private HandlerInliner() {}
+
+    /**
+     * Extracts the inlinable bodies of all the trivial handlers
+     * @param cn the BTrace class
+     * @param onMethods the handlers defined in the BTrace class
+     */
+    static void analyze(ClassNode cn, Iterable<OnMethod> onMethods) {
+        Map<String, MethodNode> bodies = new HashMap<>();
+        for (OnMethod om : onMethods) {
+            String mid = CallGraph.methodId(om.getTargetName(), om.getTargetDescriptor());
+            if (!bodies.containsKey(mid)) {
+                MethodNode body = null;
+                for (Object o : cn.methods) {
+                    MethodNode mn = (MethodNode)o;
+                    if (mn.name.equals(om.getTargetName()) && mn.desc.equals(om.getTargetDescriptor())) {
+                        MethodNode handler = new MethodNode(
+                            Opcodes.ASM5, mn.access, mn.name,
+                            AnytypeArgsUnpacker.actionDescriptor(om), null, null
+                        );
+                        mn.accept(AnytypeArgsUnpacker.wrap(handler, om));
+                        body = extractBody(cn.name, handler);
+                        break;
+                    }
+                }
+                bodies.put(mid, body);
+            }
+            om.setInlinedBody(bodies.get(mid));
+        }
+    }
+
+    /**
+     * Emits the guarded handler body in place of the handler invocation.
+     * The handler arguments are expected on the stack.
+     * @param body the inlinable handler body
+     * @param mv the visitor of the instrumented method
+     * @param mHelper the instrumented method helper
+     */
+    static void emit(MethodNode body, MethodVisitor mv, MethodInstrumentorHelper mHelper) {
+        Type[] argTypes = Type.getArgumentTypes(body.desc);
+        int[] argSlots = new int[argTypes.length];
+        int slot = 0;
+        for (int i = 0; i < argTypes.length; i++) {
+            argSlots[i] = slot;
+            slot += argTypes[i].getSize();
+        }
+        Map<String, Integer> vars = new HashMap<>();
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            int idx = mHelper.newVar(argTypes[i]);
+            mv.visitVarInsn(argTypes[i].getOpcode(Opcodes.ISTORE), idx);
+            vars.put(varKey(argSlots[i], argTypes[i]), idx);
+        }
+        // the body locals must be initialized on the path skipping the body too
+        AbstractInsnNode rtField = body.instructions.getFirst();
+        for (AbstractInsnNode n = rtField.getNext(); n != null; n = n.getNext()) {
+            if (n.getType() == AbstractInsnNode.VAR_INSN) {
+                VarInsnNode vin = (VarInsnNode)n;
+                initVar(vars, vin.var, varType(vin.getOpcode()), mv, mHelper);
+            } else if (n.getType() == AbstractInsnNode.IINC_INSN) {
+                initVar(vars, ((IincInsnNode)n).var, Type.INT_TYPE, mv, mHelper);
+            }
+        }
+
+        Label skip = new Label();
+        rtField.accept(mv);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, BTRACERT_INTERNAL, "enter", "(" + BTRACERT_DESC + ")Z", false);
+        mv.visitJumpInsn(Opcodes.IFEQ, skip);
+        for (AbstractInsnNode n = rtField.getNext(); n != null; n = n.getNext()) {
+            switch (n.getType()) {
+                case AbstractInsnNode.VAR_INSN: {
+                    VarInsnNode vin = (VarInsnNode)n;
+                    mv.visitVarInsn(vin.getOpcode(), vars.get(varKey(vin.var, varType(vin.getOpcode()))));
+                    break;
+                }
+                case AbstractInsnNode.IINC_INSN: {
+                    IincInsnNode iin = (IincInsnNode)n;
+                    mv.visitIincInsn(vars.get(varKey(iin.var, Type.INT_TYPE)), iin.incr);
+                    break;
+                }
+                default: {
+                    n.accept(mv);
+                }
+            }
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, BTRACERT_INTERNAL, "leave", "()V", false);
+        mv.visitLabel(skip);
+        mHelper.insertFrameSameStack(skip);
+    }
+
+    /**
+     * Strips the enter/leave guard and returns the remaining handler body
+     * if it is trivial; the body starts with the guard's runtime field read
+     */
+    private static MethodNode extractBody(String className, MethodNode handler) {
+        if (!Type.getReturnType(handler.desc).equals(Type.VOID_TYPE) ||
+            handler.tryCatchBlocks.size() != 1) {
+            return null;
+        }
+        AbstractInsnNode n = next(handler.instructions.getFirst());
+        if (n == null || n.getOpcode() != Opcodes.GETSTATIC || !((FieldInsnNode)n).desc.equals(BTRACERT_DESC)) {
+            return null;
+        }
+        AbstractInsnNode rtField = n;
+        n = next(n.getNext());
+        if (!isRuntimeCall(n, "enter")) {
+            return null;
+        }
+        n = next(n.getNext());
+        if (n == null || n.getOpcode() != Opcodes.IFNE) {
+            return null;
+        }
+        n = next(n.getNext());
+        if (n == null || n.getOpcode() != Opcodes.RETURN) {
+            return null;
+        }
+
+        MethodNode body = new MethodNode(Opcodes.ASM5, handler.access, handler.name, handler.desc, null, null);
+        // the runtime field read is kept for the guard
+        rtField.accept(body);
+        int cnt = 0;
+        for (n = next(n.getNext()); n != null; n = next(n.getNext())) {
+            if (isRuntimeCall(n, "leave")) {
+                AbstractInsnNode r = next(n.getNext());
+                return r != null && r.getOpcode() == Opcodes.RETURN ? body : null;
+            }
+            if (!isTrivial(className, n) || ++cnt > MAX_INLINED_INSNS) {
+                return null;
+            }
+            n.accept(body);
+        }
+        return null;
+    }
+
+    private static boolean isTrivial(String className, AbstractInsnNode n) {
+        int opcode = n.getOpcode();
+        switch (n.getType()) {
+            case AbstractInsnNode.INSN: {
+                if (opcode > Opcodes.DCMPG) {
+                    // returns, throw, monitors, arraylength
+                    return false;
+                }
+                if (opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD) {
+                    return false;
+                }
+                if (opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE) {
+                    return false;
+                }
+                switch (opcode) {
+                    case Opcodes.IDIV:
+                    case Opcodes.LDIV:
+                    case Opcodes.IREM:
+                    case Opcodes.LREM:
+                        return false;
+                }
+                return true;
+            }
+            case AbstractInsnNode.INT_INSN: {
+                return opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH;
+            }
+            case AbstractInsnNode.VAR_INSN: {
+                return opcode != Opcodes.RET;
+            }
+            case AbstractInsnNode.IINC_INSN: {
+                return true;
+            }
+            case AbstractInsnNode.LDC_INSN: {
+                Object cst = ((LdcInsnNode)n).cst;
+                return cst instanceof Number || cst instanceof String;
+            }
+            case AbstractInsnNode.FIELD_INSN: {
+                return (opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC) &&
+                       ((FieldInsnNode)n).owner.equals(className);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRuntimeCall(AbstractInsnNode n, String name) {
+        if (n == null || n.getOpcode() != Opcodes.INVOKESTATIC) {
+            return false;
+        }
+        MethodInsnNode min = (MethodInsnNode)n;
+        return min.owner.equals(BTRACERT_INTERNAL) && min.name.equals(name);
+    }
+
+    /**
+     * Skips labels, line numbers and frames
+     */
+    private static AbstractInsnNode next(AbstractInsnNode n) {
+        while (n != null && n.getOpcode() == -1) {
+            n = n.getNext();
+        }
+        return n;
+    }
+
+    private static void initVar(Map<String, Integer> vars, int var, Type t, MethodVisitor mv, MethodInstrumentorHelper mHelper) {
+        String key = varKey(var, t);
+        if (!vars.containsKey(key)) {
+            switch (t.getSort()) {
+                case Type.INT: {
+                    mv.visitInsn(Opcodes.ICONST_0);
+                    break;
+                }
+                case Type.LONG: {
+                    mv.visitInsn(Opcodes.LCONST_0);
+                    break;
+                }
+                case Type.FLOAT: {
+                    mv.visitInsn(Opcodes.FCONST_0);
+                    break;
+                }
+                case Type.DOUBLE: {
+                    mv.visitInsn(Opcodes.DCONST_0);
+                    break;
+                }
+                default: {
+                    mv.visitInsn(Opcodes.ACONST_NULL);
+                }
+            }
+            int idx = mHelper.newVar(t);
+            mv.visitVarInsn(t.getOpcode(Opcodes.ISTORE), idx);
+            vars.put(key, idx);
+        }
+    }
+
+    private static String varKey(int var, Type t) {
+        return var + ":" + varType(t.getOpcode(Opcodes.ILOAD)).getDescriptor();
+    }
+
+    private static Type varType(int opcode) {
+        switch (opcode) {
+            case Opcodes.ILOAD:
+            case Opcodes.ISTORE:
+                return Type.INT_TYPE;
+            case Opcodes.LLOAD:
+            case Opcodes.LSTORE:
+                return Type.LONG_TYPE;
+            case Opcodes.FLOAD:
+            case Opcodes.FSTORE:
+                return Type.FLOAT_TYPE;
+            case Opcodes.DLOAD:
+            case Opcodes.DSTORE:
+                return Type.DOUBLE_TYPE;
+            default:
+                return OBJECT_TYPE;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.DebugSupport;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of the instrumented class bytes.
+ * <p>
+ * The entries are keyed by the digest of the BTrace version, the registered
+ * probes and the original class bytes so an entry is only ever reused for
+ * exactly the same input - eg. when restarting the same application with
+ * the same set of startup scripts. Classes which needed no instrumentation
+ * are cached as empty entries.
+ * <p>
+ * Each entry is a separate file written atomically via a temporary file.
+ * Once the total size of the entries exceeds the configured limit the least
+ * recently used entries are removed.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class InstrumentedClassCache {
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".class";
+    private static final String TMP_SUFFIX = ".tmp";
+    // the temp files older than this are left over by crashed processes
+    private static final long STALE_TMP_MILLIS = 10 * 60 * 1000;
+    private static final byte[] NOT_INSTRUMENTED = new byte[0];
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final long maxBytes;
+    private final byte[] version;
+    private final DebugSupport debug;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param dir the cache directory; created if necessary
+     * @param maxBytes the maximum total size of the cached entries
+     * @param version the BTrace version; entries of other versions are never used
+     * @param debug the debug support
+     * @throws IOException if the cache directory can not be created
+     */
+    public InstrumentedClassCache(File dir, long maxBytes, String version, DebugSupport debug) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create the class cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        this.version = version.getBytes(UTF8);
+        this.debug = debug;
+        removeStaleTempFiles();
+        long total = 0;
+        for (File f : entries()) {
+            total += f.length();
+        }
+        size.set(total);
+    }
+
+    /**
+     * Computes the digest identifying the set of registered probes
+     * @param probes the probes in the order they are applied
+     * @return the digest
+     */
+    static byte[] digest(Iterable<BTraceProbe> probes) {
+        MessageDigest md = newDigest();
+        for (BTraceProbe p : probes) {
+            update(md, p.getClassName());
+            md.update(p.getFullBytecode());
+            for (OnMethod om : p.onmethods()) {
+                update(md, om.getClazz());
+                update(md, om.getMethod());
+                update(md, om.getType());
+                update(md, String.valueOf(om.getLocation()));
+                update(md, om.getTargetName());
+                update(md, om.getTargetDescriptor());
+                update(md, String.valueOf(om.getSamplerKind()));
+                update(md, String.valueOf(om.getSamplerMean()));
+                update(md, om.getLevel() != null ? String.valueOf(om.getLevel().getValue()) : null);
+                md.update((byte)(om.getInlinedBody() != null ? 1 : 0));
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * @param classBytes the original class bytes
+     * @param probesDigest the digest of the registered probes
+     * @return the cache key
+     */
+    String key(byte[] classBytes, byte[] probesDigest) {
+        MessageDigest md = newDigest();
+        md.update(version);
+        md.update(probesDigest);
+        md.update(classBytes);
+        byte[] d = md.digest();
+        StringBuilder sb = new StringBuilder(d.length * 2);
+        for (byte b : d) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key the cache key
+     * @return the cached class bytes, an empty array if the class does not
+     *         need to be instrumented or {@code null} if there is no entry
+     */
+    byte[] get(String key) {
+        File f = new File(dir, key + SUFFIX);
+        if (!f.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(f.toPath());
+            if (data.length > 0 && !isClass(data)) {
+                // should not happen as the entries are written atomically
+                delete(f);
+                misses.incrementAndGet();
+                return null;
+            }
+            // keep the recently used entries from being evicted
+            f.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return data.length > 0 ? data : NOT_INSTRUMENTED;
+        } catch (IOException e) {
+            debug.debug(e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry
+     * @param key the cache key
+     * @param data the instrumented class bytes or {@code null} if the class
+     *             does not need to be instrumented
+     */
+    void put(String key, byte[] data) {
+        if (data == null) {
+            data = NOT_INSTRUMENTED;
+        }
+        File target = new File(dir, key + SUFFIX);
+        if (target.isFile()) {
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, TMP_SUFFIX, dir);
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(data);
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            if (size.addAndGet(data.length) > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            debug.debug(e);
+        } finally {
+            if (tmp != null) {
+                delete(tmp);
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is shrunk
+     * to 3/4 of its maximum size
+     */
+    private synchronized void evict() {
+        if (size.get() <= maxBytes) {
+            return;
+        }
+        File[] files = entries();
+        final long[] mtimes = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            mtimes[i] = files[i].lastModified();
+            order[i] = i;
+            total += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(mtimes[o1], mtimes[o2]);
+            }
+        });
+        long limit = maxBytes / 4 * 3;
+        for (int i = 0; i < order.length && total > limit; i++) {
+            File f = files[order[i]];
+            long len = f.length();
+            if (delete(f)) {
+                total -= len;
+            }
+        }
+        size.set(total);
+        if (debug.isDebug()) {
+            debug.debug("class cache evicted to " + total + " bytes");
+        }
+    }
+
+    private File[] entries() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int cnt = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX) && f.isFile()) {
+                files[cnt++] = f;
+            }
+        }
+        return Arrays.copyOf(files, cnt);
+    }
+
+    /**
+     * Removes the temp files left over by crashed processes. The recent ones
+     * may still be written by a concurrent {@linkplain #put(String, byte[])}
+     * in this or another process sharing the directory so they are kept.
+     */
+    private void removeStaleTempFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long threshold = System.currentTimeMillis() - STALE_TMP_MILLIS;
+        for (File f : files) {
+            if (f.getName().endsWith(TMP_SUFFIX) && f.lastModified() < threshold) {
+                delete(f);
+            }
+        }
+    }
+
+    private static boolean delete(File f) {
+        try {
+            return Files.deleteIfExists(f.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isClass(byte[] data) {
+        return data.length > 4 &&
+               (data[0] & 0xff) == 0xca && (data[1] & 0xff) == 0xfe &&
+               (data[2] & 0xff) == 0xba && (data[3] & 0xff) == 0xbe;
+    }
+
+    private static void update(MessageDigest md, String s) {
+        if (s != null) {
+            md.update(s.getBytes(UTF8));
+        }
+        md.update((byte)0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -447,14 +447,20 @@ public class Instrumentor extends ClassVisitor {
                             Type t = actionArgTypes[index];
                             if (TypeUtils.isAnyTypeArray(t)) {
                                 if (i < backupArgsIndices.length - 1) {
-                                    actionArgs[i] = anytypeArg(index, backupArgsIndices[i+1], callArgTypes);
+                                    actionArgs[i] = anytypeArg(index, backupArgsIndices[i+1], om.getUnpackedArgs(), callArgTypes);
                                 } else {
                                     actionArgs[i] = new ArgumentProvider(asm, index) {
 
                                         @Override
                                         protected void doProvide() {
-                                            asm.push(0)
-                                               .newArray(OBJECT_TYPE);
+                                            if (om.getUnpackedArgs() > -1) {
+                                                for (int j = 0; j < om.getUnpackedArgs(); j++) {
+                                                    asm.loadNull();
+                                                }
+                                            } else {
+                                                asm.push(0)
+                                                   .newArray(OBJECT_TYPE);
+                                            }
                                         }
                                     };
                                 }
@@ -1690,9 +1696,13 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private void invokeBTraceAction(Assembler asm, OnMethod om) {
-        asm.invokeStatic(className, getActionMethodName(om.getTargetName()),
-            om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
         calledOnMethods.add(om);
+        if (om.getInlinedBody() != null) {
+            asm.inline(om.getInlinedBody());
+            return;
+        }
+        asm.invokeStatic(className, getActionMethodName(om.getTargetName()),
+            AnytypeArgsUnpacker.actionDescriptor(om));
         om.setCalled();
     }
 
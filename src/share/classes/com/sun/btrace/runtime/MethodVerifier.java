@@ -48,10 +48,12 @@ final class MethodVerifier extends StackTrackingMethodVisitor {
 
     final private static Set<String> primitiveWrapperTypes;
     final private static Set<String> unboxMethods;
+    final private static Set<String> primitiveMapTypes;
 
     static {
         primitiveWrapperTypes = new HashSet<>();
         unboxMethods = new HashSet<>();
+        primitiveMapTypes = new HashSet<>();
 
         primitiveWrapperTypes.add("java/lang/Boolean");
         primitiveWrapperTypes.add("java/lang/Byte");
@@ -69,6 +71,9 @@ final class MethodVerifier extends StackTrackingMethodVisitor {
         unboxMethods.add("longValue");
         unboxMethods.add("floatValue");
         unboxMethods.add("doubleValue");
+        primitiveMapTypes.add(LONG_LONG_MAP_INTERNAL);
+        primitiveMapTypes.add(INT_LONG_MAP_INTERNAL);
+        primitiveMapTypes.add(STRING_LONG_MAP_INTERNAL);
     }
 
     protected Location loc;
@@ -188,6 +193,8 @@ final class MethodVerifier extends StackTrackingMethodVisitor {
                     // and can't be caught by source AST analyzer as well.
                 } else if (owner.equals(Type.getInternalName(StringBuilder.class))) {
                    // allow string concatenation via StringBuilder
+                } else if (isPrimitiveMap(owner)) {
+                    // allow primitive map methods
                 } else {
                     List<StackItem> args = getMethodParams(desc, false);
                     if (!isServiceTarget(args.get(0))) {
@@ -270,6 +277,10 @@ final class MethodVerifier extends StackTrackingMethodVisitor {
         return unboxMethods.contains(name);
     }
 
+    static boolean isPrimitiveMap(String type) {
+        return primitiveMapTypes.contains(type);
+    }
+
     private boolean isServiceTarget(StackItem si) {
         if (si instanceof ResultItem) {
             ResultItem ri = (ResultItem)si;
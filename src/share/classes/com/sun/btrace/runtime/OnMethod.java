@@ -48,6 +48,7 @@ import com.sun.btrace.ArgsMap;
 import com.sun.btrace.DebugSupport;
 import com.sun.btrace.SharedSettings;
 import com.sun.btrace.annotations.Sampled;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
 
 /**
  * This class is used to store data of the annotation
@@ -84,6 +85,10 @@ public final class OnMethod extends SpecialParameterHolder {
 
     private boolean isCalled = false;
 
+    private int unpackedArgs = -1;
+
+    private MethodNode inlinedBody = null;
+
     private BTraceMethodNode bmn;
     
     private final DebugSupport debug;
@@ -256,6 +261,36 @@ public final class OnMethod extends SpecialParameterHolder {
         isCalled = true;
     }
 
+    /**
+     * The number of elements the {@code AnyType[]} handler argument is
+     * unpacked into when the handler only ever reads it at constant indices.
+     * Each element is then passed as a separate {@code Object} argument and
+     * no array is allocated at the probe site; indices beyond the actual
+     * number of arguments read as {@code null}.
+     * @return the number of unpacked elements or -1 if the handler receives
+     *         a regular array
+     */
+    public int getUnpackedArgs() {
+        return unpackedArgs;
+    }
+
+    void setUnpackedArgs(int unpackedArgs) {
+        this.unpackedArgs = unpackedArgs;
+    }
+
+    /**
+     * The handler body to be inlined at the probe site instead of invoking
+     * the handler method
+     * @return the handler body or {@code null} if the handler is to be invoked
+     */
+    MethodNode getInlinedBody() {
+        return inlinedBody;
+    }
+
+    void setInlinedBody(MethodNode inlinedBody) {
+        this.inlinedBody = inlinedBody;
+    }
+
     @Override
     public String toString() {
         return "OnMethod{" + "clazz=" + clazz + ", method=" + method + ", type=" + type + ", loc=" + loc + ", targetName=" + targetName + ", targetDescriptor=" + targetDescriptor + ", classRegexMatcher=" + classRegexMatcher + ", methodRegexMatcher=" + methodRegexMatcher + ", classAnnotationMatcher=" + classAnnotationMatcher + ", methodAnnotationMatcher=" + methodAnnotationMatcher + ", subtypeMatcher=" + subtypeMatcher + ", samplerMean=" + samplerMean + ", samplerKind=" + samplerKind + ", level=" + level + ", bmn=" + bmn + '}';
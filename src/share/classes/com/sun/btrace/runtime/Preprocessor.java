@@ -60,6 +60,7 @@ import java.util.*;
  *    2. replace @Export fields by perf counters
  *       and replace put/get by perf counter update/read
  *    3. replace @TLS fields by ThreadLocal fields
+ *       (or PrimitiveThreadLocal holders for primitive fields)
  *       and replace put/get by ThreadLocal set/get
  *    4. In <clinit> method, add ThreadLocal creation
  *       and perf counter creation calls (for @Export and
@@ -72,6 +73,8 @@ import java.util.*;
  *    7. initialize and reference any service instances
  *    8. add a field to store client's BTraceRuntime instance
  *    9. make all fields publicly accessible
+ *   10. replace regular expression literals by
+ *       precompiled pattern fields
  *
  *
  * @author A. Sundararajan
@@ -151,6 +154,7 @@ final class Preprocessor {
     private static final String SERVICE_CTR_DESC = "(" + STRING_DESC + ")" + VOID_DESC;
 
     private static final Map<String, String> BOX_TYPE_MAP = new HashMap<>();
+    private static final Map<String, String> TLS_VALUE_DESC_MAP = new HashMap<>();
     private static final Set<String> GUARDED_ANNOTS = new HashSet<>();
     private static final Set<String> RT_AWARE_ANNOTS = new HashSet<>();
 
@@ -164,6 +168,16 @@ final class Preprocessor {
         BOX_TYPE_MAP.put("Z", BOOLEAN_BOXED_DESC);
         BOX_TYPE_MAP.put("C", CHARACTER_BOXED_DESC);
 
+        // primitive @TLS fields are kept in holders of the corresponding stack type
+        TLS_VALUE_DESC_MAP.put("I", "I");
+        TLS_VALUE_DESC_MAP.put("S", "I");
+        TLS_VALUE_DESC_MAP.put("B", "I");
+        TLS_VALUE_DESC_MAP.put("Z", "I");
+        TLS_VALUE_DESC_MAP.put("C", "I");
+        TLS_VALUE_DESC_MAP.put("J", "J");
+        TLS_VALUE_DESC_MAP.put("F", "F");
+        TLS_VALUE_DESC_MAP.put("D", "D");
+
         RT_AWARE_ANNOTS.add(ONMETHOD_DESC);
         RT_AWARE_ANNOTS.add(ONTIMER_DESC);
         RT_AWARE_ANNOTS.add(ONEVENT_DESC);
@@ -205,7 +219,9 @@ final class Preprocessor {
         processClinit(cn);
         processFields(cn);
 
+        RegexFolder rf = new RegexFolder(cn, clinit);
         for(MethodNode mn : getMethods(cn)) {
+            rf.fold(mn);
             preprocessMethod(cn, mn);
         }
     }
@@ -264,10 +280,16 @@ final class Preprocessor {
         if ((an = getAnnotation(fn, TLS_TYPE)) != null) {
             fn.visibleAnnotations.remove(an);
             String origDesc = fn.desc;
-            String boxedDesc = boxDesc(origDesc);
-            fn.desc = THREAD_LOCAL_DESC;
-            fn.signature = fn.desc.substring(0, fn.desc.length() - 1) +
-                           "<" + boxedDesc + ">;";
+            String valueDesc = TLS_VALUE_DESC_MAP.get(origDesc);
+            if (valueDesc != null) {
+                fn.desc = tlsHolderDesc(valueDesc);
+                fn.signature = null;
+            } else {
+                String boxedDesc = boxDesc(origDesc);
+                fn.desc = THREAD_LOCAL_DESC;
+                fn.signature = fn.desc.substring(0, fn.desc.length() - 1) +
+                               "<" + boxedDesc + ">;";
+            }
             initTLS(cn, fn, origDesc);
         }
     }
@@ -297,17 +319,18 @@ final class Preprocessor {
     private void initTLS(ClassNode cn, FieldNode fn, String typeDesc) {
         tlsFldNames.add(fn.name);
 
-        initAnnotatedField(fn, typeDesc, tlsInitSequence(cn, fn.name, fn.desc));
+        String valueDesc = TLS_VALUE_DESC_MAP.get(typeDesc);
+        initAnnotatedField(fn, typeDesc, tlsInitSequence(cn, fn.name, fn.desc, valueDesc), valueDesc == null);
     }
 
-    private InsnList tlsInitSequence(ClassNode cn, String name, String desc) {
+    private InsnList tlsInitSequence(ClassNode cn, String name, String desc, String valueDesc) {
         InsnList initList = new InsnList();
         initList.add(
             new MethodInsnNode(
                 Opcodes.INVOKESTATIC,
                 BTRACERT_INTERNAL,
                 "newThreadLocal",
-                NEW_TLS_DESC,
+                valueDesc != null ? "(" + valueDesc + ")" + desc : NEW_TLS_DESC,
                 false
             )
         );
@@ -317,7 +340,7 @@ final class Preprocessor {
 
     private void initExport(ClassNode cn, FieldNode fn, String typeDesc) {
         exportFldNames.add(fn.name);
-        initAnnotatedField(fn, typeDesc, exportInitSequence(cn, fn.name, fn.desc));
+        initAnnotatedField(fn, typeDesc, exportInitSequence(cn, fn.name, fn.desc), true);
     }
 
     private InsnList exportInitSequence(ClassNode cn, String name, String desc) {
@@ -337,7 +360,7 @@ final class Preprocessor {
         return init;
     }
 
-    private void initAnnotatedField(FieldNode fn, String typeDesc, InsnList initList) {
+    private void initAnnotatedField(FieldNode fn, String typeDesc, InsnList initList, boolean box) {
         Object initVal = fn.value;
         fn.value = null;
         fn.access |= Opcodes.ACC_FINAL;
@@ -345,7 +368,7 @@ final class Preprocessor {
         InsnList l = clinit.instructions;
 
         MethodInsnNode boxNode;
-        if (TypeUtils.isPrimitive(typeDesc)) {
+        if (box && TypeUtils.isPrimitive(typeDesc)) {
             boxNode = boxNode(typeDesc);
             initList.insert(boxNode);
         }
@@ -457,7 +480,8 @@ final class Preprocessor {
                 FieldInsnNode fin = (FieldInsnNode)n;
                 if (fin.owner.equals(cn.name)) {
                     if (tlsFldNames.contains(fin.name) &&
-                        !fin.desc.equals(THREAD_LOCAL_DESC)) {
+                        !fin.desc.equals(THREAD_LOCAL_DESC) &&
+                        !fin.desc.startsWith("L" + PRIMITIVE_TLS_INTERNAL)) {
                         n = updateTLSUsage(fin, l);
                     } else if (exportFldNames.contains(fin.name)) {
                         n = updateExportUsage(cn, fin, l);
@@ -940,6 +964,10 @@ final class Preprocessor {
 
     private AbstractInsnNode updateTLSUsage(FieldInsnNode fin, InsnList l) {
         String unboxedDesc = fin.desc;
+        String valueDesc = TLS_VALUE_DESC_MAP.get(unboxedDesc);
+        if (valueDesc != null) {
+            return updatePrimitiveTLSUsage(fin, valueDesc, l);
+        }
         int opcode = fin.getOpcode();
         // retrieve the TLS field
         fin.setOpcode(Opcodes.GETSTATIC);
@@ -998,6 +1026,39 @@ final class Preprocessor {
         return fin;
     }
 
+    private AbstractInsnNode updatePrimitiveTLSUsage(FieldInsnNode fin, String valueDesc, InsnList l) {
+        int opcode = fin.getOpcode();
+        String holderInternal = tlsHolderInternal(valueDesc);
+        // retrieve the holder field
+        fin.setOpcode(Opcodes.GETSTATIC);
+        fin.desc = "L" + holderInternal + ";";
+
+        if (opcode == Opcodes.GETSTATIC) {
+            l.insert(fin, new MethodInsnNode(
+                Opcodes.INVOKEVIRTUAL,
+                holderInternal,
+                "getValue", "()" + valueDesc,
+                false
+            ));
+        } else if (opcode == Opcodes.PUTSTATIC) {
+            MethodInsnNode setNode = new MethodInsnNode(
+                Opcodes.INVOKEVIRTUAL,
+                holderInternal,
+                "setValue", "(" + valueDesc + ")" + VOID_DESC,
+                false
+            );
+            l.insert(fin, setNode);
+            // move the holder instance below the value
+            if (Type.getType(valueDesc).getSize() == 2) {
+                l.insertBefore(setNode, new InsnNode(Opcodes.DUP_X2));
+                l.insertBefore(setNode, new InsnNode(Opcodes.POP));
+            } else {
+                l.insertBefore(setNode, new InsnNode(Opcodes.SWAP));
+            }
+        }
+        return fin;
+    }
+
     private AbstractInsnNode updateExportUsage(ClassNode cn, FieldInsnNode fin, InsnList l) {
         String prefix = null;
         boolean isPut = false;
@@ -1301,6 +1362,19 @@ final class Preprocessor {
         return BTRACE_COUNTER_PREFIX + Type.getObjectType(cn.name).getInternalName() + "." + fieldName;
     }
 
+    private static String tlsHolderInternal(String valueDesc) {
+        switch (valueDesc) {
+            case "J": return PRIMITIVE_TLS_INTERNAL + "$OfLong";
+            case "F": return PRIMITIVE_TLS_INTERNAL + "$OfFloat";
+            case "D": return PRIMITIVE_TLS_INTERNAL + "$OfDouble";
+            default: return PRIMITIVE_TLS_INTERNAL + "$OfInt";
+        }
+    }
+
+    private static String tlsHolderDesc(String valueDesc) {
+        return "L" + tlsHolderInternal(valueDesc) + ";";
+    }
+
     private String boxDesc(String desc) {
         String boxed_desc = BOX_TYPE_MAP.get(desc);
         return boxed_desc != null ? boxed_desc : desc;
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.org.objectweb.asm.Opcodes;
+import com.sun.btrace.org.objectweb.asm.tree.AbstractInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.ClassNode;
+import com.sun.btrace.org.objectweb.asm.tree.FieldInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.FieldNode;
+import com.sun.btrace.org.objectweb.asm.tree.InsnList;
+import com.sun.btrace.org.objectweb.asm.tree.JumpInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.LabelNode;
+import com.sun.btrace.org.objectweb.asm.tree.LdcInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.LookupSwitchInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.MethodNode;
+import com.sun.btrace.org.objectweb.asm.tree.TableSwitchInsnNode;
+import com.sun.btrace.org.objectweb.asm.tree.TryCatchBlockNode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static com.sun.btrace.runtime.Constants.*;
+
+/**
+ * Compiles the literal regular expressions passed to the BTraceUtils regexp
+ * functions only once.
+ * <p>
+ * Each distinct literal gets a static {@linkplain Pattern} field initialized
+ * in the class initializer. {@code matches(String, String)} calls are redirected
+ * to {@code matches(Pattern, String)} using that field and {@code regexp(String)}
+ * and {@code pattern(String)} calls are replaced by the field read.
+ * <p>
+ * A literal is folded only when it reaches the call in straight-line code so
+ * it is guaranteed to be the actual argument value; the literal is replaced
+ * by the field read so it must be neither duplicated nor stored in a local
+ * variable on the way to the call.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class RegexFolder {
+    private static final String STRINGS_INTERNAL = BTRACE_UTILS + "$Strings";
+    private static final String PATTERN_INTERNAL = "java/util/regex/Pattern";
+    private static final String PATTERN_DESC = "L" + PATTERN_INTERNAL + ";";
+    private static final String MATCHES_DESC = "(" + STRING_DESC + STRING_DESC + ")Z";
+    private static final String MATCHES_PATTERN_DESC = "(" + PATTERN_DESC + STRING_DESC + ")Z";
+    private static final String REGEXP_DESC = "(" + STRING_DESC + ")" + PATTERN_DESC;
+    private static final String COMPILE_DESC = REGEXP_DESC;
+
+    private final ClassNode cn;
+    private final MethodNode clinit;
+    private final Map<String, String> fields = new HashMap<>();
+
+    RegexFolder(ClassNode cn, MethodNode clinit) {
+        this.cn = cn;
+        this.clinit = clinit;
+    }
+
+    /**
+     * Replaces the regular expression literals in the given method
+     * @param mn the BTrace method
+     */
+    void fold(MethodNode mn) {
+        if (mn.name.startsWith("<")) return;
+
+        Map<Integer, Integer> foldable = findFoldable(mn);
+        if (foldable.isEmpty()) return;
+
+        List<LdcInsnNode> ldcs = new ArrayList<>();
+        List<MethodInsnNode> calls = new ArrayList<>();
+        for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+            if (n.getType() == AbstractInsnNode.LDC_INSN) {
+                ldcs.add((LdcInsnNode)n);
+            } else if (n.getType() == AbstractInsnNode.METHOD_INSN) {
+                calls.add((MethodInsnNode)n);
+            }
+        }
+        Set<LabelNode> targets = jumpTargets(mn);
+        for (Map.Entry<Integer, Integer> e : foldable.entrySet()) {
+            MethodInsnNode call = calls.get(e.getKey());
+            LdcInsnNode ldc = ldcs.get(e.getValue());
+            if (isStraightLine(ldc, call, targets)) {
+                replace(mn.instructions, ldc, call, fieldFor((String)ldc.cst));
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal numbers of the regexp function calls mapped to
+     *         the ordinal numbers of the string literals used as the regular expression
+     */
+    private Map<Integer, Integer> findFoldable(MethodNode mn) {
+        final Map<Integer, Integer> foldable = new HashMap<>();
+        final boolean isStatic = (mn.access & Opcodes.ACC_STATIC) != 0;
+        StackTrackingMethodVisitor v = new StackTrackingMethodVisitor(null, cn.name, mn.desc, isStatic) {
+            private final Map<StackItem, Integer> literals = new IdentityHashMap<>();
+            private int ldcCnt = 0;
+            private int callCnt = 0;
+
+            @Override
+            public void visitLdcInsn(Object o) {
+                super.visitLdcInsn(o);
+                if (o instanceof String && isValid((String)o)) {
+                    literals.put(getMethodParams("(" + OBJECT_DESC + ")V", true).get(0), ldcCnt);
+                }
+                ldcCnt++;
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+                if (opcode >= Opcodes.DUP && opcode <= Opcodes.DUP2_X2) {
+                    // a duplicated literal has other consumers than the call
+                    for (StackItem si : getMethodParams("(" + OBJECT_DESC + OBJECT_DESC + ")V", true)) {
+                        literals.remove(si);
+                    }
+                }
+                super.visitInsn(opcode);
+            }
+
+            @Override
+            public void visitVarInsn(int opcode, int var) {
+                if (opcode == Opcodes.ASTORE) {
+                    // a literal kept in a local has other consumers than the call
+                    literals.remove(getMethodParams("(" + OBJECT_DESC + ")V", true).get(0));
+                }
+                super.visitVarInsn(opcode, var);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                if (isFoldable(opcode, owner, name, desc)) {
+                    Integer ldc = literals.get(getMethodParams(desc, true).get(0));
+                    if (ldc != null) {
+                        foldable.put(callCnt, ldc);
+                    }
+                }
+                callCnt++;
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
+            }
+        };
+        try {
+            mn.accept(v);
+        } catch (RuntimeException e) {
+            // the stack could not be tracked; leave the method as it is
+            foldable.clear();
+        }
+        return foldable;
+    }
+
+    private static boolean isFoldable(int opcode, String owner, String name, String desc) {
+        if (opcode != Opcodes.INVOKESTATIC) {
+            return false;
+        }
+        if (!owner.equals(BTRACE_UTILS) && !owner.equals(STRINGS_INTERNAL)) {
+            return false;
+        }
+        switch (name) {
+            case "matches": return desc.equals(MATCHES_DESC);
+            case "regexp":
+            case "pattern": return desc.equals(REGEXP_DESC);
+        }
+        return false;
+    }
+
+    /**
+     * Invalid expressions are left to fail at the call site as usual
+     */
+    private static boolean isValid(String regex) {
+        try {
+            Pattern.compile(regex);
+            return true;
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
+    private static Set<LabelNode> jumpTargets(MethodNode mn) {
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode n = mn.instructions.getFirst(); n != null; n = n.getNext()) {
+            switch (n.getType()) {
+                case AbstractInsnNode.JUMP_INSN: {
+                    targets.add(((JumpInsnNode)n).label);
+                    break;
+                }
+                case AbstractInsnNode.TABLESWITCH_INSN: {
+                    TableSwitchInsnNode tsn = (TableSwitchInsnNode)n;
+                    targets.add(tsn.dflt);
+                    for (Object l : tsn.labels) {
+                        targets.add((LabelNode)l);
+                    }
+                    break;
+                }
+                case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+                    LookupSwitchInsnNode lsn = (LookupSwitchInsnNode)n;
+                    targets.add(lsn.dflt);
+                    for (Object l : lsn.labels) {
+                        targets.add((LabelNode)l);
+                    }
+                    break;
+                }
+            }
+        }
+        for (Object tcb : mn.tryCatchBlocks) {
+            targets.add(((TryCatchBlockNode)tcb).handler);
+        }
+        return targets;
+    }
+
+    private static boolean isStraightLine(AbstractInsnNode from, AbstractInsnNode to, Set<LabelNode> targets) {
+        for (AbstractInsnNode n = from.getNext(); n != null; n = n.getNext()) {
+            if (n == to) {
+                return true;
+            }
+            if (n.getType() == AbstractInsnNode.JUMP_INSN || targets.contains(n)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void replace(InsnList l, LdcInsnNode ldc, MethodInsnNode call, String fld) {
+        l.set(ldc, new FieldInsnNode(Opcodes.GETSTATIC, cn.name, fld, PATTERN_DESC));
+        if (call.name.equals("matches")) {
+            l.set(call, new MethodInsnNode(Opcodes.INVOKESTATIC, STRINGS_INTERNAL, "matches", MATCHES_PATTERN_DESC, false));
+        } else {
+            // the field already holds the compiled pattern
+            l.remove(call);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String fieldFor(String regex) {
+        String fld = fields.get(regex);
+        if (fld == null) {
+            fld = BTRACE_REGEX_FLD_PREFIX + fields.size();
+            fields.put(regex, fld);
+            cn.fields.add(new FieldNode(
+                Opcodes.ASM5,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+                fld, PATTERN_DESC, null, null
+            ));
+            InsnList init = new InsnList();
+            init.add(new LdcInsnNode(regex));
+            init.add(new MethodInsnNode(Opcodes.INVOKESTATIC, PATTERN_INTERNAL, "compile", COMPILE_DESC, false));
+            init.add(new FieldInsnNode(Opcodes.PUTSTATIC, cn.name, fld, PATTERN_DESC));
+            clinit.instructions.insert(init);
+        }
+        return fld;
+    }
+}
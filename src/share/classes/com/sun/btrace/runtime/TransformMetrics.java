@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.DebugSupport;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the class transformations done by
+ * the {@linkplain BTraceTransformer}.
+ * <p>
+ * Each {@linkplain BTraceTransformer#transform transform} invocation ends
+ * with exactly one {@linkplain Outcome}; its latency is recorded in a
+ * histogram with power-of-two microsecond buckets. The slowest transformed
+ * classes are kept to help pinpointing expensive probes.
+ * <p>
+ * Enabled by the {@code transformMetrics=true} agent argument; the metrics are
+ * exposed as the {@code btrace:type=TransformMetrics} MBean and printed on exit.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class TransformMetrics implements TransformMetricsMXBean {
+    public static final String OBJECT_NAME = "btrace:type=TransformMetrics";
+
+    /**
+     * The number of latency histogram buckets
+     */
+    static final int BUCKETS = 24;
+    /**
+     * The number of the slowest classes kept
+     */
+    static final int SLOWEST = 10;
+
+    enum Outcome {
+        /**
+         * rejected by the class filter or skipped as a sensitive class
+         */
+        FILTERED,
+        /**
+         * taken from the instrumented class cache
+         */
+        CACHED,
+        INSTRUMENTED,
+        /**
+         * matched by the filter but not changed by any probe
+         */
+        UNCHANGED,
+        FAILED
+    }
+
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong[] outcomes = new AtomicLong[Outcome.values().length];
+    private final AtomicLongArray[] histograms = new AtomicLongArray[Outcome.values().length];
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong transformNanos = new AtomicLong();
+    private final AtomicLong superClassCalls = new AtomicLong();
+    private final AtomicLong superClassNanos = new AtomicLong();
+
+    private final String[] slowestNames = new String[SLOWEST];
+    private final long[] slowestTimes = new long[SLOWEST];
+    // the fastest of the slowest classes; checked without locking
+    private volatile long slowestThreshold = 0;
+
+    public TransformMetrics() {
+        for (Outcome o : Outcome.values()) {
+            outcomes[o.ordinal()] = new AtomicLong();
+            histograms[o.ordinal()] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Registers this instance with the platform MBean server
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(this, on);
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    /**
+     * Prints the {@linkplain #report()} when the JVM exits
+     */
+    public void printOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DebugSupport.info(report());
+            }
+        }, "BTrace Transform Metrics"));
+    }
+
+    void parsed() {
+        parsed.incrementAndGet();
+    }
+
+    /**
+     * Records a finished transformation
+     * @param outcome the transformation outcome
+     * @param className the transformed class name
+     * @param start the {@linkplain System#nanoTime()} the transformation started at
+     * @param in the original class size
+     * @param out the transformed class size or 0 if the class was not transformed
+     */
+    void record(Outcome outcome, String className, long start, int in, int out) {
+        long nanos = System.nanoTime() - start;
+        seen.incrementAndGet();
+        outcomes[outcome.ordinal()].incrementAndGet();
+        histograms[outcome.ordinal()].incrementAndGet(bucket(nanos / 1000));
+        transformNanos.addAndGet(nanos);
+        if (outcome != Outcome.FILTERED) {
+            bytesIn.addAndGet(in);
+            bytesOut.addAndGet(out);
+            if (nanos > slowestThreshold) {
+                recordSlow(className, nanos);
+            }
+        }
+    }
+
+    /**
+     * Records a common super class resolution
+     * @param start the {@linkplain System#nanoTime()} the resolution started at
+     */
+    void commonSuperClass(long start) {
+        superClassCalls.incrementAndGet();
+        superClassNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    static int bucket(long micros) {
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+
+    private synchronized void recordSlow(String className, long nanos) {
+        int min = 0;
+        for (int i = 1; i < SLOWEST; i++) {
+            if (slowestTimes[i] < slowestTimes[min]) {
+                min = i;
+            }
+        }
+        if (nanos <= slowestTimes[min]) {
+            return;
+        }
+        slowestNames[min] = className;
+        slowestTimes[min] = nanos;
+        long threshold = Long.MAX_VALUE;
+        for (long t : slowestTimes) {
+            threshold = Math.min(threshold, t);
+        }
+        slowestThreshold = threshold;
+    }
+
+    @Override
+    public long getClassesSeen() {
+        return seen.get();
+    }
+
+    @Override
+    public long getClassesFiltered() {
+        return count(Outcome.FILTERED);
+    }
+
+    @Override
+    public long getClassesParsed() {
+        return parsed.get();
+    }
+
+    @Override
+    public long getClassesInstrumented() {
+        return count(Outcome.INSTRUMENTED);
+    }
+
+    @Override
+    public long getClassesUnchanged() {
+        return count(Outcome.UNCHANGED);
+    }
+
+    @Override
+    public long getClassesCached() {
+        return count(Outcome.CACHED);
+    }
+
+    @Override
+    public long getClassesFailed() {
+        return count(Outcome.FAILED);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getTransformTimeNanos() {
+        return transformNanos.get();
+    }
+
+    @Override
+    public long getCommonSuperClassCalls() {
+        return superClassCalls.get();
+    }
+
+    @Override
+    public long getCommonSuperClassTimeNanos() {
+        return superClassNanos.get();
+    }
+
+    @Override
+    public long[] getLatencyBucketBoundsMicros() {
+        long[] bounds = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << i;
+        }
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    @Override
+    public Map<String, long[]> getLatencyHistograms() {
+        Map<String, long[]> m = new LinkedHashMap<>();
+        for (Outcome o : Outcome.values()) {
+            m.put(o.name().toLowerCase(), histogram(o));
+        }
+        return m;
+    }
+
+    @Override
+    public synchronized List<String> getSlowestClasses() {
+        Integer[] idx = new Integer[SLOWEST];
+        for (int i = 0; i < SLOWEST; i++) {
+            idx[i] = i;
+        }
+        Arrays.sort(idx, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(slowestTimes[o2], slowestTimes[o1]);
+            }
+        });
+        List<String> l = new ArrayList<>(SLOWEST);
+        for (int i : idx) {
+            if (slowestNames[i] != null) {
+                l.add(slowestNames[i] + ": " + millis(slowestTimes[i]) + " ms");
+            }
+        }
+        return l;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder("class transformations: ");
+        sb.append(getClassesSeen()).append(" seen, ")
+          .append(getClassesFiltered()).append(" filtered, ")
+          .append(getClassesParsed()).append(" parsed, ")
+          .append(getClassesInstrumented()).append(" instrumented, ")
+          .append(getClassesUnchanged()).append(" unchanged, ")
+          .append(getClassesCached()).append(" cached, ")
+          .append(getClassesFailed()).append(" failed");
+        sb.append("\n  time: ").append(millis(getTransformTimeNanos())).append(" ms");
+        sb.append("\n  bytes: ").append(getBytesIn()).append(" in, ").append(getBytesOut()).append(" out");
+        sb.append("\n  getCommonSuperClass: ").append(getCommonSuperClassCalls()).append(" calls, ")
+          .append(millis(getCommonSuperClassTimeNanos())).append(" ms");
+        for (Outcome o : Outcome.values()) {
+            long[] h = histogram(o);
+            if (count(o) == 0) {
+                continue;
+            }
+            sb.append("\n  ").append(o.name().toLowerCase()).append(" latency (us):");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (h[i] > 0) {
+                    sb.append(' ').append(i < BUCKETS - 1 ? "<" + (1L << i) : ">=" + (1L << (BUCKETS - 2)))
+                      .append('=').append(h[i]);
+                }
+            }
+        }
+        List<String> slowest = getSlowestClasses();
+        if (!slowest.isEmpty()) {
+            sb.append("\n  slowest classes:");
+            for (String s : slowest) {
+                sb.append("\n    ").append(s);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        seen.set(0);
+        parsed.set(0);
+        for (Outcome o : Outcome.values()) {
+            outcomes[o.ordinal()].set(0);
+            AtomicLongArray h = histograms[o.ordinal()];
+            for (int i = 0; i < BUCKETS; i++) {
+                h.set(i, 0);
+            }
+        }
+        bytesIn.set(0);
+        bytesOut.set(0);
+        transformNanos.set(0);
+        superClassCalls.set(0);
+        superClassNanos.set(0);
+        synchronized (this) {
+            Arrays.fill(slowestNames, null);
+            Arrays.fill(slowestTimes, 0);
+            slowestThreshold = 0;
+        }
+    }
+
+    private long count(Outcome o) {
+        return outcomes[o.ordinal()].get();
+    }
+
+    private long[] histogram(Outcome o) {
+        AtomicLongArray h = histograms[o.ordinal()];
+        long[] vals = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            vals[i] = h.get(i);
+        }
+        return vals;
+    }
+
+    private static String millis(long nanos) {
+        long micros = nanos / 1000;
+        long frac = (micros % 1000) / 10;
+        return (micros / 1000) + (frac < 10 ? ".0" : ".") + frac;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.runtime;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of the {@linkplain TransformMetrics}
+ *
+ * @author Jaroslav Bachorik
+ */
+public interface TransformMetricsMXBean {
+    long getClassesSeen();
+    long getClassesFiltered();
+    long getClassesParsed();
+    long getClassesInstrumented();
+    long getClassesUnchanged();
+    long getClassesCached();
+    long getClassesFailed();
+
+    long getBytesIn();
+    long getBytesOut();
+
+    /**
+     * @return the total time spent in the transformer in nanoseconds
+     */
+    long getTransformTimeNanos();
+
+    long getCommonSuperClassCalls();
+
+    /**
+     * @return the total time spent resolving the common super classes in nanoseconds
+     */
+    long getCommonSuperClassTimeNanos();
+
+    /**
+     * @return the upper bounds of the latency histogram buckets in microseconds;
+     *         the last bucket is unbounded
+     */
+    long[] getLatencyBucketBoundsMicros();
+
+    /**
+     * @return the transformation latency histograms by the transformation outcome
+     */
+    Map<String, long[]> getLatencyHistograms();
+
+    /**
+     * @return the slowest transformed classes with their transformation times
+     */
+    List<String> getSlowestClasses();
+
+    String report();
+
+    void reset();
+}
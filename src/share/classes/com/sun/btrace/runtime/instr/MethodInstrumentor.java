@@ -64,10 +64,16 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
         final static private int[] EMPTY_ARRAY = new int[0];
         final private boolean isValid;
         final private int[] argsIndex;
+        final private int unpackedArgs;
 
-        public ValidationResult(boolean valid, int[] argsIndex) {
+        public ValidationResult(boolean valid, int[] argsIndex, int unpackedArgs) {
             this.isValid = valid;
             this.argsIndex = argsIndex;
+            this.unpackedArgs = unpackedArgs;
+        }
+
+        public ValidationResult(boolean valid, int[] argsIndex) {
+            this(valid, argsIndex, -1);
         }
 
         public ValidationResult(boolean valid) {
@@ -82,6 +88,10 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
             return argsIndex.length;
         }
 
+        public int getUnpackedArgs() {
+            return unpackedArgs;
+        }
+
         public boolean isAny() {
             return isValid && argsIndex.length == 0;
         }
@@ -102,6 +112,9 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
             if (this.isValid != other.isValid) {
                 return false;
             }
+            if (this.unpackedArgs != other.unpackedArgs) {
+                return false;
+            }
             return Arrays.equals(this.argsIndex, other.argsIndex);
         }
 
@@ -110,6 +123,7 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
             int hash = 5;
             hash = 59 * hash + (this.isValid ? 1 : 0);
             hash = 59 * hash + Arrays.hashCode(this.argsIndex);
+            hash = 59 * hash + this.unpackedArgs;
             return hash;
         }
 
@@ -211,19 +225,39 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
     protected class AnyTypeArgProvider extends ArgumentProvider {
         private int argPtr;
         private Type[] myArgTypes;
+        private final int unpackedArgs;
         public AnyTypeArgProvider(Assembler asm, int index, int basePtr) {
             this(asm, index, basePtr, argumentTypes);
         }
 
         public AnyTypeArgProvider(Assembler asm, int index, int basePtr, Type[] argTypes) {
+            this(asm, index, basePtr, -1, argTypes);
+        }
+
+        public AnyTypeArgProvider(Assembler asm, int index, int basePtr, int unpackedArgs, Type[] argTypes) {
             super(asm, index);
             this.argPtr = basePtr;
             this.myArgTypes = argTypes;
+            this.unpackedArgs = unpackedArgs;
         }
 
 
         @Override
         public void doProvide() {
+            if (unpackedArgs > -1) {
+                // the handler takes the values as separate arguments
+                for (int j = 0; j < unpackedArgs; j++) {
+                    if (j < myArgTypes.length) {
+                        Type argType = myArgTypes[j];
+                        asm.loadLocal(argType, argPtr)
+                           .box(argType);
+                        argPtr += argType.getSize();
+                    } else {
+                        asm.loadNull();
+                    }
+                }
+                return;
+            }
             asm.push(myArgTypes.length);
             asm.newArray(OBJECT_TYPE);
             for (int j = 0; j < myArgTypes.length; j++) {
@@ -375,7 +409,7 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
             int index = vr.getArgIdx(i);
             Type t = actionArgTypes[index];
             if (TypeUtils.isAnyTypeArray(t)) {
-                argProvidersList.add(anytypeArg(index, ptr));
+                argProvidersList.add(anytypeArg(index, ptr, vr.getUnpackedArgs(), argumentTypes));
                 ptr++;
             } else {
                 argProvidersList.add(localVarArg(index, t, ptr));
@@ -457,6 +491,10 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
         return new AnyTypeArgProvider(asm, index, basePtr, argTypes);
     }
 
+    protected final ArgumentProvider anytypeArg(int index, int basePtr, int unpackedArgs, Type ... argTypes) {
+        return new AnyTypeArgProvider(asm, index, basePtr, unpackedArgs, argTypes);
+    }
+
     protected final boolean isStatic() {
         return (getAccess() & ACC_STATIC) != 0;
     }
@@ -581,7 +619,7 @@ public class MethodInstrumentor extends BTraceMethodVisitor {
                 }
             }
         }
-        return new ValidationResult(true, cleansedArgIndex);
+        return new ValidationResult(true, cleansedArgIndex, om.getUnpackedArgs());
     }
 
     private Label levelCheck(OnMethod om, String className, boolean saveResult) {
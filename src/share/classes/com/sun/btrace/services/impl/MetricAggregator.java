@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.services.impl;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side aggregation of statsd metrics.
+ * <p>
+ * The values are accumulated per metric kind, name and tags and turned into
+ * statsd lines only once per flush interval:
+ * <ul>
+ * <li>counters and gauge deltas are summed up</li>
+ * <li>gauges keep the last value</li>
+ * <li>timers and histograms are summarised as {@code <name>.count} counter
+ * and {@code <name>.min}, {@code <name>.max} and {@code <name>.avg} gauges</li>
+ * </ul>
+ * Sampled values are scaled up by the sample rate when recorded so the
+ * emitted lines do not carry any sample rate.
+ * <p>
+ * Recording a value for an already known key does not allocate and neither
+ * does emitting the aggregated lines. The keys with no values recorded since
+ * the previous flush are dropped on flush so they do not count towards
+ * {@linkplain #MAX_KEYS} any more.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class MetricAggregator {
+    /**
+     * The maximum number of distinct keys aggregated per metric kind at a time;
+     * values for any further keys are not aggregated
+     */
+    static final int MAX_KEYS = 8192;
+
+    enum Kind {
+        COUNTER("c"), GAUGE("g"), DELTA("g"), TIMER("ms"), HISTOGRAM("h");
+
+        private final String type;
+
+        Kind(String type) {
+            this.type = type;
+        }
+
+        static Kind of(String type) {
+            switch (type) {
+                case "c": return COUNTER;
+                case "g": return GAUGE;
+                case "ms": return TIMER;
+                case "h": return HISTOGRAM;
+                default: return null;
+            }
+        }
+    }
+
+    private static final String NO_TAGS = "";
+
+    private final Table[] tables = new Table[Kind.values().length];
+
+    MetricAggregator() {
+        for (Kind k : Kind.values()) {
+            tables[k.ordinal()] = new Table(k);
+        }
+    }
+
+    /**
+     * Records a value
+     * @param kind the metric kind
+     * @param name the metric name
+     * @param value the value
+     * @param sampleRate the sample rate; values outside of (0, 1) mean 'not sampled'
+     * @param tags the DogStatsD tags or {@code null}
+     * @return {@code true} if the value was aggregated; {@code false} if
+     *         the maximum number of keys was reached and the value needs to
+     *         be sent as is
+     */
+    boolean record(Kind kind, String name, long value, double sampleRate, String tags) {
+        Table t = tables[kind.ordinal()];
+        long times = sampleRate > 0 && sampleRate < 1 ? Math.round(1 / sampleRate) : 1;
+        while (true) {
+            Metric m = t.get(name, tags != null ? tags : NO_TAGS);
+            if (m == null) {
+                return false;
+            }
+            if (m.record(value, times)) {
+                return true;
+            }
+            // the idle metric has just been dropped by flush; retry with a new one
+        }
+    }
+
+    /**
+     * Emits the lines for all the values recorded since the last flush
+     * and resets the aggregated values
+     * @param enc the encoder to use
+     * @param sink the sink to emit the lines to
+     * @throws IOException
+     */
+    void flush(StatsdEncoder enc, LineSink sink) throws IOException {
+        for (Table t : tables) {
+            t.flush(enc, sink);
+        }
+    }
+
+    /**
+     * The metric key; the lookups use a per-thread mutable instance
+     * so recording a value for a known key does not allocate
+     */
+    private static final class Key {
+        private String name;
+        private String tags;
+        private int hash;
+
+        Key set(String name, String tags) {
+            this.name = name;
+            this.tags = tags;
+            this.hash = 31 * name.hashCode() + tags.hashCode();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return name.equals(other.name) && tags.equals(other.tags);
+        }
+    }
+
+    private static final ThreadLocal<Key> LOOKUP_KEY = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    private static final class Table {
+        private final Kind kind;
+        private final ConcurrentMap<Key, Metric> metrics = new ConcurrentHashMap<>();
+        private final AtomicInteger keys = new AtomicInteger();
+
+        Table(Kind kind) {
+            this.kind = kind;
+        }
+
+        Metric get(String name, String tags) {
+            Metric m = metrics.get(LOOKUP_KEY.get().set(name, tags));
+            if (m == null) {
+                if (keys.incrementAndGet() > MAX_KEYS) {
+                    keys.decrementAndGet();
+                    return null;
+                }
+                m = new Metric(kind);
+                Metric old = metrics.putIfAbsent(new Key().set(name, tags), m);
+                if (old != null) {
+                    keys.decrementAndGet();
+                    m = old;
+                }
+            }
+            return m;
+        }
+
+        void flush(StatsdEncoder enc, LineSink sink) throws IOException {
+            for (Map.Entry<Key, Metric> e : metrics.entrySet()) {
+                Key k = e.getKey();
+                if (!e.getValue().flush(k.name, k.tags, enc, sink)) {
+                    // idle since the last flush
+                    if (metrics.remove(k, e.getValue())) {
+                        keys.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Metric {
+        private final Kind kind;
+        private long count;
+        private long value;
+        private long min;
+        private long max;
+        private boolean dropped;
+
+        Metric(Kind kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * @return {@code false} if the metric has been dropped and the value was not recorded
+         */
+        synchronized boolean record(long v, long times) {
+            if (dropped) {
+                return false;
+            }
+            switch (kind) {
+                case COUNTER:
+                case DELTA: {
+                    value += v * times;
+                    break;
+                }
+                case GAUGE: {
+                    value = v;
+                    break;
+                }
+                default: {
+                    if (count == 0) {
+                        min = v;
+                        max = v;
+                    } else {
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                    value += v * times;
+                }
+            }
+            count += times;
+            return true;
+        }
+
+        /**
+         * @return {@code false} if nothing was recorded since the last flush;
+         *         the metric is then dropped and does not record any more values
+         */
+        boolean flush(String name, String tags, StatsdEncoder enc, LineSink sink) throws IOException {
+            long cnt, val, mn, mx;
+            synchronized (this) {
+                if (count == 0) {
+                    dropped = true;
+                    return false;
+                }
+                cnt = count;
+                val = value;
+                mn = min;
+                mx = max;
+                count = 0;
+                if (kind != Kind.GAUGE) {
+                    value = 0;
+                }
+            }
+            switch (kind) {
+                case COUNTER:
+                case GAUGE: {
+                    line(enc, name, null, val, kind.type, tags, sink);
+                    break;
+                }
+                case DELTA: {
+                    if (val != 0) {
+                        enc.reset().append(name).append(':');
+                        if (val > 0) {
+                            enc.append('+');
+                        }
+                        enc.append(val).append('|').append(kind.type);
+                        tags(enc, tags);
+                        sink.line(enc.array(), 0, enc.length());
+                    }
+                    break;
+                }
+                default: {
+                    line(enc, name, ".count", cnt, "c", tags, sink);
+                    line(enc, name, ".min", mn, "g", tags, sink);
+                    line(enc, name, ".max", mx, "g", tags, sink);
+                    line(enc, name, ".avg", val / cnt, "g", tags, sink);
+                }
+            }
+            return true;
+        }
+
+        private static void line(StatsdEncoder enc, String name, String suffix, long val, String type, String tags, LineSink sink) throws IOException {
+            enc.reset().append(name);
+            if (suffix != null) {
+                enc.append(suffix);
+            }
+            enc.append(':').append(val).append('|').append(type);
+            tags(enc, tags);
+            sink.line(enc.array(), 0, enc.length());
+        }
+
+        private static void tags(StatsdEncoder enc, String tags) {
+            if (!tags.isEmpty()) {
+                enc.append("|#").append(tags);
+            }
+        }
+    }
+}
@@ -1,32 +1,75 @@
 package com.sun.btrace.services.impl;
 
-import java.util.Formatter;
+import com.sun.btrace.SharedSettings;
+import java.io.IOException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 class QManager {
-    final BlockingQueue<String> q = new ArrayBlockingQueue<>(120000);
+    private static final ThreadLocal<StatsdEncoder> ENCODER = new ThreadLocal<StatsdEncoder>() {
+        @Override
+        protected StatsdEncoder initialValue() {
+            return new StatsdEncoder();
+        }
+    };
+
+    /**
+     * The encoded statsd lines
+     */
+    final BlockingQueue<byte[]> q = new ArrayBlockingQueue<>(120000);
+    private final long flushInterval;
+    private final MetricAggregator aggregator;
 
     QManager() {
+        this(SharedSettings.GLOBAL.getStatsdFlushInterval());
+    }
+
+    /**
+     * @param flushInterval the interval in milliseconds the counters, gauges,
+     *                      timers and histograms are aggregated for;
+     *                      {@code 0} disables the aggregation
+     */
+    QManager(long flushInterval) {
+        this.flushInterval = flushInterval > 0 ? flushInterval : 0;
+        this.aggregator = flushInterval > 0 ? new MetricAggregator() : null;
     }
 
-    BlockingQueue<String> getQ() {
+    BlockingQueue<byte[]> getQ() {
         return q;
     }
 
-    private void appendSampleRate(double sampleRate, StringBuilder sb, Formatter fmt) {
+    /**
+     * @return the aggregation interval in milliseconds or {@code 0} if the
+     *         metrics are not aggregated
+     */
+    long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Emits the lines for the metrics aggregated since the last flush
+     * @param enc the encoder to use
+     * @param sink the sink to emit the lines to
+     * @throws IOException
+     */
+    void flush(StatsdEncoder enc, LineSink sink) throws IOException {
+        if (aggregator != null) {
+            aggregator.flush(enc, sink);
+        }
+    }
+
+    private static void appendSampleRate(double sampleRate, StatsdEncoder enc) {
         if (sampleRate > 0) {
-            sb.append("|@");
-            fmt.format("%.3f", sampleRate);
+            enc.append("|@").appendFixed3(sampleRate);
         }
     }
 
     void submit(String name, String value, String type, String tags) {
-        StringBuilder sb = new StringBuilder(name);
+        StatsdEncoder enc = ENCODER.get().reset();
 
-        sb.append(':').append(value).append('|').append(type);
-        appendTags(tags, sb);
-        q.offer(sb.toString());
+        enc.append(name).append(':').append(value).append('|').append(type);
+        appendTags(tags, enc);
+        q.offer(enc.toBytes());
     }
 
     /**
@@ -49,65 +92,70 @@ class QManager {
     public void event(String title, String text, long timestamp, String host,
                       String group, String sourceType, Statsd.Priority priority,
                       Statsd.AlertType alertType, String tags) {
-        StringBuilder sb = new StringBuilder("_e{");
-        sb.append(title.length()).append(',')
+        StatsdEncoder enc = ENCODER.get().reset();
+        enc.append("_e{").append(title.length()).append(',')
                 .append(text.length()).append('}');
 
-        sb.append(':').append(title).append('|').append(text);
+        enc.append(':').append(title).append('|').append(text);
 
         if (timestamp >= 0) {
-            sb.append("|d:").append(timestamp == 0 ? System.currentTimeMillis() : timestamp);
+            enc.append("|d:").append(timestamp == 0 ? System.currentTimeMillis() : timestamp);
         }
         if (host != null) {
-            sb.append("|h:").append(host);
+            enc.append("|h:").append(host);
         }
         if (group != null) {
-            sb.append("|k:").append(group);
+            enc.append("|k:").append(group);
         }
         if (sourceType != null) {
-            sb.append("|s:").append(sourceType);
+            enc.append("|s:").append(sourceType);
         }
         if (priority != null) {
-            sb.append("|p:").append(priority);
+            enc.append("|p:").append(priority.name());
         }
         if (alertType != null) {
-            sb.append("|t:").append(alertType);
+            enc.append("|t:").append(alertType.name());
         }
-        appendTags(tags, sb);
+        appendTags(tags, enc);
 
-        q.offer(sb.toString());
+        q.offer(enc.toBytes());
     }
 
     void delta(String name, long value, double sampleRate, String tags) {
-        StringBuilder sb = new StringBuilder(name);
-        Formatter fmt = new Formatter(sb);
-
-        sb.append(':');
-        if (value > 0) {
-            sb.append('+');
-        } else if (value < 0) {
-            sb.append('-');
+        if (aggregator != null && aggregator.record(MetricAggregator.Kind.DELTA, name, value, sampleRate, tags)) {
+            return;
         }
-        sb.append(value).append('|').append('g');
-        appendSampleRate(sampleRate, sb, fmt);
-        appendTags(tags, sb);
-        q.offer(sb.toString());
+        StatsdEncoder enc = ENCODER.get().reset();
+
+        enc.append(name).append(':');
+        if (value >= 0) {
+            enc.append('+');
+        }
+        enc.append(value).append('|').append('g');
+        appendSampleRate(sampleRate, enc);
+        appendTags(tags, enc);
+        q.offer(enc.toBytes());
     }
 
-    private void appendTags(String tags, StringBuilder sb) {
+    private static void appendTags(String tags, StatsdEncoder enc) {
         if (tags != null && !tags.isEmpty()) {
-            sb.append("|#").append(tags);
+            enc.append("|#").append(tags);
         }
     }
 
     void submit(String name, long value, double sampleRate, String type, String tags) {
-        StringBuilder sb = new StringBuilder(name);
-        Formatter fmt = new Formatter(sb);
+        if (aggregator != null) {
+            MetricAggregator.Kind kind = MetricAggregator.Kind.of(type);
+            if (kind != null && aggregator.record(kind, name, value, sampleRate, tags)) {
+                return;
+            }
+        }
+        StatsdEncoder enc = ENCODER.get().reset();
 
-        sb.append(':').append(value).append('|').append(type);
-        appendSampleRate(sampleRate, sb, fmt);
-        appendTags(tags, sb);
-        q.offer(sb.toString());
+        enc.append(name).append(':').append(value).append('|').append(type);
+        appendSampleRate(sampleRate, enc);
+        appendTags(tags, enc);
+        q.offer(enc.toBytes());
     }
 
     /**
@@ -118,4 +166,4 @@ class QManager {
     void decrement(String name) {
         delta(name, -1, 0.0d, null);
     }
-}
\ No newline at end of file
+}
@@ -28,20 +28,29 @@ import com.sun.btrace.BTraceRuntime;
 import com.sun.btrace.SharedSettings;
 import com.sun.btrace.services.spi.SimpleService;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple way to submit <a href="https://github.com/etsy/statsd/">statsd</a> metrics.
  * <p>
+ * Each value is sent as it is recorded unless the {@code statsdFlushInterval}
+ * (in milliseconds) is set. Then the counters, gauges, timers and histograms
+ * are aggregated in-process and sent once per interval. Note that the aggregated
+ * timers and histograms are summarised as {@code <name>.count} counter and
+ * {@code <name>.min}, {@code <name>.max} and {@code <name>.avg} gauges instead
+ * of the individual {@code |ms} or {@code |h} samples.
+ * <p>
+ * The lines are packed into datagrams of up to 1432 bytes (configurable via
+ * the {@code com.sun.btrace.statsd.packetSize} system property).
+ * <p>
  * Use the following code to obtain an instance:
  * <pre>
  * <code>
@@ -52,7 +61,6 @@ import java.util.concurrent.ThreadFactory;
  * @author Jaroslav Bachorik
  */
 final public class Statsd extends SimpleService {
-    private static final Charset CHARSET = Charset.forName("ascii");
     private final QManager qManager = new QManager();
 
     public static enum Priority {
@@ -86,44 +94,56 @@ final public class Statsd extends SimpleService {
         e.submit(new Runnable() {
             @Override
             public void run() {
-                DatagramSocket ds = null;
+                StatsdChannel ch = null;
                 boolean entered = BTraceRuntime.enter();
                 try {
-                    ds = new DatagramSocket();
-                    DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+                    InetAddress addr;
                     try {
-                        dp.setAddress(InetAddress.getByName(SharedSettings.GLOBAL.getStatsdHost()));
+                        addr = InetAddress.getByName(SharedSettings.GLOBAL.getStatsdHost());
                     } catch (UnknownHostException e) {
                         System.err.println("[statsd] invalid host defined: " + SharedSettings.GLOBAL.getStatsdHost());
-                        dp.setAddress(InetAddress.getLoopbackAddress());
+                        addr = InetAddress.getLoopbackAddress();
                     } catch (SecurityException e) {
-                        dp.setAddress(InetAddress.getLoopbackAddress());
+                        addr = InetAddress.getLoopbackAddress();
                     }
-                    dp.setPort(SharedSettings.GLOBAL.getStatsdPort());
+                    ch = new StatsdChannel(new InetSocketAddress(addr, SharedSettings.GLOBAL.getStatsdPort()));
 
+                    StatsdEncoder enc = new StatsdEncoder();
+                    List<byte[]> batch = new ArrayList<>();
+                    long interval = qManager.getFlushInterval();
+                    long nextFlush = System.currentTimeMillis() + interval;
                     while (true) {
-                        Collection<String> msgs = new ArrayList<>();
-                        msgs.add(qManager.getQ().take());
-                        qManager.getQ().drainTo(msgs);
-
-                        StringBuilder sb = new StringBuilder();
-                        for(String m : msgs) {
-                            if (sb.length() + m.length() < 511) {
-                                sb.append(m).append('\n');
-                            } else {
-                                dp.setData(sb.toString().getBytes(CHARSET));
-                                ds.send(dp);
-                                sb.setLength(0);
+                        if (interval > 0) {
+                            long wait = nextFlush - System.currentTimeMillis();
+                            byte[] line = wait > 0 ? qManager.getQ().poll(wait, TimeUnit.MILLISECONDS) : null;
+                            if (line != null) {
+                                batch.add(line);
                             }
+                        } else {
+                            batch.add(qManager.getQ().take());
                         }
-                        if (sb.length() > 0) {
-                            dp.setData(sb.toString().getBytes(CHARSET));
-                            ds.send(dp);
+                        qManager.getQ().drainTo(batch);
+                        for (byte[] line : batch) {
+                            ch.line(line, 0, line.length);
                         }
+                        batch.clear();
+                        if (interval > 0) {
+                            long now = System.currentTimeMillis();
+                            if (now >= nextFlush) {
+                                qManager.flush(enc, ch);
+                                nextFlush = Math.max(nextFlush + interval, now);
+                            }
+                        }
+                        ch.send();
                     }
                 } catch (IOException | InterruptedException e) {
                     e.printStackTrace();
                 } finally {
+                    if (ch != null) {
+                        try {
+                            ch.close();
+                        } catch (IOException ignored) {}
+                    }
                     if (entered) {
                         BTraceRuntime.leave();
                     }
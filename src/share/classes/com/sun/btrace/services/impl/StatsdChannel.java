@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.services.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Packs the statsd lines into datagrams of at most the configured size and
+ * sends them over a non-blocking {@linkplain DatagramChannel}.
+ * <p>
+ * The datagrams are assembled in a single reused direct buffer. When the
+ * socket send buffer is full the datagram is dropped rather than blocking
+ * the submitter.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StatsdChannel implements LineSink {
+    static final Charset CHARSET = Charset.forName("ascii");
+    static final String PACKET_SIZE_KEY = "com.sun.btrace.statsd.packetSize";
+    /**
+     * Keeps a datagram within a typical 1500 bytes Ethernet MTU
+     * together with the IP and UDP headers
+     */
+    static final int DEFAULT_PACKET_SIZE = 1432;
+    private static final int MIN_PACKET_SIZE = 64;
+    private static final int MAX_PACKET_SIZE = 65507;
+
+    private final DatagramChannel ch;
+    private final SocketAddress target;
+    private final ByteBuffer buf;
+    private long dropped;
+
+    StatsdChannel(SocketAddress target) throws IOException {
+        this(target, Integer.getInteger(PACKET_SIZE_KEY, DEFAULT_PACKET_SIZE));
+    }
+
+    StatsdChannel(SocketAddress target, int packetSize) throws IOException {
+        this.target = target;
+        this.buf = ByteBuffer.allocateDirect(Math.min(Math.max(packetSize, MIN_PACKET_SIZE), MAX_PACKET_SIZE));
+        this.ch = DatagramChannel.open();
+        this.ch.configureBlocking(false);
+    }
+
+    @Override
+    public void line(byte[] b, int off, int len) throws IOException {
+        if (buf.position() > 0 && buf.remaining() < len + 1) {
+            send();
+        }
+        if (buf.remaining() < len + 1) {
+            // an oversized line goes out on its own
+            if (ch.send(ByteBuffer.wrap(b, off, len), target) == 0) {
+                dropped++;
+            }
+            return;
+        }
+        buf.put(b, off, len).put((byte)'\n');
+    }
+
+    /**
+     * Sends the pending datagram, if any
+     * @throws IOException
+     */
+    void send() throws IOException {
+        if (buf.position() == 0) {
+            return;
+        }
+        buf.flip();
+        if (ch.send(buf, target) == 0) {
+            dropped++;
+        }
+        buf.clear();
+    }
+
+    /**
+     * @return the number of datagrams dropped because the socket send buffer was full
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    void close() throws IOException {
+        ch.close();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018, Jaroslav Bachorik <j.bachorik@btrace.io>.
+ * All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Copyright owner designates
+ * this particular file as subject to the "Classpath" exception as provided
+ * by the owner in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.sun.btrace.services.impl;
+
+import java.util.Arrays;
+
+/**
+ * Encodes statsd lines as ASCII directly into a reusable byte buffer.
+ * <p>
+ * Characters outside of the ASCII range are encoded as {@code '?'} and the
+ * numbers are formatted without going through {@linkplain String} or
+ * {@linkplain java.util.Formatter}.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StatsdEncoder {
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private byte[] buf;
+    private int len;
+
+    StatsdEncoder() {
+        this(256);
+    }
+
+    StatsdEncoder(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    StatsdEncoder reset() {
+        len = 0;
+        return this;
+    }
+
+    StatsdEncoder append(char c) {
+        ensure(1);
+        buf[len++] = c < 128 ? (byte)c : (byte)'?';
+        return this;
+    }
+
+    StatsdEncoder append(String s) {
+        int l = s.length();
+        ensure(l);
+        for (int i = 0; i < l; i++) {
+            char c = s.charAt(i);
+            buf[len++] = c < 128 ? (byte)c : (byte)'?';
+        }
+        return this;
+    }
+
+    StatsdEncoder append(long v) {
+        if (v == Long.MIN_VALUE) {
+            ensure(MIN_LONG.length);
+            System.arraycopy(MIN_LONG, 0, buf, len, MIN_LONG.length);
+            len += MIN_LONG.length;
+            return this;
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte)('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the value rounded to 3 decimal places - the equivalent
+     * of {@code String.format("%.3f", v)} for non-negative values
+     */
+    StatsdEncoder appendFixed3(double v) {
+        long scaled = Math.round(v * 1000);
+        append(scaled / 1000).append('.');
+        long frac = scaled % 1000;
+        ensure(3);
+        buf[len++] = (byte)('0' + frac / 100);
+        buf[len++] = (byte)('0' + (frac / 10) % 10);
+        buf[len++] = (byte)('0' + frac % 10);
+        return this;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int length() {
+        return len;
+    }
+
+    /**
+     * @return a copy of the encoded bytes
+     */
+    byte[] toBytes() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StatsdChannel.CHARSET);
+    }
+
+    private void ensure(int cnt) {
+        if (len + cnt > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + cnt));
+        }
+    }
+}
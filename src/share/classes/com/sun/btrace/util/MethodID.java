@@ -29,6 +29,7 @@ package com.sun.btrace.util;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A factory class for shared method ids
@@ -37,6 +38,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MethodID {
     private static final Map<String, Integer> methodIds = new HashMap<>();
     static final AtomicInteger lastMehodId = new AtomicInteger(1);
+    private static final AtomicLong embedded = new AtomicLong();
 
     /**
      * Generates a unique method id based on the provided method tag
@@ -55,4 +57,24 @@ public class MethodID {
     public static int getMethodId(String className, String method, String desc) {
         return getMethodId(className + "#" + method + "#" + desc);
     }
+
+    /**
+     * Marks the id as embedded in the generated code
+     * @param methodId the method id
+     * @return the same method id
+     */
+    public static int embed(int methodId) {
+        embedded.incrementAndGet();
+        return methodId;
+    }
+
+    /**
+     * The ids depend on the order of the requests; code embedding them
+     * can not be reused in another JVM run. A change of this counter tells
+     * that some ids were embedded in the meantime.
+     * @return the number of the method ids embedded in the generated code so far
+     */
+    public static long getEmbedded() {
+        return embedded.get();
+    }
 }
@@ -302,7 +302,7 @@ public class MethodTrackingExpander extends BaseTemplateExpander {
                         }
                     }
                 });
-                asm.ldc(mid);
+                asm.ldc(MethodID.embed(mid));
                 switch (samplerKind) {
                     case Const: {
                         asm.invokeStatic(
@@ -365,7 +365,7 @@ public class MethodTrackingExpander extends BaseTemplateExpander {
 
                     }
                 });
-                asm.ldc(mid);
+                asm.ldc(MethodID.embed(mid));
                 switch (samplerKind) {
                     case Const: {
                         asm.invokeStatic(
@@ -457,7 +457,7 @@ public class MethodTrackingExpander extends BaseTemplateExpander {
             if (!durationComputed) {
                 if (entryTsVar != Integer.MIN_VALUE) {
                     e.asm()
-                        .ldc(mid)
+                        .ldc(MethodID.embed(mid))
                         .invokeStatic(
                             METHOD_COUNTER_CLASS,
                             "getEndTs", "(I)J")
@@ -519,7 +519,7 @@ public class MethodTrackingExpander extends BaseTemplateExpander {
                 e.asm()
                     .loadLocal(Type.INT_TYPE, sHitVar)
                     .jump(Opcodes.IFEQ, l)
-                    .ldc(mid)
+                    .ldc(MethodID.embed(mid))
                     .invokeStatic(
                         METHOD_COUNTER_CLASS,
                         "updateEndTs", "(I)V")
@@ -0,0 +1,160 @@
+package com.sun.btrace;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BTraceBoundedMapTest {
+    @Test
+    public void lruEviction() {
+        BTraceBoundedMap<String, Integer> map = new BTraceBoundedMap<>(3, BTraceBoundedMap.Policy.LRU);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        // "a" becomes the most recently used entry
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        map.put("d", 4);
+
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("a"));
+        assertTrue(map.containsKey("d"));
+        assertEquals(1, map.getEvictions());
+    }
+
+    @Test
+    public void lfuEviction() {
+        BTraceBoundedMap<String, Integer> map = new BTraceBoundedMap<>(3, BTraceBoundedMap.Policy.LFU);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        for (int i = 0; i < 5; i++) {
+            map.get("a");
+            map.get("c");
+        }
+        map.put("d", 4);
+        assertFalse(map.containsKey("b"));
+        map.get("d");
+        // the just added entry must not be evicted
+        map.put("e", 5);
+        assertTrue(map.containsKey("e"));
+        assertTrue(map.containsKey("a"));
+        assertTrue(map.containsKey("c"));
+        assertEquals(3, map.size());
+        assertEquals(2, map.getEvictions());
+    }
+
+    @Test
+    public void lfuStaleHitsDecay() {
+        BTraceBoundedMap<String, Integer> map = new BTraceBoundedMap<>(5, BTraceBoundedMap.Policy.LFU);
+        for (int i = 0; i < 5; i++) {
+            map.put("hot" + i, i);
+            for (int j = 0; j < 8; j++) {
+                map.get("hot" + i);
+            }
+        }
+        // the formerly hot entries are not accessed any more
+        for (int i = 0; i < 20; i++) {
+            map.put("new" + i, i);
+            map.get("new" + i);
+            map.get("new" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertFalse(map.containsKey("hot" + i));
+        }
+        assertTrue(map.containsKey("new19"));
+        assertEquals(5, map.size());
+        assertEquals(20, map.getEvictions());
+    }
+
+    @Test
+    public void lfuUpdateKeepsHits() {
+        BTraceBoundedMap<String, Long> map = new BTraceBoundedMap<>(3, BTraceBoundedMap.Policy.LFU);
+        map.put("hot", 0L);
+        map.put("b", 0L);
+        map.put("c", 0L);
+        for (int i = 0; i < 100; i++) {
+            BTraceRuntime.addAndGet(map, "hot", 1L);
+        }
+        map.put("b", 1L);
+        map.replace("c", 1L);
+        map.put("d", 0L);
+        assertTrue(map.containsKey("hot"));
+        assertEquals(Long.valueOf(100), map.get("hot"));
+        assertTrue(map.containsKey("d"));
+        assertEquals(3, map.size());
+        assertEquals(1, map.getEvictions());
+    }
+
+    @Test
+    public void replaceDoesNotEvict() {
+        BTraceBoundedMap<String, Integer> map = new BTraceBoundedMap<>(2, BTraceBoundedMap.Policy.LRU);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("a", 10);
+        assertNull(map.putIfAbsent("c", 3));
+        assertEquals(Integer.valueOf(3), map.putIfAbsent("c", 30));
+        assertTrue(map.replace("c", 3, 4));
+        assertFalse(map.replace("c", 3, 5));
+        assertEquals(Integer.valueOf(4), map.get("c"));
+        assertEquals(1, map.getEvictions());
+    }
+
+    @Test
+    public void segmentedCapacity() {
+        int maxSize = 1000;
+        BTraceBoundedMap<Integer, Integer> map = new BTraceBoundedMap<>(maxSize, BTraceBoundedMap.Policy.LRU);
+        for (int i = 0; i < maxSize * 10; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.size() <= maxSize);
+        assertEquals(maxSize * 10 - map.size(), map.getEvictions());
+        int cnt = 0;
+        for (Map.Entry<Integer, Integer> e : map.entrySet()) {
+            assertEquals(e.getKey(), e.getValue());
+            cnt++;
+        }
+        assertEquals(map.size(), cnt);
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final int maxSize = 512;
+        final BTraceBoundedMap<Integer, Long> map = new BTraceBoundedMap<>(maxSize, BTraceBoundedMap.Policy.LFU);
+        final int threads = 4;
+        final int iterations = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * iterations;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < iterations; i++) {
+                        BTraceRuntime.addAndGet(map, base + i, 1L);
+                        BTraceRuntime.addAndGet(map, i % 16, 1L);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertTrue(map.size() <= maxSize);
+        assertTrue(map.getEvictions() > 0);
+        assertEquals(map.getEvictions(), BTraceRuntime.evictions(map));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicy() {
+        BTraceRuntime.newBoundedMap(10, "fifo");
+    }
+}
@@ -0,0 +1,151 @@
+package com.sun.btrace;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BTraceDequeTest {
+    @Test
+    public void concurrentDequeBounded() {
+        Deque<String> d = BTraceRuntime.newConcurrentDeque(2);
+        BTraceRuntime.push(d, "a");
+        BTraceRuntime.addLast(d, "b");
+        // dropped
+        BTraceRuntime.push(d, "c");
+        assertEquals(2, d.size());
+        assertFalse(d.offerFirst("c"));
+        try {
+            d.addLast("c");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("a", BTraceRuntime.peekFirst(d));
+        assertEquals("b", BTraceRuntime.removeLast(d));
+        assertTrue(d.offerLast("d"));
+        Iterator<String> iter = d.iterator();
+        iter.next();
+        iter.remove();
+        assertEquals(1, d.size());
+        BTraceRuntime.clear(d);
+        assertTrue(d.isEmpty());
+        assertEquals(0, d.size());
+    }
+
+    @Test
+    public void concurrentDequeProducersConsumers() throws Exception {
+        final Deque<Integer> d = BTraceRuntime.newConcurrentDeque(64);
+        final int threads = 4;
+        final int iterations = 20000;
+        final AtomicInteger offered = new AtomicInteger();
+        final AtomicInteger polled = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            if (d.offerLast(i)) {
+                                offered.incrementAndGet();
+                            }
+                            if (d.size() > 64) {
+                                failed.set(true);
+                            }
+                            if (i % 2 == 0 && d.pollFirst() != null) {
+                                polled.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertFalse("capacity exceeded", failed.get());
+        assertEquals(offered.get() - polled.get(), d.size());
+        int remaining = 0;
+        while (d.pollFirst() != null) {
+            remaining++;
+        }
+        assertEquals(offered.get() - polled.get(), remaining);
+    }
+
+    @Test
+    public void concurrentDequeIteratorRemoveAfterPoll() {
+        Deque<String> d = BTraceRuntime.newConcurrentDeque(2);
+        d.offerLast("a");
+        d.offerLast("b");
+        Iterator<String> iter = d.iterator();
+        assertEquals("a", iter.next());
+        // the element is gone before the iterator removes it
+        assertEquals("a", d.pollFirst());
+        iter.remove();
+        assertEquals(1, d.size());
+        assertEquals("b", d.peekFirst());
+
+        iter = d.descendingIterator();
+        assertEquals("b", iter.next());
+        iter.remove();
+        assertEquals(0, d.size());
+        try {
+            iter.remove();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void otherDequeFull() {
+        Deque<String> d = new LinkedBlockingDeque<>(1);
+        BTraceRuntime.push(d, "a");
+        try {
+            BTraceRuntime.push(d, "b");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            BTraceRuntime.addLast(d, "b");
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, d.size());
+    }
+
+    @Test
+    public void perThreadDeque() throws Exception {
+        final Deque<Long> d = BTraceRuntime.newPerThreadDeque(3);
+        BTraceRuntime.push(d, 1L);
+        BTraceRuntime.push(d, 2L);
+        final AtomicInteger otherSize = new AtomicInteger(-1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherSize.set(d.size());
+                d.push(10L);
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals(0, otherSize.get());
+        assertEquals(2, d.size());
+        assertEquals(Long.valueOf(2), BTraceRuntime.poll(d));
+        BTraceRuntime.push(d, 3L);
+        BTraceRuntime.push(d, 4L);
+        // dropped
+        BTraceRuntime.push(d, 5L);
+        assertEquals(3, d.size());
+        assertEquals(Long.valueOf(4), d.pop());
+    }
+}
@@ -0,0 +1,90 @@
+package com.sun.btrace;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BTraceMapTest {
+    @Test
+    public void nullKeysAndValues() {
+        BTraceMap<String, String> map = new BTraceMap<>(false);
+        assertNull(map.put(null, "a"));
+        assertNull(map.put("b", null));
+        assertEquals("a", map.get(null));
+        assertNull(map.get("b"));
+        assertTrue(map.containsKey("b"));
+        assertTrue(map.containsValue(null));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put(null, "a");
+        expected.put("b", null);
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public void entryIteration() {
+        BTraceMap<String, Integer> map = new BTraceMap<>(true);
+        map.put("a", 1);
+        map.put("b", 2);
+        for (Map.Entry<String, Integer> e : map.entrySet()) {
+            e.setValue(e.getValue() * 10);
+        }
+        assertEquals(Integer.valueOf(10), map.get("a"));
+        assertEquals(Integer.valueOf(20), map.get("b"));
+
+        Iterator<String> iter = map.keySet().iterator();
+        iter.next();
+        iter.remove();
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void weakKeysExpunged() throws Exception {
+        BTraceMap<Object, String> map = new BTraceMap<>(true);
+        map.put(new Object(), "gone");
+        Object retained = new Object();
+        map.put(retained, "kept");
+        for (int i = 0; i < 50 && map.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, map.size());
+        assertEquals("kept", map.get(retained));
+    }
+
+    @Test
+    public void concurrentAddAndGet() throws Exception {
+        final Map<String, Long> map = BTraceRuntime.newHashMap();
+        final int threads = 4;
+        final int increments = 10000;
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < increments; j++) {
+                        BTraceRuntime.addAndGet(map, "cnt", 1);
+                    }
+                }
+            });
+            ts[i].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertEquals(Long.valueOf(threads * increments), map.get("cnt"));
+    }
+
+    @Test
+    public void replace() {
+        Map<String, String> map = BTraceRuntime.newHashMap();
+        assertNull(BTraceRuntime.putIfAbsent(map, "k", "v1"));
+        assertEquals("v1", BTraceRuntime.putIfAbsent(map, "k", "v2"));
+        assertFalse(BTraceRuntime.replace(map, "k", "v2", "v3"));
+        assertTrue(BTraceRuntime.replace(map, "k", "v1", "v3"));
+        assertEquals("v3", map.get("k"));
+    }
+}
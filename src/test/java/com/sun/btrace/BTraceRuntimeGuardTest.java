@@ -0,0 +1,75 @@
+package com.sun.btrace;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BTraceRuntimeGuardTest {
+    @Test
+    public void reentrantEnter() {
+        assertTrue(BTraceRuntime.enter());
+        try {
+            assertFalse(BTraceRuntime.enter());
+        } finally {
+            BTraceRuntime.leave();
+        }
+        assertTrue(BTraceRuntime.enter());
+        BTraceRuntime.leave();
+    }
+
+    @Test
+    public void perThreadGuard() throws Exception {
+        // more threads than the default number of slots to exercise the thread local fallback
+        final int threads = 1100;
+        final CountDownLatch entered = new CountDownLatch(threads);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean counted = false;
+                    try {
+                        if (!BTraceRuntime.enter()) {
+                            failures.incrementAndGet();
+                            return;
+                        }
+                        try {
+                            entered.countDown();
+                            counted = true;
+                            release.await();
+                            if (BTraceRuntime.enter()) {
+                                failures.incrementAndGet();
+                            }
+                        } finally {
+                            BTraceRuntime.leave();
+                        }
+                        if (!BTraceRuntime.enter()) {
+                            failures.incrementAndGet();
+                        }
+                        BTraceRuntime.leave();
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        if (!counted) {
+                            entered.countDown();
+                        }
+                    }
+                }
+            });
+            ts[i].start();
+        }
+        entered.await();
+        // all the threads are inside the guard now; the current one must not be affected
+        assertTrue(BTraceRuntime.enter());
+        BTraceRuntime.leave();
+        release.countDown();
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+    }
+}
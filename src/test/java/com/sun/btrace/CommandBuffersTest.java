@@ -0,0 +1,104 @@
+package com.sun.btrace;
+
+import com.sun.btrace.comm.Command;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.org.jctools.queues.MessagePassingQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CommandBuffersTest {
+    private static final MessagePassingQueue.ExitCondition RUNNING = new MessagePassingQueue.ExitCondition() {
+        @Override
+        public boolean keepRunning() {
+            return true;
+        }
+    };
+
+    private static final class Collector implements MessagePassingQueue.Consumer<Command> {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void accept(Command t) {
+            messages.add(((MessageCommand)t).getMessage());
+        }
+    }
+
+    @Test
+    public void bufferFull() {
+        CommandBuffers cb = new CommandBuffers(3, false);
+        // capacity rounded up to 4
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cb.offer(new MessageCommand(String.valueOf(i))));
+        }
+        assertFalse(cb.offer(new MessageCommand("4")));
+
+        Collector c = new Collector();
+        assertEquals(4, cb.drain(c, RUNNING));
+        assertEquals("[0, 1, 2, 3]", c.messages.toString());
+        assertTrue(cb.offer(new MessageCommand("4")));
+    }
+
+    @Test
+    public void perThreadOrder() throws Exception {
+        final int threads = 4;
+        final int msgs = 10000;
+        final CommandBuffers cb = new CommandBuffers(64, false);
+
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            ts[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < msgs; j++) {
+                        while (!cb.offer(new MessageCommand(id + ":" + j))) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            ts[i].start();
+        }
+
+        Collector c = new Collector();
+        int received = 0;
+        while (received < threads * msgs) {
+            received += cb.drain(c, RUNNING);
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+
+        Map<String, Integer> last = new HashMap<>();
+        for (String m : c.messages) {
+            String[] parts = m.split(":");
+            int seq = Integer.parseInt(parts[1]);
+            Integer prev = last.put(parts[0], seq);
+            assertEquals(prev == null ? 0 : prev + 1, seq);
+        }
+        assertEquals(threads, last.size());
+    }
+
+    @Test
+    public void globalOrder() throws Exception {
+        final CommandBuffers cb = new CommandBuffers(16, true);
+        cb.offer(new MessageCommand("a"));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cb.offer(new MessageCommand("b"));
+            }
+        });
+        t.start();
+        t.join();
+        cb.offer(new MessageCommand("c"));
+
+        Collector c = new Collector();
+        assertEquals(3, cb.drain(c, RUNNING));
+        assertEquals("[a, b, c]", c.messages.toString());
+    }
+}
@@ -0,0 +1,81 @@
+package com.sun.btrace;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sun.misc.Unsafe;
+import static org.junit.Assert.*;
+
+public class FieldCacheTest {
+    static class Base {
+        private int hidden = 1;
+    }
+
+    static class Derived extends Base {
+        private final String own = "own";
+    }
+
+    static class Other {
+        private long hidden = 2;
+    }
+
+    @BeforeClass
+    public static void classStartup() throws Exception {
+        // BTraceUtils expects to be loaded by the bootstrap classloader
+        Field unsafeFld = Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeFld.setAccessible(true);
+        Field rtUnsafeFld = BTraceRuntime.class.getDeclaredField("unsafe");
+        rtUnsafeFld.setAccessible(true);
+        rtUnsafeFld.set(null, unsafeFld.get(null));
+    }
+
+    @Test
+    public void hit() throws Exception {
+        Field f = BTraceUtils.field(Derived.class, "own");
+        assertNotNull(f);
+        // Class.getDeclaredField returns a new copy on each call
+        assertSame(f, BTraceUtils.field(Derived.class, "own"));
+        assertEquals("own", BTraceUtils.get(f, new Derived()));
+        assertTrue(cached(Derived.class).containsKey("own"));
+    }
+
+    @Test
+    public void privateField() throws Exception {
+        Field f = BTraceUtils.field(Base.class, "hidden");
+        assertEquals(Base.class, f.getDeclaringClass());
+        assertEquals(1, BTraceUtils.get(f, new Base()));
+
+        // the same name in another class is a distinct entry
+        Field other = BTraceUtils.field(Other.class, "hidden");
+        assertEquals(Other.class, other.getDeclaringClass());
+        assertEquals(2L, BTraceUtils.get(other, new Other()));
+    }
+
+    @Test
+    public void inheritedField() throws Exception {
+        // only the fields declared by the class itself are resolved
+        assertNull(BTraceUtils.field(Derived.class, "hidden", false));
+        assertFalse(cached(Derived.class).containsKey("hidden"));
+        assertNotNull(BTraceUtils.field(Base.class, "hidden", false));
+    }
+
+    @Test
+    public void missingField() throws Exception {
+        assertNull(BTraceUtils.field(Other.class, "missing", false));
+        assertFalse(cached(Other.class).containsKey("missing"));
+        try {
+            BTraceUtils.field(Other.class, "missing", true);
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertFalse(cached(Other.class).containsKey("missing"));
+    }
+
+    private static Map<?, ?> cached(Class<?> clz) throws Exception {
+        Field fld = BTraceUtils.class.getDeclaredField("fieldCache");
+        fld.setAccessible(true);
+        return (Map<?, ?>)((ClassValue<?>)fld.get(null)).get(clz);
+    }
+}
@@ -0,0 +1,113 @@
+package com.sun.btrace;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PrimitiveMapsTest {
+    @Test
+    public void longLongOperations() {
+        LongLongMap map = new LongLongMap();
+        assertEquals(0L, map.get(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(5L, map.add(1, 5));
+        assertEquals(7L, map.add(1, 2));
+        assertEquals(7L, map.max(1, 3));
+        assertEquals(10L, map.max(1, 10));
+        assertEquals(-1L, map.min(1, -1));
+        assertEquals(-1L, map.put(1, 0));
+        assertTrue(map.containsKey(1));
+        assertEquals(0L, map.put(0, 42));
+        assertEquals(42L, map.get(0));
+        assertEquals(2, map.size());
+        assertEquals(42L, map.remove(0));
+        assertEquals(1, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void longLongAgainstHashMap() {
+        LongLongMap map = new LongLongMap();
+        Map<Long, Long> expected = new HashMap<>();
+        Random r = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            // a small key range forces collisions, removals and re-insertions
+            long key = r.nextInt(2000) * 1024L;
+            if (r.nextInt(4) == 0) {
+                Long prev = expected.remove(key);
+                assertEquals(prev != null ? prev : 0L, map.remove(key));
+            } else {
+                Long prev = expected.get(key);
+                expected.put(key, (prev != null ? prev : 0L) + 1);
+                map.add(key, 1);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet()) {
+            assertEquals(e.getValue().longValue(), map.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void intLongOperations() {
+        IntLongMap map = new IntLongMap();
+        map.add(-3, 2);
+        map.add(-3, 2);
+        assertEquals(4L, map.get(-3));
+        assertEquals(0L, map.get(3));
+        assertEquals("{-3=4}", map.toString());
+    }
+
+    @Test
+    public void stringLongOperations() {
+        StringLongMap map = new StringLongMap();
+        Map<String, Long> expected = new HashMap<>();
+        Random r = new Random(11);
+        for (int i = 0; i < 50000; i++) {
+            String key = r.nextInt(100) == 0 ? null : "k" + r.nextInt(1000);
+            if (r.nextInt(5) == 0) {
+                Long prev = expected.remove(key);
+                assertEquals(prev != null ? prev : 0L, map.remove(key));
+            } else {
+                long v = r.nextInt(100);
+                Long prev = expected.get(key);
+                expected.put(key, prev != null ? Math.max(prev, v) : v);
+                map.max(key, v);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Long> e : expected.entrySet()) {
+            assertTrue(map.containsKey(e.getKey()));
+            assertEquals(e.getValue().longValue(), map.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void concurrentCounters() throws Exception {
+        final LongLongMap map = new LongLongMap();
+        final int threads = 4;
+        final int iterations = 50000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        map.add(i % 500, 1);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals((long)threads * iterations / 500, map.get(i));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sun.btrace;
+
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RegexCacheTest {
+    @Test
+    public void cachesPatterns() {
+        long hits = RegexCache.getHits();
+        long misses = RegexCache.getMisses();
+        Pattern p = RegexCache.pattern("cached[0-9]+");
+        assertSame(p, RegexCache.pattern("cached[0-9]+"));
+        assertNotSame(p, RegexCache.pattern("cached[0-9]+", Pattern.CASE_INSENSITIVE));
+        assertTrue(RegexCache.pattern("CACHED[0-9]+", Pattern.CASE_INSENSITIVE).matcher("cached1").matches());
+        assertEquals(hits + 1, RegexCache.getHits());
+        assertEquals(misses + 3, RegexCache.getMisses());
+    }
+
+    @Test
+    public void flagsAreNotPartOfTheRegex() {
+        Pattern ci = RegexCache.pattern("abc", Pattern.CASE_INSENSITIVE);
+        Pattern p = RegexCache.pattern(Pattern.CASE_INSENSITIVE + "/abc");
+        assertNotSame(ci, p);
+        assertEquals(0, p.flags());
+        assertTrue(p.matcher(Pattern.CASE_INSENSITIVE + "/abc").matches());
+        assertFalse(p.matcher("ABC").matches());
+    }
+
+    @Test
+    public void bounded() {
+        for (int i = 0; i < RegexCache.MAX_PATTERNS * 2; i++) {
+            RegexCache.pattern("bounded" + i);
+        }
+        long misses = RegexCache.getMisses();
+        // the oldest patterns were evicted
+        RegexCache.pattern("bounded0");
+        assertEquals(misses + 1, RegexCache.getMisses());
+    }
+}
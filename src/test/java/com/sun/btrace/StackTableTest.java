@@ -0,0 +1,85 @@
+package com.sun.btrace;
+
+import com.sun.btrace.aggregation.Aggregation;
+import com.sun.btrace.aggregation.AggregationFunction;
+import com.sun.btrace.aggregation.AggregationKey;
+import com.sun.btrace.aggregation.StackId;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StackTableTest {
+    @Test
+    public void internsSameStack() {
+        int[] ids = new int[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = captureHere();
+        }
+        assertEquals(ids[0], ids[1]);
+        assertEquals(ids[0], ids[2]);
+        assertTrue(ids[0] != captureThere());
+    }
+
+    @Test
+    public void boundedDepth() {
+        StackId sid = StackTable.capture(0, 2);
+        StackTraceElement[] frames = sid.getFrames();
+        assertEquals(2, frames.length);
+        assertEquals("boundedDepth", frames[0].getMethodName());
+
+        assertTrue(StackTable.capture(0, -1).getFrames().length <= StackTable.MAX_DEPTH);
+    }
+
+    @Test
+    public void handlerFrame() {
+        // a handler copied to the probed class; its frame is stripped
+        StackId sid = $btrace$traces$Probe$handler();
+        assertEquals("handlerFrame", sid.getFrames()[0].getMethodName());
+        // a handler running in the trace class (eg. @OnTimer); its frame is stripped
+        sid = captureIn(StackTableTest.class.getName());
+        assertEquals("handlerFrame", sid.getFrames()[0].getMethodName());
+        // the handler body inlined in the probed method; the frame is the caller's
+        sid = captureIn("traces.Probe");
+        assertEquals("captureIn", sid.getFrames()[0].getMethodName());
+    }
+
+    @Test
+    public void rendersStackOnPrint() {
+        Aggregation agg = new Aggregation(AggregationFunction.COUNT);
+        for (int i = 0; i < 3; i++) {
+            AggregationKey key = BTraceRuntime.newStackAggregationKey(0, 3, "site");
+            agg.add(key, 1);
+        }
+        List<Object[]> data = agg.getData();
+        assertEquals(1, data.size());
+        Object[] row = data.get(0);
+        assertTrue(row[0] instanceof String);
+        assertTrue(((String)row[0]).startsWith("com.sun.btrace.StackTableTest.rendersStackOnPrint("));
+        assertEquals("site", row[1]);
+        assertEquals(3L, row[2]);
+    }
+
+    @Test
+    public void stackStr() {
+        int id = captureHere();
+        assertTrue(BTraceRuntime.stackStr(id).startsWith("com.sun.btrace.StackTableTest.captureHere("));
+        assertEquals("", BTraceRuntime.stackStr(-1));
+    }
+
+    // mimics the handler of the traces.Probe trace copied to this class
+    private static StackId $btrace$traces$Probe$handler() {
+        return StackTable.capture(1, 2, "traces.Probe", "$btrace$traces$Probe$");
+    }
+
+    private static StackId captureIn(String traceClass) {
+        return StackTable.capture(1, 2, traceClass, "$btrace$traces$Probe$");
+    }
+
+    private static int captureHere() {
+        return BTraceRuntime.stackId(0, 4);
+    }
+
+    private static int captureThere() {
+        return BTraceRuntime.stackId(0, 4);
+    }
+}
@@ -0,0 +1,38 @@
+package com.sun.btrace;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimestampCacheTest {
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        long time = 1500000000123L;
+        String[] formats = {"yyyy-MM-dd HH:mm:ss", "HH:mm:ss.SSS", "'Sec' ss"};
+        for (String f : formats) {
+            assertEquals(new SimpleDateFormat(f).format(new Date(time)), TimestampCache.timestamp(f, time));
+        }
+    }
+
+    @Test
+    public void reusesValueWithinTick() {
+        String f = "yyyy-MM-dd HH:mm:ss";
+        long time = 1500000000000L;
+        String s1 = TimestampCache.timestamp(f, time);
+        assertSame(s1, TimestampCache.timestamp(f, time + 999));
+        String s2 = TimestampCache.timestamp(f, time + 1000);
+        assertNotSame(s1, s2);
+        assertEquals(new SimpleDateFormat(f).format(new Date(time + 1000)), s2);
+    }
+
+    @Test
+    public void millisResolution() {
+        String f = "ss.SSS";
+        long time = 1500000000000L;
+        assertEquals(new SimpleDateFormat(f).format(new Date(time + 1)), TimestampCache.timestamp(f, time + 1));
+        assertEquals(new SimpleDateFormat(f).format(new Date(time + 2)), TimestampCache.timestamp(f, time + 2));
+        assertTrue(TimestampCache.hasMillis("HH:mm:ss.SSS"));
+        assertFalse(TimestampCache.hasMillis("'S' HH:mm:ss"));
+    }
+}
@@ -0,0 +1,136 @@
+package com.sun.btrace.agent;
+
+import com.sun.btrace.DebugSupport;
+import com.sun.btrace.SharedSettings;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AgentServerTest {
+    private AgentServer server;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        // echoes the handshake id and every received int incremented by the id
+        server = new AgentServer(0, 2, new AgentServer.Acceptor() {
+            @Override
+            public AgentServer.Connection accept(SocketChannel ch) throws IOException {
+                final DataInputStream in = new DataInputStream(AgentServer.inputStream(ch));
+                final DataOutputStream out = new DataOutputStream(AgentServer.outputStream(ch));
+                final int id = in.readInt();
+                out.writeInt(id);
+                out.flush();
+                return new AgentServer.Connection() {
+                    @Override
+                    public boolean onReadable() throws IOException {
+                        do {
+                            int v = in.readInt();
+                            if (v < 0) {
+                                return false;
+                            }
+                            out.writeInt(v + id);
+                            out.flush();
+                        } while (in.available() > 0);
+                        return true;
+                    }
+
+                    @Override
+                    public void onClose() {
+                        closed.countDown();
+                    }
+                };
+            }
+        }, new DebugSupport(new SharedSettings()));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void slowHandshakeDoesNotBlockOthers() throws Exception {
+        try (Socket slow = connect()) {
+            // the slow client does not send its handshake at all
+            try (Socket fast = connect()) {
+                DataOutputStream out = new DataOutputStream(fast.getOutputStream());
+                DataInputStream in = new DataInputStream(fast.getInputStream());
+                out.writeInt(100);
+                out.flush();
+                assertEquals(100, in.readInt());
+                out.writeInt(1);
+                out.flush();
+                assertEquals(101, in.readInt());
+            }
+        }
+    }
+
+    @Test
+    public void multiplexedClients() throws Exception {
+        int cnt = 8;
+        Socket[] socks = new Socket[cnt];
+        try {
+            for (int i = 0; i < cnt; i++) {
+                socks[i] = connect();
+                DataOutputStream out = new DataOutputStream(socks[i].getOutputStream());
+                out.writeInt(i * 1000);
+                out.flush();
+                assertEquals(i * 1000, new DataInputStream(socks[i].getInputStream()).readInt());
+            }
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < cnt; i++) {
+                    DataOutputStream out = new DataOutputStream(socks[i].getOutputStream());
+                    // several values in one go
+                    out.writeInt(round);
+                    out.writeInt(round + 1);
+                    out.flush();
+                }
+                for (int i = 0; i < cnt; i++) {
+                    DataInputStream in = new DataInputStream(socks[i].getInputStream());
+                    assertEquals(i * 1000 + round, in.readInt());
+                    assertEquals(i * 1000 + round + 1, in.readInt());
+                }
+            }
+        } finally {
+            for (Socket s : socks) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void connectionClosed() throws Exception {
+        try (Socket s = connect()) {
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeInt(1);
+            out.writeInt(-1);
+            out.flush();
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket("localhost", server.getPort());
+        s.setSoTimeout(10000);
+        return s;
+    }
+}
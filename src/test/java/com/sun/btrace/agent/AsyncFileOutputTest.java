@@ -0,0 +1,107 @@
+package com.sun.btrace.agent;
+
+import com.sun.btrace.SharedSettings;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsyncFileOutputTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("btrace-out").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writesAllOutput() throws Exception {
+        File f = new File(dir, "out.txt");
+        TraceOutputWriter.AsyncFileOutput w = new TraceOutputWriter.AsyncFileOutput(f, new SharedSettings(), 64, 2, 0);
+        PrintWriter pw = new PrintWriter(w);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "line " + i + " žluťoučký 😀";
+            pw.println(line);
+            expected.append(line).append(System.getProperty("line.separator"));
+        }
+        pw.close();
+        assertFalse(pw.checkError());
+
+        String content = new String(Files.readAllBytes(f.toPath()), Charset.defaultCharset());
+        assertEquals(roundTrip(expected.toString()), content);
+        assertEquals(f.length(), w.getBytesWritten());
+        assertTrue(w.getWrites() > 1);
+        assertTrue(w.getFsyncs() > 0);
+    }
+
+    @Test
+    public void splitSurrogatePair() throws Exception {
+        File f = new File(dir, "out.txt");
+        TraceOutputWriter.AsyncFileOutput w = new TraceOutputWriter.AsyncFileOutput(f, new SharedSettings(), 64, 2, -1);
+        String s = "a😀b";
+        w.write(s, 0, 2);
+        w.write(s, 2, 2);
+        w.close();
+        assertEquals(roundTrip(s), new String(Files.readAllBytes(f.toPath()), Charset.defaultCharset()));
+        assertEquals(0, w.getFsyncs());
+    }
+
+    @Test
+    public void flushHandsOff() throws Exception {
+        File f = new File(dir, "out.txt");
+        TraceOutputWriter.AsyncFileOutput w = new TraceOutputWriter.AsyncFileOutput(f, new SharedSettings(), 1024, 2, -1);
+        w.write("hello");
+        w.flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (w.getBytesWritten() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, f.length());
+        w.close();
+        try {
+            w.write("late");
+            fail();
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    @Test
+    public void rolls() throws Exception {
+        File f = new File(dir, "out.txt");
+        SharedSettings s = new SharedSettings();
+        s.setFileRollMilliseconds(50);
+        s.setFileRollMaxRolls(5);
+        TraceOutputWriter.AsyncFileOutput w = new TraceOutputWriter.AsyncFileOutput(f, s, 1024, 2, -1);
+        w.write("first");
+        w.flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!new File(dir, "out.txt.1").exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        w.write("second");
+        w.close();
+        assertEquals("first", new String(Files.readAllBytes(new File(dir, "out.txt.1").toPath()), Charset.defaultCharset()));
+        assertTrue(f.exists());
+    }
+
+    @SuppressWarnings("DefaultCharset")
+    private static String roundTrip(String s) {
+        return new String(s.getBytes(), Charset.defaultCharset());
+    }
+}
@@ -0,0 +1,98 @@
+package com.sun.btrace.agent;
+
+import com.sun.btrace.SharedSettings;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MappedFileOutputTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("btrace-out").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendsAcrossRegions() throws Exception {
+        File f = new File(dir, "out.txt");
+        TraceOutputWriter.MappedFileOutput w = new TraceOutputWriter.MappedFileOutput(f, new SharedSettings(), 100, false);
+        PrintWriter pw = new PrintWriter(w);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            String line = "line " + i + " žluťoučký 😀";
+            pw.println(line);
+            expected.append(line).append(System.getProperty("line.separator"));
+        }
+        pw.flush();
+        assertTrue(w.getRemaps() > 1);
+        long written = w.getBytesWritten();
+        pw.close();
+        assertFalse(pw.checkError());
+
+        assertEquals(written, f.length());
+        assertEquals(roundTrip(expected.toString()), new String(Files.readAllBytes(f.toPath()), Charset.defaultCharset()));
+    }
+
+    @Test
+    public void tail() throws Exception {
+        File f = new File(dir, "out.txt");
+        TraceOutputWriter.MappedFileOutput w = new TraceOutputWriter.MappedFileOutput(f, new SharedSettings(), 4096, false);
+        w.write("hello\n");
+        w.write("world\n");
+
+        // the file is pre-sized; the written content is followed by zeros
+        byte[] data = Files.readAllBytes(f.toPath());
+        assertEquals(4096, data.length);
+        int end = 0;
+        while (data[end] != 0) {
+            end++;
+        }
+        assertEquals("hello\nworld\n", new String(data, 0, end, Charset.defaultCharset()));
+
+        w.close();
+        assertEquals(12, f.length());
+        try {
+            w.write("late");
+            fail();
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    @Test
+    public void rolls() throws Exception {
+        File f = new File(dir, "out.txt");
+        SharedSettings s = new SharedSettings();
+        s.setFileRollMilliseconds(1);
+        s.setFileRollMaxRolls(5);
+        TraceOutputWriter.MappedFileOutput w = new TraceOutputWriter.MappedFileOutput(f, s, 4096, true);
+        w.write("first");
+        Thread.sleep(5);
+        w.flush();
+        w.write("second");
+        w.close();
+        assertEquals("first", new String(Files.readAllBytes(new File(dir, "out.txt.1").toPath()), Charset.defaultCharset()));
+        assertEquals("second", new String(Files.readAllBytes(f.toPath()), Charset.defaultCharset()));
+    }
+
+    @SuppressWarnings("DefaultCharset")
+    private static String roundTrip(String s) {
+        return new String(s.getBytes(), Charset.defaultCharset());
+    }
+}
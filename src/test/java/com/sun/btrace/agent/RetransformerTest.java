@@ -0,0 +1,126 @@
+package com.sun.btrace.agent;
+
+import com.sun.btrace.DebugSupport;
+import com.sun.btrace.SharedSettings;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RetransformerTest {
+    private final List<List<Class>> retransformed = new ArrayList<>();
+    private final DebugSupport debug = new DebugSupport(new SharedSettings());
+    private Class<?> failingClass;
+    private Instrumentation inst;
+
+    @Before
+    public void setUp() throws Exception {
+        final Class<?>[] loaded = new Class<?>[]{String.class, Integer.class, Long.class};
+        inst = (Instrumentation)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[]{Instrumentation.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "getAllLoadedClasses": {
+                            return loaded.clone();
+                        }
+                        case "isModifiableClass": {
+                            return true;
+                        }
+                        case "retransformClasses": {
+                            List<Class> classes = Arrays.asList((Class[])args[0]);
+                            retransformed.add(classes);
+                            if (classes.contains(failingClass)) {
+                                throw new UnmodifiableClassException(failingClass.getName());
+                            }
+                            return null;
+                        }
+                        default: {
+                            return null;
+                        }
+                    }
+                }
+            }
+        );
+    }
+
+    @Test
+    public void singlePass() throws Exception {
+        TestTarget t1 = new TestTarget(String.class, Integer.class);
+        TestTarget t2 = new TestTarget(Integer.class, Long.class);
+        TestTarget t3 = new TestTarget(Double.class);
+
+        Map<TestTarget, Exception> failed = Retransformer.retransform(inst, Arrays.asList(t1, t2, t3), debug);
+        assertTrue(failed.isEmpty());
+
+        // all the classes are retransformed once
+        assertEquals(1, retransformed.size());
+        assertEquals(Arrays.<Class>asList(String.class, Integer.class, Long.class), retransformed.get(0));
+        // each target is notified about its own classes only
+        assertEquals(Collections.singletonList(2), t1.started);
+        assertEquals(Collections.singletonList(2), t2.started);
+        assertTrue(t3.started.isEmpty());
+    }
+
+    @Test
+    public void perTargetFailure() throws Exception {
+        failingClass = Long.class;
+        TestTarget t1 = new TestTarget(String.class);
+        TestTarget t2 = new TestTarget(Long.class);
+
+        Map<TestTarget, Exception> failed = Retransformer.retransform(inst, Arrays.asList(t1, t2), debug);
+        assertEquals(Collections.singleton(t2), failed.keySet());
+        assertTrue(failed.get(t2) instanceof UnmodifiableClassException);
+        // the single pass followed by the target by target retransformation
+        assertEquals(3, retransformed.size());
+        assertEquals(Collections.<Class>singletonList(String.class), retransformed.get(1));
+    }
+
+    @Test
+    public void singleTargetFailure() throws Exception {
+        failingClass = Long.class;
+        TestTarget t = new TestTarget(Long.class);
+
+        Map<TestTarget, Exception> failed = Retransformer.retransform(inst, Collections.singletonList(t), debug);
+        assertEquals(Collections.singleton(t), failed.keySet());
+        // not retried
+        assertEquals(1, retransformed.size());
+    }
+
+    @Test
+    public void nothingToRetransform() throws Exception {
+        TestTarget t = new TestTarget(Double.class);
+        assertTrue(Retransformer.retransform(inst, Collections.singletonList(t), debug).isEmpty());
+        assertTrue(retransformed.isEmpty());
+        assertTrue(t.started.isEmpty());
+    }
+
+    private static final class TestTarget implements Retransformer.Target {
+        private final List<Class> classes;
+        private final List<Integer> started = new ArrayList<>();
+
+        TestTarget(Class ... classes) {
+            this.classes = Arrays.asList(classes);
+        }
+
+        @Override
+        public boolean isCandidate(Class c) {
+            return classes.contains(c);
+        }
+
+        @Override
+        public void startRetransformClasses(int numClasses) {
+            started.add(numClasses);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.sun.btrace.agent;
+
+import com.sun.btrace.SharedSettings;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RollingOutputTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("btrace-out").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void rollPolicy() throws Exception {
+        SharedSettings s = new SharedSettings();
+        TraceOutputWriter.RollPolicy p = new TraceOutputWriter.RollPolicy(s);
+        assertFalse(p.needsRoll(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, p.untilNextRoll());
+
+        s.setFileRollBytes(100);
+        assertTrue(p.isSizeBased());
+        assertFalse(p.needsRoll(99));
+        assertTrue(p.needsRoll(100));
+
+        // hybrid - whichever comes first
+        s.setFileRollMilliseconds(10);
+        assertTrue(p.untilNextRoll() <= 10);
+        assertFalse(p.needsRoll(0));
+        Thread.sleep(15);
+        assertTrue(p.needsRoll(0));
+        assertTrue(p.needsRoll(200));
+    }
+
+    @Test
+    public void compress() throws Exception {
+        File f = new File(dir, "out.txt.1");
+        Files.write(f.toPath(), "rolled content".getBytes("ascii"));
+        f.setLastModified(1000000L);
+        TraceOutputWriter.Archiver.compress(f);
+
+        File gz = new File(dir, "out.txt.1.gz");
+        assertFalse(f.exists());
+        assertTrue(gz.exists());
+        assertEquals(1000000L, gz.lastModified());
+        assertEquals("rolled content", gunzip(gz));
+    }
+
+    @Test
+    public void retain() throws Exception {
+        File current = new File(dir, "out.txt");
+        Files.write(current.toPath(), new byte[100]);
+        File other = new File(dir, "other.txt.1");
+        Files.write(other.toPath(), new byte[100]);
+        for (int i = 1; i <= 5; i++) {
+            File f = new File(dir, "out.txt." + i + (i % 2 == 0 ? ".gz" : ""));
+            Files.write(f.toPath(), new byte[100]);
+            f.setLastModified(1000000L * i);
+        }
+        TraceOutputWriter.Archiver.retain(dir, "out.txt", 250);
+
+        assertTrue(current.exists());
+        assertTrue(other.exists());
+        assertTrue(new File(dir, "out.txt.5").exists());
+        assertTrue(new File(dir, "out.txt.4.gz").exists());
+        assertFalse(new File(dir, "out.txt.3").exists());
+        assertFalse(new File(dir, "out.txt.2.gz").exists());
+        assertFalse(new File(dir, "out.txt.1").exists());
+    }
+
+    @Test
+    public void sizeBasedRollWithCompression() throws Exception {
+        File f = new File(dir, "out.txt");
+        SharedSettings s = new SharedSettings();
+        s.setFileRollBytes(64);
+        s.setFileRollCompress(true);
+        s.setFileRollMaxRolls(100);
+        TraceOutputWriter.AsyncFileOutput w = new TraceOutputWriter.AsyncFileOutput(f, s, 64, 2, -1);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            String line = "line " + i + "\n";
+            w.write(line);
+            expected.append(line);
+        }
+        w.close();
+
+        File[] gzs = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            gzs = dir.listFiles();
+            boolean pending = false;
+            for (File g : gzs) {
+                pending |= g.getName().matches("out\\.txt\\.\\d+");
+            }
+            if (!pending) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        StringBuilder content = new StringBuilder();
+        int rolls = gzs.length - 1;
+        assertTrue(rolls > 0);
+        for (int i = 1; i <= rolls; i++) {
+            content.append(gunzip(new File(dir, "out.txt." + i + ".gz")));
+        }
+        content.append(new String(Files.readAllBytes(f.toPath()), Charset.forName("ascii")));
+        assertEquals(expected.toString(), content.toString());
+    }
+
+    private static String gunzip(File f) throws Exception {
+        try (InputStream is = new GZIPInputStream(new FileInputStream(f))) {
+            StringBuilder sb = new StringBuilder();
+            byte[] buf = new byte[1024];
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                sb.append(new String(buf, 0, read, "ascii"));
+            }
+            return sb.toString();
+        }
+    }
+}
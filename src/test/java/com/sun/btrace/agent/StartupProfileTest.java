@@ -0,0 +1,18 @@
+package com.sun.btrace.agent;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StartupProfileTest {
+    @Test
+    public void report() throws Exception {
+        StartupProfile p = new StartupProfile(System.nanoTime());
+        p.step("first");
+        Thread.sleep(5);
+        p.step("second");
+
+        assertTrue(p.total() >= 5000000L);
+        String report = p.report();
+        assertTrue(report, report.matches("agent startup took \\d+\\.\\d\\d ms\\n  first: \\d+\\.\\d\\d ms\\n  second: \\d+\\.\\d\\d ms"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.sun.btrace.client;
+
+import com.sun.btrace.comm.BinaryTraceWriter;
+import com.sun.btrace.comm.GridDataCommand;
+import com.sun.btrace.comm.MessageCommand;
+import com.sun.btrace.comm.NumberMapDataCommand;
+import com.sun.btrace.aggregation.HistogramData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryOutputConverterTest {
+    @Test
+    public void csv() throws Exception {
+        Map<String, Number> nums = new LinkedHashMap<>();
+        nums.put("a,b", 1);
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"k", 2L, new HistogramData(new long[]{1, 2}, new long[]{3, 4})});
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryTraceWriter w = new BinaryTraceWriter(bos);
+        w.write(new MessageCommand(5L, "say \"hi\""));
+        w.write(new NumberMapDataCommand("m", nums));
+        w.write(new GridDataCommand("g", grid));
+        w.close();
+
+        StringWriter sw = new StringWriter();
+        int cnt = BinaryOutputConverter.convert(new ByteArrayInputStream(bos.toByteArray()), new PrintWriter(sw), true);
+        assertEquals(3, cnt);
+        assertEquals(
+            "message,5,\"say \"\"hi\"\"\"\n" +
+            "map,m,\"a,b\",1\n" +
+            "grid,g,k,2,1:3 2:4\n",
+            sw.toString()
+        );
+    }
+
+    @Test
+    public void text() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryTraceWriter w = new BinaryTraceWriter(bos);
+        w.write(new MessageCommand("first\n"));
+        w.write(new MessageCommand("second\n"));
+        w.close();
+
+        StringWriter sw = new StringWriter();
+        BinaryOutputConverter.convert(new ByteArrayInputStream(bos.toByteArray()), new PrintWriter(sw), false);
+        assertEquals("first\nsecond\n", sw.toString());
+    }
+}
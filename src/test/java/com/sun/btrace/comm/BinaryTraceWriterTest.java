@@ -0,0 +1,137 @@
+package com.sun.btrace.comm;
+
+import com.sun.btrace.aggregation.HistogramData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryTraceWriterTest {
+    @Test
+    public void roundTrip() throws Exception {
+        Map<String, Number> nums = new LinkedHashMap<>();
+        nums.put("a", 1);
+        nums.put("b", -5L);
+        nums.put("c", 2.5d);
+        Map<String, String> strs = new LinkedHashMap<>();
+        strs.put("k", "v\u00e9");
+        List<Object[]> grid = new ArrayList<>();
+        grid.add(new Object[]{"key", 10L, new HistogramData(new long[]{1, 2}, new long[]{3, 4})});
+        grid.add(new Object[]{"other", BigInteger.TEN, 1.5f});
+
+        Command[] cmds = new Command[]{
+            new MessageCommand(1234L, "hello"),
+            new NumberDataCommand("n", Long.MIN_VALUE),
+            new NumberMapDataCommand("nums", nums),
+            new StringMapDataCommand("strs", strs),
+            new GridDataCommand("grid", grid, "%1$s %2$s"),
+            new ErrorCommand(new IOException("boom"))
+        };
+
+        List<Command> read = readAll(write(cmds));
+        assertEquals(cmds.length, read.size());
+        for (int i = 0; i < cmds.length - 1; i++) {
+            assertEquals(print(cmds[i]), print(read.get(i)));
+        }
+        assertTrue(print(read.get(5)).startsWith("! ERROR\njava.io.IOException: boom"));
+
+        MessageCommand mc = (MessageCommand)read.get(0);
+        assertEquals(1234L, mc.getTime());
+        assertEquals(Long.MIN_VALUE, ((NumberDataCommand)read.get(1)).getValue());
+        assertEquals("%1$s %2$s", ((GridDataCommand)read.get(4)).getFormat());
+    }
+
+    @Test
+    public void otherNumbers() throws Exception {
+        Map<String, Number> nums = new LinkedHashMap<>();
+        nums.put("atomic", new AtomicLong(42));
+        nums.put("int", new AtomicInteger(-7));
+        nums.put("custom", new Number() {
+            @Override public int intValue() { return 3; }
+            @Override public long longValue() { return 3; }
+            @Override public float floatValue() { return 3.25f; }
+            @Override public double doubleValue() { return 3.25d; }
+            @Override public String toString() { return "three and a quarter"; }
+        });
+
+        List<Command> read = readAll(write(
+            new NumberDataCommand("n", new AtomicLong(Long.MAX_VALUE)),
+            new NumberMapDataCommand("nums", nums)
+        ));
+        assertEquals(Long.MAX_VALUE, ((NumberDataCommand)read.get(0)).getValue().longValue());
+        Map<String, ? extends Number> data = ((NumberMapDataCommand)read.get(1)).getData();
+        assertEquals(42L, data.get("atomic").longValue());
+        assertEquals(-7, data.get("int").intValue());
+        assertEquals(3.25d, data.get("custom").doubleValue(), 0d);
+
+        assertEquals(print(new NumberDataCommand("n", 5L)),
+                     print(readAll(write(new NumberDataCommand("n", new AtomicLong(5)))).get(0)));
+    }
+
+    @Test
+    public void stringsWrittenOnce() throws Exception {
+        byte[] one = write(new NumberDataCommand("some.long.metric.name", 1));
+        byte[] two = write(new NumberDataCommand("some.long.metric.name", 1),
+                           new NumberDataCommand("some.long.metric.name", 2));
+        // the second record only refers to the interned name
+        assertTrue(two.length - one.length < 8);
+    }
+
+    @Test
+    public void stringTableReset() throws Exception {
+        int cnt = BinaryTraceWriter.MAX_STRINGS + 10;
+        Command[] cmds = new Command[cnt + 1];
+        for (int i = 0; i < cnt; i++) {
+            cmds[i] = new NumberDataCommand("n" + i, i);
+        }
+        cmds[cnt] = new NumberDataCommand("n0", 0);
+        List<Command> read = readAll(write(cmds));
+        assertEquals(cmds.length, read.size());
+        for (int i = 0; i < cmds.length; i++) {
+            assertEquals(((NumberDataCommand)cmds[i]).getName(), ((NumberDataCommand)read.get(i)).getName());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notBinary() throws Exception {
+        new BinaryTraceReader(new ByteArrayInputStream("### BTrace Log".getBytes("UTF-8")));
+    }
+
+    private static byte[] write(Command ... cmds) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryTraceWriter w = new BinaryTraceWriter(bos);
+        for (Command c : cmds) {
+            w.write(c);
+        }
+        w.close();
+        return bos.toByteArray();
+    }
+
+    private static List<Command> readAll(byte[] data) throws IOException {
+        BinaryTraceReader r = new BinaryTraceReader(new ByteArrayInputStream(data));
+        List<Command> cmds = new ArrayList<>();
+        Command c;
+        while ((c = r.read()) != null) {
+            cmds.add(c);
+        }
+        return cmds;
+    }
+
+    private static String print(Command cmd) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        ((PrintableCommand)cmd).print(pw);
+        pw.flush();
+        return sw.toString();
+    }
+}
@@ -0,0 +1,45 @@
+package com.sun.btrace.comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageCommandTest {
+    @Test
+    public void deferredFormat() {
+        MessageCommand cmd = new MessageCommand(0L, "%s took %d ms", new Object[]{"call", 15L});
+        assertEquals("call took 15 ms", cmd.getMessage());
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        cmd.print(pw);
+        pw.flush();
+        assertEquals("call took 15 ms", sw.toString());
+    }
+
+    @Test
+    public void deferredFormatSerialized() throws Exception {
+        MessageCommand cmd = new MessageCommand(0L, "%d-%d", new Object[]{1, 2});
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            cmd.write(oos);
+        }
+        MessageCommand read = new MessageCommand();
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            read.read(ois);
+        }
+        assertEquals("1-2", read.getMessage());
+    }
+
+    @Test
+    public void invalidFormat() {
+        MessageCommand cmd = new MessageCommand(0L, "%d", new Object[]{"text"});
+        assertTrue(cmd.getMessage().startsWith("%d ["));
+    }
+}
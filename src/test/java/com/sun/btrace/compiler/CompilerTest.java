@@ -23,10 +23,20 @@ public class CompilerTest {
     }
 
     @Test
-    @SuppressWarnings("DefaultCharset")
     public void testCompile() throws Exception {
         System.out.println("compile");
-        URL script = CompilerTest.class.getResource("/traces/OnMethodTest.java");
+        Assert.assertNotNull(compile("OnMethodTest"));
+    }
+
+    @Test
+    public void testCompilePrimitiveMaps() throws Exception {
+        System.out.println("compilePrimitiveMaps");
+        Assert.assertNotNull(compile("PrimitiveMapTest"));
+    }
+
+    @SuppressWarnings("DefaultCharset")
+    private Map<String, byte[]> compile(String name) throws Exception {
+        URL script = CompilerTest.class.getResource("/traces/" + name + ".java");
         InputStream is = script.openStream();
 
         File f = new File(script.toURI());
@@ -42,8 +52,6 @@ public class CompilerTest {
         }
 
         System.out.println(sb.toString());
-        Map<String, byte[]> data = instance.compile("traces/OnMethodTest.java", sb.toString(), new PrintWriter(System.err), ".", classpath);
-
-        Assert.assertNotNull(data);
+        return instance.compile("traces/" + name + ".java", sb.toString(), new PrintWriter(System.err), ".", classpath);
     }
 }
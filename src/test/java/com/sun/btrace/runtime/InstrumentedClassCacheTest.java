@@ -0,0 +1,165 @@
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.DebugSupport;
+import com.sun.btrace.SharedSettings;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InstrumentedClassCacheTest extends InstrumentorTestBase {
+    private static final byte[] PROBES = new byte[]{1, 2, 3};
+
+    private File dir;
+    private final DebugSupport debug = new DebugSupport(new SharedSettings());
+
+    @Before
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("btrace-cache").toFile();
+    }
+
+    @After
+    public void deleteDir() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        String key = cache.key(classBytes(1, 100), PROBES);
+        assertNull(cache.get(key));
+
+        byte[] transformed = classBytes(2, 200);
+        cache.put(key, transformed);
+        assertTrue(Arrays.equals(transformed, cache.get(key)));
+
+        // survives a restart
+        InstrumentedClassCache reopened = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        assertTrue(Arrays.equals(transformed, reopened.get(key)));
+        assertEquals(transformed.length, reopened.getSize());
+        assertEquals(1, reopened.getHits());
+    }
+
+    @Test
+    public void notInstrumented() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        String key = cache.key(classBytes(1, 100), PROBES);
+        cache.put(key, null);
+        byte[] cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(0, cached.length);
+    }
+
+    @Test
+    public void keys() throws Exception {
+        byte[] clz = classBytes(1, 100);
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        InstrumentedClassCache other = new InstrumentedClassCache(dir, 0, "2.0", debug);
+        String key = cache.key(clz, PROBES);
+        assertEquals(key, cache.key(clz.clone(), PROBES.clone()));
+        assertFalse(key.equals(cache.key(clz, new byte[]{1, 2, 4})));
+        assertFalse(key.equals(cache.key(classBytes(2, 100), PROBES)));
+        assertFalse(key.equals(other.key(clz, PROBES)));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 1000, "1.0", debug);
+        String[] keys = new String[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = cache.key(classBytes(i, 10), PROBES);
+            cache.put(keys[i], classBytes(i, 300));
+            new File(dir, keys[i] + ".class").setLastModified(System.currentTimeMillis() - (10 - i) * 10000L);
+        }
+        // the fourth entry exceeded the limit; the oldest ones were removed
+        assertTrue(cache.getSize() <= 750);
+        assertNull(cache.get(keys[0]));
+        assertNotNull(cache.get(keys[3]));
+    }
+
+    @Test
+    public void corruptedEntry() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        String key = cache.key(classBytes(1, 100), PROBES);
+        Files.write(new File(dir, key + ".class").toPath(), new byte[]{1, 2, 3, 4, 5});
+        assertNull(cache.get(key));
+        assertFalse(new File(dir, key + ".class").exists());
+    }
+
+    @Test
+    public void leftoverTempFiles() throws Exception {
+        File stale = new File(dir, "abc.tmp");
+        Files.write(stale.toPath(), new byte[]{1});
+        stale.setLastModified(System.currentTimeMillis() - 3600 * 1000L);
+        // possibly still being written by another process
+        File recent = new File(dir, "def.tmp");
+        Files.write(recent.toPath(), new byte[]{1});
+
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 1000, "1.0", debug);
+        assertFalse(stale.exists());
+        assertTrue(recent.exists());
+
+        // eviction leaves the temp files alone
+        for (int i = 0; i < 4; i++) {
+            cache.put(cache.key(classBytes(i, 10), PROBES), classBytes(i, 300));
+        }
+        assertTrue(cache.getSize() <= 750);
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    public void transformer() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        byte[] clz = loadTargetClass("OnMethodTest");
+
+        byte[] transformed = transform(cache, "onmethod/ArgsNoSelf", clz);
+        assertNotNull(transformed);
+        assertEquals(0, cache.getHits());
+        assertEquals(transformed.length, cache.getSize());
+
+        // a new transformer, as after a restart
+        byte[] cached = transform(cache, "onmethod/ArgsNoSelf", clz);
+        assertEquals(1, cache.getHits());
+        assertTrue(Arrays.equals(transformed, cached));
+    }
+
+    @Test
+    public void transformerSampled() throws Exception {
+        InstrumentedClassCache cache = new InstrumentedClassCache(dir, 0, "1.0", debug);
+        byte[] clz = loadTargetClass("OnMethodTest");
+
+        assertNotNull(transform(cache, "onmethod/ArgsSampled", clz));
+        // the instrumented code embeds method ids valid only in this JVM run
+        assertEquals(0, cache.getSize());
+        assertNotNull(transform(cache, "onmethod/ArgsSampled", clz));
+        assertEquals(0, cache.getHits());
+    }
+
+    private byte[] transform(InstrumentedClassCache cache, String trace, byte[] clz) throws Exception {
+        BTraceTransformer t = new BTraceTransformer(debug);
+        t.setClassCache(cache);
+        t.register(loadTrace(trace));
+        return t.transform(getClass().getClassLoader(), "resources/OnMethodTest", null, null, clz);
+    }
+
+    private static byte[] classBytes(int seed, int len) {
+        byte[] b = new byte[len];
+        b[0] = (byte)0xca;
+        b[1] = (byte)0xfe;
+        b[2] = (byte)0xba;
+        b[3] = (byte)0xbe;
+        for (int i = 4; i < len; i++) {
+            b[i] = (byte)(seed + i);
+        }
+        return b;
+    }
+}
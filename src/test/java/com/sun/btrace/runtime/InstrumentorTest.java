@@ -24,6 +24,7 @@
  */
 package com.sun.btrace.runtime;
 
+import com.sun.btrace.SharedSettings;
 import com.sun.btrace.instr.RandomIntProvider;
 import java.lang.reflect.Field;
 import java.nio.file.FileSystems;
@@ -2133,22 +2134,17 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
             "LDC \"args\"\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
-            "GETSTATIC traces/onmethod/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.get ()Ljava/lang/Object;\n" +
-            "CHECKCAST java/lang/Integer\n" +
-            "INVOKEVIRTUAL java/lang/Integer.intValue ()I\n" +
+            "GETSTATIC traces/onmethod/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.getValue ()I\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.str (I)Ljava/lang/String;\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
-            "GETSTATIC traces/onmethod/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.get ()Ljava/lang/Object;\n" +
-            "CHECKCAST java/lang/Integer\n" +
-            "INVOKEVIRTUAL java/lang/Integer.intValue ()I\n" +
+            "GETSTATIC traces/onmethod/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.getValue ()I\n" +
             "ICONST_1\n" +
             "IADD\n" +
-            "INVOKESTATIC java/lang/Integer.valueOf (I)Ljava/lang/Integer;\n" +
-            "GETSTATIC traces/onmethod/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
+            "GETSTATIC traces/onmethod/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
             "SWAP\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.set (Ljava/lang/Object;)V\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.setValue (I)V\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsShared$dumpExported ()V\n" +
             "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
             "RETURN\n" +
@@ -2222,22 +2218,17 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
             "LDC \"args\"\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
-            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.get ()Ljava/lang/Object;\n" +
-            "CHECKCAST java/lang/Integer\n" +
-            "INVOKEVIRTUAL java/lang/Integer.intValue ()I\n" +
+            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.getValue ()I\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.str (I)Ljava/lang/String;\n" +
             "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
-            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.get ()Ljava/lang/Object;\n" +
-            "CHECKCAST java/lang/Integer\n" +
-            "INVOKEVIRTUAL java/lang/Integer.intValue ()I\n" +
+            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.getValue ()I\n" +
             "ICONST_1\n" +
             "IADD\n" +
-            "INVOKESTATIC java/lang/Integer.valueOf (I)Ljava/lang/Integer;\n" +
-            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Ljava/lang/ThreadLocal;\n" +
+            "GETSTATIC traces/onmethod/leveled/ArgsShared.cntr : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
             "SWAP\n" +
-            "INVOKEVIRTUAL java/lang/ThreadLocal.set (Ljava/lang/Object;)V\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.setValue (I)V\n" +
             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$leveled$ArgsShared$dumpExported ()V\n" +
             "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
             "RETURN\n" +
@@ -3842,27 +3833,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/AnytypeArgs");
         checkTransformation(
             "ALOAD 0\n" +
-            "ICONST_4\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
-            "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
-            "LLOAD 2\n" +
-            "INVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
-            "ALOAD 4\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 5\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgs$args (Ljava/lang/Object;[Ljava/lang/Object;)V\n" +
-            "MAXSTACK = 6"
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgs$args (Ljava/lang/Object;)V\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$onmethod$AnytypeArgs$args(Ljava/lang/Object;)V"
         );
 
         resetClassLoader();
@@ -3873,28 +3847,8 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "ICONST_1\n" +
             "IF_ICMPLT L0\n" +
             "ALOAD 0\n" +
-            "ICONST_4\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
-            "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
-            "LLOAD 2\n" +
-            "INVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
-            "ALOAD 4\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 5\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$leveled$AnytypeArgs$args (Ljava/lang/Object;[Ljava/lang/Object;)V\n" +
-            "FRAME SAME\n" +
-            "MAXSTACK = 6"
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$leveled$AnytypeArgs$args (Ljava/lang/Object;)V\n" +
+            "FRAME SAME"
         );
     }
 
@@ -3903,27 +3857,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         loadTargetClass("OnMethodTest");
         transform("onmethod/AnytypeArgsNoSelf");
         checkTransformation(
-            "ICONST_4\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
-            "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
-            "LLOAD 2\n" +
-            "INVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
-            "ALOAD 4\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 5\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsNoSelf$argsNoSelf ([Ljava/lang/Object;)V\n" +
-            "MAXSTACK = 5"
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsNoSelf$argsNoSelf ()V\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$onmethod$AnytypeArgsNoSelf$argsNoSelf()V"
         );
 
         resetClassLoader();
@@ -3933,31 +3870,80 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "GETSTATIC traces/onmethod/leveled/AnytypeArgsNoSelf.$btrace$$level : I\n" +
             "ICONST_1\n" +
             "IF_ICMPLT L0\n" +
-            "ICONST_4\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$leveled$AnytypeArgsNoSelf$argsNoSelf ()V\n" +
+            "FRAME SAME"
+        );
+    }
+
+    @Test
+    public void methodEntryAnytypeArgsIndexed() throws Exception {
+        loadTargetClass("OnMethodTest");
+        transform("onmethod/AnytypeArgsIndexed");
+        checkTransformation(
+            "ALOAD 0\n" +
             "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
             "LLOAD 2\n" +
             "INVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
             "ALOAD 4\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 5\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$leveled$AnytypeArgsNoSelf$argsNoSelf ([Ljava/lang/Object;)V\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsIndexed$args (Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V\n" +
+            "MAXSTACK = 4\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$onmethod$AnytypeArgsIndexed$args(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V\n" +
+            "@Lcom/sun/btrace/annotations/OnMethod;(clazz=\"/.*\\\\.OnMethodTest/\", method=\"args\")\n" +
+            "@Lcom/sun/btrace/annotations/Self;() // parameter 0\n" +
+            "TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n" +
+            "GETSTATIC traces/onmethod/AnytypeArgsIndexed.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.enter (Lcom/sun/btrace/BTraceRuntime;)Z\n" +
+            "IFNE L0\n" +
+            "RETURN\n" +
+            "L0\n" +
             "FRAME SAME\n" +
-            "MAXSTACK = 5"
+            "ALOAD 1\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
+            "ALOAD 3\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V"
         );
     }
 
+    @Test
+    public void methodEntryArgsInlined() throws Exception {
+        SharedSettings.GLOBAL.setInlineHandlers(true);
+        try {
+            loadTargetClass("OnMethodTest");
+            transform("onmethod/ArgsInlined");
+            checkTransformation(
+                "ALOAD 0\n" +
+                "ALOAD 1\n" +
+                "LLOAD 2\n" +
+                "ALOAD 4\n" +
+                "ALOAD 5\n" +
+                "ASTORE 6\n" +
+                "ASTORE 7\n" +
+                "LSTORE 8\n" +
+                "ASTORE 10\n" +
+                "ASTORE 11\n" +
+                "GETSTATIC traces/onmethod/ArgsInlined.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+                "INVOKESTATIC com/sun/btrace/BTraceRuntime.enter (Lcom/sun/btrace/BTraceRuntime;)Z\n" +
+                "IFEQ L0\n" +
+                "GETSTATIC traces/onmethod/ArgsInlined.hits : J\n" +
+                "LCONST_1\n" +
+                "LADD\n" +
+                "PUTSTATIC traces/onmethod/ArgsInlined.hits : J\n" +
+                "GETSTATIC traces/onmethod/ArgsInlined.total : J\n" +
+                "LLOAD 8\n" +
+                "LADD\n" +
+                "PUTSTATIC traces/onmethod/ArgsInlined.total : J\n" +
+                "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+                "FRAME FULL [resources/OnMethodTest java/lang/String J [Ljava/lang/String; [I [I [Ljava/lang/String; J java/lang/String resources/OnMethodTest] []\n" +
+                "MAXSTACK = 6\n" +
+                "MAXLOCALS = 12"
+            );
+        } finally {
+            SharedSettings.GLOBAL.setInlineHandlers(false);
+        }
+    }
+
     @Test
     public void methodEntryStaticArgs() throws Exception {
         loadTargetClass("OnMethodTest");
@@ -5414,16 +5400,11 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "// declaration: java.lang.ThreadLocal<java.lang.String>\n" +
             "public final static Ljava/lang/ThreadLocal; name\n" +
             "// access flags 0x19\n" +
-            "// signature Ljava/lang/ThreadLocal<Ljava/lang/Integer;>;\n" +
-            "// declaration: java.lang.ThreadLocal<java.lang.Integer>\n" +
-            "public final static Ljava/lang/ThreadLocal; x\n" +
+            "public final static Lcom/sun/btrace/PrimitiveThreadLocal$OfInt; x\n" +
             "// access flags 0x19\n" +
-            "// signature Ljava/lang/ThreadLocal<Ljava/lang/Double;>;\n" +
-            "// declaration: java.lang.ThreadLocal<java.lang.Double>\n" +
-            "public final static Ljava/lang/ThreadLocal; y\n" +
-            "// signature Ljava/lang/ThreadLocal<Ljava/lang/Long;>;\n" +
-            "// declaration: java.lang.ThreadLocal<java.lang.Long>\n" +
-            "public final static Ljava/lang/ThreadLocal; z\n" +
+            "public final static Lcom/sun/btrace/PrimitiveThreadLocal$OfDouble; y\n" +
+            "// access flags 0x19\n" +
+            "public final static Lcom/sun/btrace/PrimitiveThreadLocal$OfLong; z\n" +
             "\n" +
             "// access flags 0x49\n" +
             "public static volatile I $btrace$$level = 0\n" +
@@ -5457,20 +5438,18 @@ public class InstrumentorTest extends InstrumentorTestBase {
             "L2\n" +
             "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (Ljava/lang/Object;)Ljava/lang/ThreadLocal;\n" +
             "PUTSTATIC traces/TLSTest.entryTimes : Ljava/lang/ThreadLocal;\n" +
-            "INVOKESTATIC java/lang/Integer.valueOf (I)Ljava/lang/Integer;\n" +
-            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (Ljava/lang/Object;)Ljava/lang/ThreadLocal;\n" +
-            "PUTSTATIC traces/TLSTest.x : Ljava/lang/ThreadLocal;\n" +
+            "BIPUSH 10\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (I)Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "PUTSTATIC traces/TLSTest.x : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
             "ACONST_NULL\n" +
             "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (Ljava/lang/Object;)Ljava/lang/ThreadLocal;\n" +
             "PUTSTATIC traces/TLSTest.name : Ljava/lang/ThreadLocal;\n" +
             "DCONST_0\n" +
-            "INVOKESTATIC java/lang/Double.valueOf (D)Ljava/lang/Double;\n" +
-            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (Ljava/lang/Object;)Ljava/lang/ThreadLocal;\n" +
-            "PUTSTATIC traces/TLSTest.y : Ljava/lang/ThreadLocal;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (D)Lcom/sun/btrace/PrimitiveThreadLocal$OfDouble;\n" +
+            "PUTSTATIC traces/TLSTest.y : Lcom/sun/btrace/PrimitiveThreadLocal$OfDouble;\n" +
             "LDC 10\n" +
-            "INVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\n" +
-            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (Ljava/lang/Object;)Ljava/lang/ThreadLocal;\n" +
-            "PUTSTATIC traces/TLSTest.z : Ljava/lang/ThreadLocal;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.newThreadLocal (J)Lcom/sun/btrace/PrimitiveThreadLocal$OfLong;\n" +
+            "PUTSTATIC traces/TLSTest.z : Lcom/sun/btrace/PrimitiveThreadLocal$OfLong;\n" +
             "INVOKESTATIC com/sun/btrace/BTraceRuntime.start ()V\n" +
             "RETURN\n" +
             "L1\n" +
@@ -5519,6 +5498,189 @@ public class InstrumentorTest extends InstrumentorTestBase {
         );
     }
 
+    @Test
+    public void regexFoldTest() throws Exception {
+        loadTargetClass("OnMethodTest");
+        transform("RegexFoldTest");
+
+        checkTrace(
+            "// access flags 0x19\n" +
+            "public final static Ljava/util/regex/Pattern; $btrace$$regex$0\n"
+        );
+
+        checkTransformation(
+            "ALOAD 1\n" +
+            "LLOAD 2\n" +
+            "ALOAD 4\n" +
+            "ALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$RegexFoldTest$testArgs (Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "MAXSTACK = 5\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$RegexFoldTest$testArgs(Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "@Lcom/sun/btrace/annotations/OnMethod;(clazz=\"resources.OnMethodTest\", method=\"args\")\n" +
+            "TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n" +
+            "GETSTATIC traces/RegexFoldTest.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.enter (Lcom/sun/btrace/BTraceRuntime;)Z\n" +
+            "IFNE L0\n" +
+            "RETURN\n" +
+            "L0\n" +
+            "FRAME SAME\n" +
+            "GETSTATIC traces/RegexFoldTest.$btrace$$regex$0 : Ljava/util/regex/Pattern;\n" +
+            "ALOAD 0\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils$Strings.matches (Ljava/util/regex/Pattern;Ljava/lang/String;)Z\n" +
+            "IFEQ L2\n" +
+            "ALOAD 0\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
+            "L2\n" +
+            "FRAME SAME\n" +
+            "GETSTATIC traces/RegexFoldTest.$btrace$$regex$0 : Ljava/util/regex/Pattern;\n" +
+            "LLOAD 1\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.str (J)Ljava/lang/String;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils$Strings.matches (Ljava/util/regex/Pattern;Ljava/lang/String;)Z\n" +
+            "IFEQ L3\n" +
+            "LLOAD 1\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (J)V\n" +
+            "L3\n" +
+            "FRAME SAME\n" +
+            "ALOAD 0\n" +
+            "LDC \"select\"\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.matches (Ljava/lang/String;Ljava/lang/String;)Z\n" +
+            "IFEQ L4\n" +
+            "ALOAD 0\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
+            "L4\n" +
+            "FRAME SAME\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "L1\n" +
+            "FRAME SAME1 java/lang/Throwable\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.handleException (Ljava/lang/Throwable;)V\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "MAXSTACK = 3\n" +
+            "MAXLOCALS = 5"
+        );
+    }
+
+    @Test
+    public void regexFoldLocalTest() throws Exception {
+        loadTargetClass("OnMethodTest");
+        transform("RegexFoldLocalTest");
+
+        // the regex kept in a local variable is not folded
+        checkTransformation(
+            "ALOAD 1\n" +
+            "LLOAD 2\n" +
+            "ALOAD 4\n" +
+            "ALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$RegexFoldLocalTest$testArgs (Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "MAXSTACK = 5\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$RegexFoldLocalTest$testArgs(Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "@Lcom/sun/btrace/annotations/OnMethod;(clazz=\"resources.OnMethodTest\", method=\"args\")\n" +
+            "TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n" +
+            "GETSTATIC traces/RegexFoldLocalTest.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.enter (Lcom/sun/btrace/BTraceRuntime;)Z\n" +
+            "IFNE L0\n" +
+            "RETURN\n" +
+            "L0\n" +
+            "FRAME SAME\n" +
+            "LDC \"select .*\"\n" +
+            "ASTORE 5\n" +
+            "ALOAD 5\n" +
+            "ALOAD 0\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.matches (Ljava/lang/String;Ljava/lang/String;)Z\n" +
+            "IFEQ L2\n" +
+            "ALOAD 0\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (Ljava/lang/Object;)V\n" +
+            "L2\n" +
+            "FRAME APPEND [java/lang/String]\n" +
+            "ALOAD 5\n" +
+            "LLOAD 1\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.str (J)Ljava/lang/String;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.matches (Ljava/lang/String;Ljava/lang/String;)Z\n" +
+            "IFEQ L3\n" +
+            "ALOAD 5\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.strlen (Ljava/lang/String;)I\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (I)V\n" +
+            "L3\n" +
+            "FRAME SAME\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "L1\n" +
+            "FRAME FULL [java/lang/String J [Ljava/lang/String; [I] [java/lang/Throwable]\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.handleException (Ljava/lang/Throwable;)V\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "MAXSTACK = 3\n" +
+            "MAXLOCALS = 6"
+        );
+    }
+
+    @Test
+    public void tlsPrimitiveTest() throws Exception {
+        loadTargetClass("OnMethodTest");
+        transform("TLSPrimitiveTest");
+
+        checkTrace(
+            "// access flags 0x19\n" +
+            "public final static Lcom/sun/btrace/PrimitiveThreadLocal$OfLong; sum\n" +
+            "// access flags 0x19\n" +
+            "public final static Lcom/sun/btrace/PrimitiveThreadLocal$OfInt; seen\n"
+        );
+
+        checkTransformation(
+            "ALOAD 1\n" +
+            "LLOAD 2\n" +
+            "ALOAD 4\n" +
+            "ALOAD 5\n" +
+            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$TLSPrimitiveTest$testArgs (Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "MAXSTACK = 5\n" +
+            "\n" +
+            "// access flags 0xA\n" +
+            "private static $btrace$traces$TLSPrimitiveTest$testArgs(Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+            "@Lcom/sun/btrace/annotations/OnMethod;(clazz=\"resources.OnMethodTest\", method=\"args\")\n" +
+            "TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.runtime : Lcom/sun/btrace/BTraceRuntime;\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.enter (Lcom/sun/btrace/BTraceRuntime;)Z\n" +
+            "IFNE L0\n" +
+            "RETURN\n" +
+            "L0\n" +
+            "FRAME SAME\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.sum : Lcom/sun/btrace/PrimitiveThreadLocal$OfLong;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfLong.getValue ()J\n" +
+            "LLOAD 1\n" +
+            "LADD\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.sum : Lcom/sun/btrace/PrimitiveThreadLocal$OfLong;\n" +
+            "DUP_X2\n" +
+            "POP\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfLong.setValue (J)V\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.seen : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.getValue ()I\n" +
+            "IFNE L2\n" +
+            "ICONST_1\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.seen : Lcom/sun/btrace/PrimitiveThreadLocal$OfInt;\n" +
+            "SWAP\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfInt.setValue (I)V\n" +
+            "GETSTATIC traces/TLSPrimitiveTest.sum : Lcom/sun/btrace/PrimitiveThreadLocal$OfLong;\n" +
+            "INVOKEVIRTUAL com/sun/btrace/PrimitiveThreadLocal$OfLong.getValue ()J\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceUtils.println (J)V\n" +
+            "L2\n" +
+            "FRAME SAME\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "L1\n" +
+            "FRAME SAME1 java/lang/Throwable\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.handleException (Ljava/lang/Throwable;)V\n" +
+            "INVOKESTATIC com/sun/btrace/BTraceRuntime.leave ()V\n" +
+            "RETURN\n" +
+            "MAXSTACK = 4\n" +
+            "MAXLOCALS = 5"
+        );
+    }
+
     @Test
     public void exportTest() throws Exception {
         loadTargetClass("OnMethodTest");
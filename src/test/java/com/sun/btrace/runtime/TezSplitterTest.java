@@ -8,50 +8,8 @@ public class TezSplitterTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("classdata/TezSplitter");
         transform("issues/TezSplitter");
         checkTransformation(
-            "ICONST_4\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
-            "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
-            "ALOAD 2\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
-            "ILOAD 3\n" +
-            "INVOKESTATIC java/lang/Integer.valueOf (I)Ljava/lang/Integer;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 4\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC org/apache/hadoop/mapred/split/TezMapredSplitsGrouper.$btrace$traces$issues$TezSplitter$getGroupedSplitsHook ([Ljava/lang/Object;)V\n" +
-            "ICONST_5\n" +
-            "ANEWARRAY java/lang/Object\n" +
-            "DUP\n" +
-            "ICONST_0\n" +
-            "ALOAD 1\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_1\n" +
-            "ALOAD 2\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_2\n" +
-            "ILOAD 3\n" +
-            "INVOKESTATIC java/lang/Integer.valueOf (I)Ljava/lang/Integer;\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_3\n" +
-            "ALOAD 4\n" +
-            "AASTORE\n" +
-            "DUP\n" +
-            "ICONST_4\n" +
-            "ALOAD 5\n" +
-            "AASTORE\n" +
-            "INVOKESTATIC org/apache/hadoop/mapred/split/TezMapredSplitsGrouper.$btrace$traces$issues$TezSplitter$getGroupedSplitsHook ([Ljava/lang/Object;)V\n" +
+            "INVOKESTATIC org/apache/hadoop/mapred/split/TezMapredSplitsGrouper.$btrace$traces$issues$TezSplitter$getGroupedSplitsHook ()V\n" +
+            "INVOKESTATIC org/apache/hadoop/mapred/split/TezMapredSplitsGrouper.$btrace$traces$issues$TezSplitter$getGroupedSplitsHook ()V\n" +
             "FRAME FULL [org/apache/hadoop/mapred/split/TezMapredSplitsGrouper org/apache/hadoop/conf/Configuration [Lorg/apache/hadoop/mapred/InputSplit; I java/lang/String org/apache/hadoop/mapred/split/SplitSizeEstimator I java/lang/String java/lang/String [Ljava/lang/String; I J java/util/Map [Lorg/apache/hadoop/mapred/InputSplit; I I T T T T T T] []\n" +
             "FRAME FULL [org/apache/hadoop/mapred/split/TezMapredSplitsGrouper org/apache/hadoop/conf/Configuration [Lorg/apache/hadoop/mapred/InputSplit; I java/lang/String org/apache/hadoop/mapred/split/SplitSizeEstimator I java/lang/String java/lang/String [Ljava/lang/String; I J java/util/Map T T T T T T T T T] []\n" +
             "LSTORE 23\n" +
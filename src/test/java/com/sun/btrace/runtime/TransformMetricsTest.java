@@ -0,0 +1,105 @@
+package com.sun.btrace.runtime;
+
+import com.sun.btrace.DebugSupport;
+import com.sun.btrace.SharedSettings;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransformMetricsTest extends InstrumentorTestBase {
+    @Test
+    public void buckets() {
+        assertEquals(0, TransformMetrics.bucket(0));
+        assertEquals(1, TransformMetrics.bucket(1));
+        assertEquals(2, TransformMetrics.bucket(2));
+        assertEquals(2, TransformMetrics.bucket(3));
+        assertEquals(11, TransformMetrics.bucket(1500));
+        assertEquals(TransformMetrics.BUCKETS - 1, TransformMetrics.bucket(Long.MAX_VALUE));
+
+        long[] bounds = new TransformMetrics().getLatencyBucketBoundsMicros();
+        assertEquals(TransformMetrics.BUCKETS, bounds.length);
+        assertEquals(2048, bounds[11]);
+    }
+
+    @Test
+    public void record() {
+        TransformMetrics m = new TransformMetrics();
+        long now = System.nanoTime();
+        m.record(TransformMetrics.Outcome.FILTERED, "a/A", now, 100, 0);
+        m.record(TransformMetrics.Outcome.UNCHANGED, "a/B", now, 200, 0);
+        m.record(TransformMetrics.Outcome.INSTRUMENTED, "a/C", now - 5000000, 300, 400);
+        m.parsed();
+        m.parsed();
+        m.commonSuperClass(now);
+
+        assertEquals(3, m.getClassesSeen());
+        assertEquals(1, m.getClassesFiltered());
+        assertEquals(2, m.getClassesParsed());
+        assertEquals(1, m.getClassesUnchanged());
+        assertEquals(1, m.getClassesInstrumented());
+        assertEquals(0, m.getClassesFailed());
+        assertEquals(500, m.getBytesIn());
+        assertEquals(400, m.getBytesOut());
+        assertEquals(1, m.getCommonSuperClassCalls());
+        assertTrue(m.getTransformTimeNanos() >= 5000000);
+
+        Map<String, long[]> hs = m.getLatencyHistograms();
+        long cnt = 0;
+        for (long c : hs.get("instrumented")) {
+            cnt += c;
+        }
+        assertEquals(1, cnt);
+
+        List<String> slowest = m.getSlowestClasses();
+        assertEquals(2, slowest.size());
+        assertTrue(slowest.get(0).startsWith("a/C: "));
+
+        String report = m.report();
+        assertTrue(report, report.contains("3 seen, 1 filtered, 2 parsed, 1 instrumented"));
+        assertTrue(report, report.contains("instrumented latency (us):"));
+
+        m.reset();
+        assertEquals(0, m.getClassesSeen());
+        assertEquals(0, m.getBytesIn());
+        assertTrue(m.getSlowestClasses().isEmpty());
+    }
+
+    @Test
+    public void slowestClasses() {
+        TransformMetrics m = new TransformMetrics();
+        long now = System.nanoTime();
+        for (int i = 0; i < TransformMetrics.SLOWEST * 2; i++) {
+            m.record(TransformMetrics.Outcome.INSTRUMENTED, "C" + i, now - i * 1000000L, 1, 1);
+        }
+        List<String> slowest = m.getSlowestClasses();
+        assertEquals(TransformMetrics.SLOWEST, slowest.size());
+        assertTrue(slowest.get(0).startsWith("C" + (TransformMetrics.SLOWEST * 2 - 1) + ": "));
+        for (String s : slowest) {
+            int idx = Integer.parseInt(s.substring(1, s.indexOf(':')));
+            assertTrue(s, idx >= TransformMetrics.SLOWEST);
+        }
+    }
+
+    @Test
+    public void transformer() throws Exception {
+        TransformMetrics m = new TransformMetrics();
+        BTraceTransformer t = new BTraceTransformer(new DebugSupport(new SharedSettings()));
+        t.setMetrics(m);
+        t.register(loadTrace("onmethod/ArgsNoSelf"));
+
+        byte[] clz = loadTargetClass("OnMethodTest");
+        ClassLoader cl = getClass().getClassLoader();
+        byte[] transformed = t.transform(cl, "resources/OnMethodTest", null, null, clz);
+        assertNotNull(transformed);
+        assertNull(t.transform(cl, "resources/Other", null, null, clz));
+
+        assertEquals(2, m.getClassesSeen());
+        assertEquals(1, m.getClassesFiltered());
+        assertEquals(1, m.getClassesParsed());
+        assertEquals(1, m.getClassesInstrumented());
+        assertEquals(clz.length, m.getBytesIn());
+        assertEquals(transformed.length, m.getBytesOut());
+        assertEquals(1, m.getSlowestClasses().size());
+    }
+}
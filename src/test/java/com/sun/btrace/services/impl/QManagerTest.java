@@ -0,0 +1,137 @@
+package com.sun.btrace.services.impl;
+
+import com.sun.btrace.SharedSettings;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class QManagerTest {
+    @Test
+    public void passThrough() {
+        QManager qm = new QManager(0);
+        qm.submit("hits", 1, 0d, "c", null);
+        qm.submit("hits", 1, 0d, "c", null);
+        List<String> msgs = flush(qm);
+        assertEquals(2, msgs.size());
+        assertEquals("hits:1|c", msgs.get(0));
+    }
+
+    @Test
+    public void counters() {
+        QManager qm = new QManager(1000);
+        for (int i = 0; i < 1000; i++) {
+            qm.submit("hits", 1, 0d, "c", null);
+            qm.submit("hits", 2, 0d, "c", "env:test");
+            qm.submit("sampled", 1, 0.1d, "c", null);
+        }
+        assertTrue(qm.getQ().isEmpty());
+        List<String> msgs = flush(qm);
+        assertEquals(3, msgs.size());
+        assertTrue(msgs.contains("hits:1000|c"));
+        assertTrue(msgs.contains("hits:2000|c|#env:test"));
+        assertTrue(msgs.contains("sampled:10000|c"));
+
+        // nothing recorded since the last flush
+        assertTrue(flush(qm).isEmpty());
+    }
+
+    @Test
+    public void gauges() {
+        QManager qm = new QManager(1000);
+        qm.submit("size", 10, 0d, "g", null);
+        qm.submit("size", 12, 0d, "g", null);
+        qm.delta("level", 5, 0d, null);
+        qm.delta("level", -7, 0d, null);
+        List<String> msgs = flush(qm);
+        assertEquals(2, msgs.size());
+        assertTrue(msgs.contains("size:12|g"));
+        assertTrue(msgs.contains("level:-2|g"));
+    }
+
+    @Test
+    public void timers() {
+        QManager qm = new QManager(1000);
+        for (int i = 1; i <= 100; i++) {
+            qm.submit("latency", i, 0d, "ms", null);
+        }
+        List<String> msgs = flush(qm);
+        assertEquals(4, msgs.size());
+        assertTrue(msgs.contains("latency.count:100|c"));
+        assertTrue(msgs.contains("latency.min:1|g"));
+        assertTrue(msgs.contains("latency.max:100|g"));
+        assertTrue(msgs.contains("latency.avg:50|g"));
+    }
+
+    @Test
+    public void tooManyKeys() {
+        QManager qm = new QManager(1000);
+        for (int i = 0; i <= MetricAggregator.MAX_KEYS; i++) {
+            qm.submit("m" + i, 1, 0d, "c", null);
+        }
+        assertEquals(1, qm.getQ().size());
+        assertEquals("m" + MetricAggregator.MAX_KEYS + ":1|c", new String(qm.getQ().peek(), StatsdChannel.CHARSET));
+        assertEquals(MetricAggregator.MAX_KEYS + 1, flush(qm).size());
+    }
+
+    @Test
+    public void idleKeysDropped() {
+        QManager qm = new QManager(1000);
+        for (int i = 0; i < MetricAggregator.MAX_KEYS; i++) {
+            qm.submit("m" + i, 1, 0d, "c", null);
+        }
+        assertEquals(MetricAggregator.MAX_KEYS, flush(qm).size());
+        // the keys were idle since the last flush and get dropped
+        assertTrue(flush(qm).isEmpty());
+
+        qm.submit("other", 1, 0d, "c", null);
+        qm.submit("other", 1, 0d, "c", null);
+        assertTrue(qm.getQ().isEmpty());
+        assertEquals(Arrays.asList("other:2|c"), flush(qm));
+    }
+
+    @Test
+    public void notAggregatedByDefault() {
+        assertEquals(0, new SharedSettings().getStatsdFlushInterval());
+    }
+
+    @Test
+    public void encoding() {
+        QManager qm = new QManager(0);
+        qm.submit("sampled", 3, 0.25d, "c", "a:b");
+        qm.delta("level", -2, 0d, null);
+        qm.delta("level", 2, 0d, null);
+        qm.submit("neg", Long.MIN_VALUE, 0d, "g", null);
+        qm.submit("ids", "\u00e9x", "s", null);
+        qm.event("t", "txt", 12L, "h", null, null, Statsd.Priority.LOW, null, null);
+        assertEquals(Arrays.asList(
+            "sampled:3|c|@0.250|#a:b",
+            "level:-2|g",
+            "level:+2|g",
+            "neg:" + Long.MIN_VALUE + "|g",
+            "ids:?x|s",
+            "_e{1,3}:t|txt|d:12|h:h|p:LOW"
+        ), flush(qm));
+    }
+
+    private static List<String> flush(QManager qm) {
+        final List<String> msgs = new ArrayList<>();
+        for (byte[] line : qm.getQ()) {
+            msgs.add(new String(line, StatsdChannel.CHARSET));
+        }
+        qm.getQ().clear();
+        try {
+            qm.flush(new StatsdEncoder(8), new LineSink() {
+                @Override
+                public void line(byte[] buf, int off, int len) {
+                    msgs.add(new String(buf, off, len, StatsdChannel.CHARSET));
+                }
+            });
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return msgs;
+    }
+}
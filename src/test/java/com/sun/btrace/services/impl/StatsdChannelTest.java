@@ -0,0 +1,79 @@
+package com.sun.btrace.services.impl;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StatsdChannelTest {
+    private DatagramSocket collector;
+    private StatsdChannel ch;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        collector.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (ch != null) {
+            ch.close();
+        }
+        collector.close();
+    }
+
+    @Test
+    public void packsLines() throws Exception {
+        ch = new StatsdChannel(new InetSocketAddress(InetAddress.getLoopbackAddress(), collector.getLocalPort()), 100);
+        QManager qm = new QManager(1000);
+        for (int i = 0; i < 10; i++) {
+            qm.submit("metric" + i, i, 0d, "c", null);
+        }
+        qm.flush(new StatsdEncoder(), ch);
+        ch.send();
+
+        List<String> lines = new ArrayList<>();
+        while (lines.size() < 10) {
+            String packet = receive();
+            assertTrue(packet.length() <= 100);
+            assertTrue(packet.endsWith("\n"));
+            for (String l : packet.split("\n")) {
+                lines.add(l);
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(lines.contains("metric" + i + ":" + i + "|c"));
+        }
+    }
+
+    @Test
+    public void oversizedLine() throws Exception {
+        ch = new StatsdChannel(new InetSocketAddress(InetAddress.getLoopbackAddress(), collector.getLocalPort()), 64);
+        StatsdEncoder enc = new StatsdEncoder();
+        enc.append("short:1|c");
+        ch.line(enc.array(), 0, enc.length());
+        StringBuilder sb = new StringBuilder("long:");
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+        enc.reset().append(sb.toString());
+        ch.line(enc.array(), 0, enc.length());
+        ch.send();
+
+        assertEquals("short:1|c\n", receive());
+        assertEquals(sb.toString(), receive());
+    }
+
+    private String receive() throws Exception {
+        DatagramPacket dp = new DatagramPacket(new byte[2048], 2048);
+        collector.receive(dp);
+        return new String(dp.getData(), 0, dp.getLength(), StatsdChannel.CHARSET);
+    }
+}